@@ -25,6 +25,12 @@ public interface ChannelMaster {
 
     Collection<ChannelState> getChannels(String nameFilter);
 
+    /**
+     * like {@link #getChannels(String)}, but where a peer is connected over several striped channels, the stripe
+     * carrying {@code session} is returned instead of the primary channel
+     */
+    Collection<ChannelState> getChannels(String nameFilter, int session);
+
     int newSession();
 
     int targetHandlerId(Class<? extends TargetHandler> targetHandler);
@@ -0,0 +1,166 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import javax.annotation.Nullable;
+
+import java.net.InetSocketAddress;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copy-on-write index of the connected channels of a {@link Meshy}.
+ * <p/>
+ * Reads go to an immutable snapshot and never lock. Writers (connect, close and peer promotion, all rare)
+ * synchronize on the registry and publish a rebuilt snapshot. A channel's name, remote address and stripe are
+ * part of the index, so they must only be changed while holding the registry lock and followed by
+ * {@link #reindex()}.
+ */
+final class ChannelRegistry {
+
+    private final List<ChannelState> channels = new ArrayList<>();
+
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyList());
+
+    synchronized void add(ChannelState state) {
+        channels.add(state);
+        reindex();
+    }
+
+    synchronized boolean remove(ChannelState state) {
+        boolean removed = channels.remove(state);
+        if (removed) {
+            reindex();
+        }
+        return removed;
+    }
+
+    synchronized void reindex() {
+        snapshot = new Snapshot(channels);
+    }
+
+    int size() {
+        return snapshot.channels.size();
+    }
+
+    Collection<ChannelState> all() {
+        return snapshot.channels;
+    }
+
+    /**
+     * @return the channels (stripes) of the named peer ordered by stripe, or an empty list
+     */
+    List<ChannelState> named(String name) {
+        List<ChannelState> peer = snapshot.byName.get(name);
+        return (peer != null) ? peer : Collections.emptyList();
+    }
+
+    @Nullable ChannelState byAddress(InetSocketAddress address) {
+        return snapshot.byAddress.get(address);
+    }
+
+    /**
+     * @param nameFilter null = all channels, empty = named channels, non-empty = exact match
+     * @param session    picks the stripe of peers connected over more than one channel
+     */
+    Collection<ChannelState> select(@Nullable String nameFilter, int session) {
+        Snapshot current = snapshot;
+        if (nameFilter == MeshyConstants.LINK_ALL) {
+            return current.select(current.links, current.linkPrimaries, session);
+        } else if (nameFilter == MeshyConstants.LINK_NAMED) {
+            return current.select(current.namedLinks, current.namedPrimaries, session);
+        }
+        List<ChannelState> peer = current.byName.get(nameFilter);
+        if (peer == null) {
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(pick(peer, session));
+    }
+
+    private static ChannelState pick(List<ChannelState> peer, int session) {
+        return (peer.size() == 1) ? peer.get(0) : peer.get(Math.floorMod(session, peer.size()));
+    }
+
+    private static final class Snapshot {
+
+        final List<ChannelState> channels;
+        final Map<String, List<ChannelState>> byName = new HashMap<>();
+        final Map<InetSocketAddress, ChannelState> byAddress = new HashMap<>();
+        // one entry per logical link: the stripes of a named peer, or a single unnamed channel
+        final List<List<ChannelState>> links = new ArrayList<>();
+        final List<List<ChannelState>> namedLinks = new ArrayList<>();
+        // first stripe of every link; the whole answer when no peer is striped
+        final List<ChannelState> linkPrimaries;
+        final List<ChannelState> namedPrimaries;
+        final boolean striped;
+
+        Snapshot(List<ChannelState> connected) {
+            channels = Collections.unmodifiableList(new ArrayList<>(connected));
+            Map<String, List<ChannelState>> grouped = new LinkedHashMap<>();
+            for (ChannelState state : channels) {
+                String name = state.getName();
+                if (name == null) {
+                    links.add(Collections.singletonList(state));
+                } else {
+                    grouped.computeIfAbsent(name, key -> new ArrayList<>(1)).add(state);
+                }
+                InetSocketAddress address = state.getRemoteAddress();
+                if (address != null) {
+                    byAddress.putIfAbsent(address, state);
+                }
+            }
+            boolean anyStriped = false;
+            for (Map.Entry<String, List<ChannelState>> entry : grouped.entrySet()) {
+                List<ChannelState> peer = entry.getValue();
+                peer.sort(Comparator.comparingInt(ChannelState::getStripe));
+                peer = Collections.unmodifiableList(peer);
+                anyStriped |= peer.size() > 1;
+                byName.put(entry.getKey(), peer);
+                links.add(peer);
+                if (peer.get(0).getRemoteAddress() != null) {
+                    namedLinks.add(peer);
+                }
+            }
+            striped = anyStriped;
+            linkPrimaries = primaries(links);
+            namedPrimaries = primaries(namedLinks);
+        }
+
+        Collection<ChannelState> select(List<List<ChannelState>> group, List<ChannelState> primaries, int session) {
+            if (!striped) {
+                return primaries;
+            }
+            List<ChannelState> selected = new ArrayList<>(group.size());
+            for (List<ChannelState> peer : group) {
+                selected.add(pick(peer, session));
+            }
+            return selected;
+        }
+
+        private static List<ChannelState> primaries(List<List<ChannelState>> group) {
+            List<ChannelState> primaries = new ArrayList<>(group.size());
+            for (List<ChannelState> peer : group) {
+                primaries.add(peer.get(0));
+            }
+            return Collections.unmodifiableList(primaries);
+        }
+    }
+}
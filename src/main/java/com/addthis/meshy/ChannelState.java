@@ -16,35 +16,36 @@ package com.addthis.meshy;
 import javax.annotation.Nullable;
 
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.addthis.basis.util.Parameter;
 
-import com.addthis.meshy.service.file.FileTarget;
-
 import com.google.common.base.MoreObjects;
 
 import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Histogram;
 import com.yammer.metrics.core.Meter;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelOutboundBuffer;
-import io.netty.channel.socket.nio.NioSocketChannel;
-
-import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterruptibly;
-import static java.lang.Math.max;
-import static java.lang.Math.min;
 
 
 public class ChannelState extends ChannelDuplexHandler {
@@ -53,38 +54,61 @@ public class ChannelState extends ChannelDuplexHandler {
     private static final int excessiveTargets = Parameter.intValue("meshy.channel.report.targets", 2000);
     private static final int excessiveSources = Parameter.intValue("meshy.channel.report.sources", 2000);
 
-    static final AtomicInteger writeSleeps = new AtomicInteger(0);
-    static final Meter sleepMeter = Metrics.newMeter(FileTarget.class, "writeSleeps", "sleeps", TimeUnit.SECONDS);
+    static final AtomicInteger writeDeferrals = new AtomicInteger(0);
+    static final Meter deferMeter = Metrics.newMeter(ChannelState.class, "writeDeferrals", "deferrals", TimeUnit.SECONDS);
+    static final Histogram batchSizes = Metrics.newHistogram(ChannelState.class, "writeBatchSize", true);
+    static final Counter headerBytesSaved = Metrics.newCounter(ChannelState.class, "headerBytesSaved");
+
+    /* max frames written to a channel per flush; larger backlogs are split across event loop iterations */
+    static final int MAX_BATCH = Parameter.intValue("meshy.channel.maxBatch", 256);
+    /* bulk frames are held back while netty has this many KB pending so control frames don't queue behind them */
+    static final int BULK_PENDING = Parameter.intValue("meshy.channel.bulkPending", 256) * 1024;
 
     public static final int MESHY_BYTE_OVERHEAD = 4 + 4 + 4;
 
-    protected static enum READMODE {
-        ReadType, ReadSession, ReadLength, ReadData
-    }
+    // payloads smaller than this are cheaper to copy than to wrap in a composite buffer
+    private static final int MIN_WRAP_BYTES = Parameter.intValue("meshy.channel.minWrap", 1024);
 
     private final ConcurrentMap<Integer, SessionHandler> targetHandlers = new ConcurrentHashMap<>();
     private final ConcurrentMap<Integer, SourceHandler> sourceHandlers = new ConcurrentHashMap<>();
+    // ordered executors of offloaded sessions on this channel
+    private final ConcurrentMap<SessionHandler, OrderedExecutor> handlerExecutors = new ConcurrentHashMap<>();
+    // frames waiting for the event loop and/or channel writability; drained only by the event loop
+    private final OutboundQueue<PendingWrite> outbound = new OutboundQueue<>();
+    private final Runnable drainTask = this::drainOutbound;
+    private final AtomicBoolean drainScheduled = new AtomicBoolean(false);
     private final Meshy meshy;
-    private final NioSocketChannel channel;
-
-    // internal buffer initialized when channel becomes active. Would be final, but can't reliably clean up
-    // every constructed instance (channelUnregistered is not well supported)
-    private ByteBuf buffer;
+    private final Channel channel;
 
-    // frame parsing state
-    private READMODE mode = READMODE.ReadType;
-    // last session id for which a handler was created on this channel. should always be > than the last
-    private int type;
-    private int session;
-    private int length;
+    // frame parsing state; holds partial frames between reads
+    private final FrameDecoder decoder;
 
-    // can be concurrently modified by the peering service; guarded by the connected channels sync
+    // can be concurrently modified by the peering service; guarded by the connected channels lock and indexed
+    // by the ChannelRegistry, which must be reindexed after they change
     private String name;
     private InetSocketAddress remoteAddress;
-
-    ChannelState(Meshy meshy, NioSocketChannel channel) {
+    // index of this connection among the striped connections to the same named peer (0 = primary)
+    private int stripe;
+    // optional services the named peer advertised while peering (see PeerService.FEATURES)
+    private int peerFeatures;
+
+    // header format of frames written to this channel, and the last session written in it (for v2 headers).
+    // only touched by the event loop
+    private int wireVersion = WireFormat.V1;
+    private int lastSentSession;
+    private long savedBytes;
+    private final FrameCompressor compressor = new FrameCompressor();
+    private final TrafficCounters traffic = new TrafficCounters();
+    // bytes written since the mesh (and its meters) were last told; only touched by the event loop
+    private long unreportedSent;
+    private final Runnable reportSent = this::reportSent;
+    // bytes read since the mesh was last told, which it is once per read burst; only touched by the event loop
+    private long unreportedRecv;
+
+    ChannelState(Meshy meshy, Channel channel) {
         this.meshy = meshy;
         this.channel = channel;
+        this.decoder = new FrameDecoder(this::receiveFrame);
     }
 
     @Override public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
@@ -96,6 +120,15 @@ public class ChannelState extends ChannelDuplexHandler {
         }
     }
 
+    @Override public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        if (unreportedRecv > 0) {
+            long bytes = unreportedRecv;
+            unreportedRecv = 0;
+            meshy.recvBytes((int) Math.min(bytes, Integer.MAX_VALUE));
+        }
+        super.channelReadComplete(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         meshy.updateLastEventTime();
@@ -104,8 +137,13 @@ public class ChannelState extends ChannelDuplexHandler {
     }
 
     @Override public void channelActive(ChannelHandlerContext ctx) {
-        buffer = ctx.alloc().buffer(16384);
         meshy.updateLastEventTime();
+        if (WireFormat.VERSION > WireFormat.V1) {
+            ByteBuf hello = allocateSendBuffer(MeshyConstants.KEY_EXISTING, WireFormat.HELLO_SESSION, 8);
+            hello.writeInt(WireFormat.VERSION);
+            hello.writeInt(WireFormat.FEATURE_DEFLATE);
+            send(hello, null, 8);
+        }
         channelConnected();
         meshy.channelConnected(ctx.channel(), this);
     }
@@ -116,7 +154,8 @@ public class ChannelState extends ChannelDuplexHandler {
             channelClosed();
             meshy.channelClosed(ctx.channel(), this);
         } finally {
-            buffer.release();
+            discardOutbound();
+            decoder.release();
         }
     }
 
@@ -124,12 +163,14 @@ public class ChannelState extends ChannelDuplexHandler {
         return MoreObjects.toStringHelper(this)
                 .add("targets", targetHandlers.size())
                 .add("sources", sourceHandlers.size())
+                .add("outbound", outbound.size())
                 .add("name", name)
                 .add("remoteAddress", remoteAddress)
-                .add("mode", mode)
-                .add("type", type)
-                .add("session", session)
-                .add("length", length)
+                .add("stripe", stripe)
+                .add("peerFeatures", peerFeatures)
+                .add("wireVersion", wireVersion)
+                .add("compressing", compressor.isEnabled())
+                .add("decoder", decoder)
                 .add("channel", channel)
                 .add("master", meshy.getUUID());
     }
@@ -149,74 +190,274 @@ public class ChannelState extends ChannelDuplexHandler {
         }
     }
 
+    /**
+     * Queues a frame for writing without blocking the caller. Frames are written in order by this channel's
+     * event loop whenever the channel is writable; while it is not, they wait in the outbound queue and are
+     * resumed by {@link #channelWritabilityChanged}. The watcher is told once the write completes.
+     * <p/>
+     * Frames queued by any number of threads before the event loop gets to them are written as one batch
+     * (of at most {@link #MAX_BATCH} frames) with a single flush.
+     *
+     * @return false if the channel is already closed (the buffer is released and the watcher notified)
+     */
     public boolean send(final ByteBuf sendBuffer, final SendWatcher watcher, final int reportBytes) {
-        int attempts = 1;
-        while (channel.isActive()) {
-            final boolean inEventLoop = channel.eventLoop().inEventLoop();
-            // if this thread is the io loop for this channel: make sure it is allowed to do writes
-            if (inEventLoop && !channel.isWritable()) {
-                channel.unsafe().forceFlush();
+        return send(sendBuffer, watcher, reportBytes, false);
+    }
+
+    /**
+     * @param bulk true if the frame carries bulk data that should yield to control frames on this channel.
+     *             see {@link OutboundQueue}
+     */
+    public boolean send(final ByteBuf sendBuffer, final SendWatcher watcher, final int reportBytes, boolean bulk) {
+        PendingWrite write = new PendingWrite(sendBuffer, watcher, reportBytes, bulk);
+        if (!channel.isActive()) {
+            write.discard();
+            return false;
+        }
+        if (!channel.isWritable()) {
+            writeDeferrals.incrementAndGet();
+            deferMeter.mark();
+        }
+        outbound.add(write);
+        // if the event loop is gone, so are any other threads that could drain this queue
+        if (!scheduleDrain()) {
+            discardOutbound();
+        }
+        return true;
+    }
+
+    @Override public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            drainOutbound();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    /* at most one drain task is queued on the event loop at a time, however many threads are sending */
+    private boolean scheduleDrain() {
+        if (drainScheduled.compareAndSet(false, true)) {
+            try {
+                channel.eventLoop().execute(drainTask);
+            } catch (RejectedExecutionException ex) {
+                drainScheduled.set(false);
+                log.debug("{} event loop shut down with pending writes", this, ex);
+                return false;
             }
-            if (channel.isWritable()
-                || (attempts >= 500)
-                // if this thread is the io loop for this channel: block writes only based on the actual socket queue;
-                // channel writability factors in queued writes from other threads that we can't get to until we finish.
-                || (inEventLoop && (channel.unsafe().outboundBuffer().size() < estimateMaxQueued(sendBuffer)))) {
-                if (attempts >= 500) {
-                    log.warn("Forcing write despite channel being backed up to prevent possible distributed deadlock");
-                }
-                ChannelFuture future = channel.writeAndFlush(sendBuffer);
-                future.addListener(ignored -> {
-                    meshy.sentBytes(reportBytes);
-                    if (watcher != null) {
-                        watcher.sendFinished(reportBytes);
-                    }
-                });
-                return true;
+        }
+        return true;
+    }
+
+    /* must only be called from the channel's event loop */
+    private void drainOutbound() {
+        // cleared first so that frames queued while draining schedule another pass
+        drainScheduled.set(false);
+        if (!channel.isActive()) {
+            discardOutbound();
+            return;
+        }
+        int batch = 0;
+        while ((batch < MAX_BATCH) && channel.isWritable()) {
+            PendingWrite write = outbound.poll(pendingWriteBytes() < BULK_PENDING);
+            if (write == null) {
+                break;
+            }
+            if (wireVersion >= WireFormat.V2) {
+                writeV2(write);
             } else {
-                if ((attempts % 100) == 0) {
-                    ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
-                    if (outboundBuffer != null) {
-                        log.info("Sleeping write because channel is unwritable. Attempt: {}, Pending Bytes: {}, State: {}",
-                                 attempts, outboundBuffer.totalPendingWriteBytes(), this);
+                channel.write(write.buffer).addListener(write);
+            }
+            batch += 1;
+        }
+        if (batch > 0) {
+            channel.flush();
+            batchSizes.update(batch);
+        }
+        // yield to other channels on this loop rather than draining an arbitrarily long queue in one go
+        if ((batch == MAX_BATCH) && !outbound.isEmpty() && channel.isWritable()) {
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * Frames are always built with v1 headers (a frame may be broadcast to channels speaking either version), so
+     * the header is re-encoded here. Small payloads are copied behind the new header to keep one buffer per frame.
+     */
+    private void writeV2(PendingWrite write) {
+        ByteBuf frame = write.buffer;
+        int start = frame.readerIndex();
+        int type = frame.getInt(start);
+        int session = frame.getInt(start + 4);
+        int length = frame.getInt(start + 8);
+        frame.skipBytes(WireFormat.V1_HEADER_BYTES);
+        boolean copy = length < MIN_WRAP_BYTES;
+        ByteBuf header = channel.alloc().buffer(WireFormat.V2_MAX_HEADER_BYTES + (copy ? length : 0));
+        WireFormat.writeV2Header(header, type, session, length, lastSentSession);
+        lastSentSession = session;
+        int saved = WireFormat.V1_HEADER_BYTES - header.readableBytes();
+        savedBytes += saved;
+        headerBytesSaved.inc(saved);
+        if (copy) {
+            header.writeBytes(frame);
+            frame.release();
+            channel.write(header).addListener(write);
+        } else {
+            channel.write(header, channel.voidPromise());
+            channel.write(frame).addListener(write);
+        }
+    }
+
+    /* a hello from the other side: switch to the highest wire version and the features both sides support */
+    private void receiveHello(ByteBuf frame) {
+        if (frame.readableBytes() >= 4) {
+            int version = Math.max(WireFormat.V1, Math.min(WireFormat.VERSION, frame.readInt()));
+            int features = (frame.readableBytes() >= 4) ? frame.readInt() : 0;
+            log.debug("{} wire version {} features {}", this, version, features);
+            wireVersion = version;
+            if ((version >= WireFormat.V2) && ((features & WireFormat.FEATURE_DEFLATE) != 0) && meshy.compressFrames) {
+                compressor.enable();
+            }
+        }
+        frame.skipBytes(frame.readableBytes());
+    }
+
+    FrameCompressor compressor() {
+        return compressor;
+    }
+
+    /**
+     * @param frame a frame built by {@link #allocateSendBuffer} and filled in by the caller. ownership passes to
+     *              this method
+     * @return the frame to send: the same one, or a compressed copy if this channel compresses payloads
+     */
+    ByteBuf compress(ByteBuf frame) {
+        return compressor.compress(frame, channel.alloc());
+    }
+
+    int wireVersion() {
+        return wireVersion;
+    }
+
+    /** header bytes saved by v2 framing of the frames written to this channel */
+    long headerBytesSaved() {
+        return savedBytes;
+    }
+
+    private void discardOutbound() {
+        PendingWrite write;
+        while ((write = outbound.poll(true)) != null) {
+            write.discard();
+        }
+    }
+
+    private long pendingWriteBytes() {
+        ChannelOutboundBuffer outboundBuffer = channel.unsafe().outboundBuffer();
+        return (outboundBuffer != null) ? outboundBuffer.totalPendingWriteBytes() : 0;
+    }
+
+    private final class PendingWrite implements ChannelFutureListener, OutboundQueue.Frame {
+
+        private final ByteBuf buffer;
+        @Nullable private final SendWatcher watcher;
+        private final int reportBytes;
+        private final int session;
+        private final boolean bulk;
+        @Nullable private final TrafficCounters handlerTraffic;
+        // charged to the outbound budget until the write completes or is discarded
+        private final int budgeted;
+
+        PendingWrite(ByteBuf buffer, @Nullable SendWatcher watcher, int reportBytes, boolean bulk) {
+            this.buffer = buffer;
+            this.budgeted = buffer.readableBytes();
+            OutboundBudget.global().acquire(budgeted);
+            this.watcher = watcher;
+            this.reportBytes = reportBytes;
+            this.session = buffer.getInt(buffer.readerIndex() + 4);
+            this.bulk = bulk;
+            // responses are sent by targets, everything else by sources
+            int type = buffer.getInt(buffer.readerIndex()) & ~WireFormat.TYPE_COMPRESSED;
+            SessionHandler sender = (type == MeshyConstants.KEY_RESPONSE) ? targetHandlers.get(session)
+                                                                           : sourceHandlers.get(session);
+            this.handlerTraffic = (sender != null) ? sender.handlerTraffic() : null;
+        }
+
+        @Override public int session() {
+            return session;
+        }
+
+        @Override public boolean isBulk() {
+            return bulk;
+        }
+
+        @Override public void operationComplete(ChannelFuture future) {
+            OutboundBudget.global().release(budgeted);
+            traffic.sent(reportBytes);
+            if (handlerTraffic != null) {
+                handlerTraffic.sent(reportBytes);
+            }
+            if (reportBytes > 0) {
+                unreportedSent += reportBytes;
+                // one report per burst of completions rather than one per frame
+                if (unreportedSent == reportBytes) {
+                    try {
+                        channel.eventLoop().execute(reportSent);
+                    } catch (RejectedExecutionException ex) {
+                        reportSent();
                     }
                 }
-                sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
-                writeSleeps.incrementAndGet();
-                sleepMeter.mark();
             }
-            attempts += 1;
-        }
-        if (reportBytes > 0) {
-            /**
-             * if bytes == 0 then it's a sendComplete() and
-             * there are plenty of legit cases when a client would
-             * disconnect before sendComplete() makes it back. best
-             * example is StreamService when EOF framing tells the
-             * client we're done before sendComplete() framing does.
-             */
-            log.debug("{} writing [{}] to dead channel", this, reportBytes);
             if (watcher != null) {
+                watcher.sendFinished(reportBytes);
+            }
+            // bulk frames held back for control traffic resume as earlier writes leave the socket buffer
+            if (!outbound.isEmpty()) {
+                scheduleDrain();
+            }
+        }
+
+        void discard() {
+            OutboundBudget.global().release(budgeted);
+            if (reportBytes > 0) {
                 /**
-                 * for accounting, rate limiting reasons, we have to report these as sent.
-                 * no need to report 0 bytes since it's an accounting no-op.
+                 * if bytes == 0 then it's a sendComplete() and
+                 * there are plenty of legit cases when a client would
+                 * disconnect before sendComplete() makes it back. best
+                 * example is StreamService when EOF framing tells the
+                 * client we're done before sendComplete() framing does.
                  */
-                watcher.sendFinished(reportBytes);
+                log.debug("{} writing [{}] to dead channel", ChannelState.this, reportBytes);
+                if (watcher != null) {
+                    /**
+                     * for accounting, rate limiting reasons, we have to report these as sent.
+                     * no need to report 0 bytes since it's an accounting no-op.
+                     */
+                    watcher.sendFinished(reportBytes);
+                }
             }
+            buffer.release();
         }
-        sendBuffer.release();
-        return false;
     }
 
-    // This estimation is cheap / easy, and should keep pending writes bounded by 2 * high water mark
-    private int estimateMaxQueued(ByteBuf sendBuffer) {
-        return max(1, min(64, (channel.config().getWriteBufferHighWaterMark() / sendBuffer.readableBytes()) >> 6));
+    private void reportSent() {
+        long bytes = unreportedSent;
+        unreportedSent = 0;
+        meshy.sentBytes((int) Math.min(bytes, Integer.MAX_VALUE));
+    }
+
+    /** frame traffic of this channel */
+    public TrafficCounters traffic() {
+        return traffic;
     }
 
     public String getName() {
         return name;
     }
 
+    /** @return true once this is a channel to a named server peer, rather than a client or a server still peering */
+    boolean isNamedPeer() {
+        String current = name;
+        return (current != null) && !current.startsWith(MeshyServer.TEMP_UUID_PREFIX);
+    }
+
     public void setName(String name) {
         log.debug("{} setName={}", this, name);
         this.name = name;
@@ -230,12 +471,51 @@ public class ChannelState extends ChannelDuplexHandler {
         this.remoteAddress = addr;
     }
 
-    public NioSocketChannel getChannel() {
+    public int getStripe() {
+        return stripe;
+    }
+
+    public void setStripe(int stripe) {
+        this.stripe = stripe;
+    }
+
+    /** @return true if the named peer advertised the feature (a PeerService.FEATURE_* flag) while peering */
+    public boolean hasPeerFeature(int feature) {
+        return (peerFeatures & feature) != 0;
+    }
+
+    public void setPeerFeatures(int peerFeatures) {
+        this.peerFeatures = peerFeatures;
+    }
+
+    /**
+     * @return the state attached to a meshy channel, or null if the channel's pipeline has been torn down
+     */
+    @Nullable static ChannelState of(Channel channel) {
+        return channel.pipeline().get(ChannelState.class);
+    }
+
+    /**
+     * a socket channel, a local channel to another mesh in this vm (see {@link LocalTransport}), or a unix domain
+     * socket channel to a client on this host (see {@link UnixTransport})
+     */
+    public Channel getChannel() {
         return channel;
     }
 
+    /**
+     * @return the remote address of the channel, the address of the server for local channels to a server in this
+     * vm, {@link LocalTransport#LOOPBACK} for other local and unix channels, or null if the channel is not connected
+     */
     @Nullable public InetSocketAddress getChannelRemoteAddress() {
-        return channel.remoteAddress();
+        SocketAddress remote = channel.remoteAddress();
+        return (remote != null) ? LocalTransport.inetAddress(remote) : null;
+    }
+
+    /** like {@link #getChannelRemoteAddress()}, for the local end of the channel */
+    @Nullable public InetSocketAddress getChannelLocalAddress() {
+        SocketAddress local = channel.localAddress();
+        return (local != null) ? LocalTransport.inetAddress(local) : null;
     }
 
     public ChannelMaster getChannelMaster() {
@@ -244,6 +524,8 @@ public class ChannelState extends ChannelDuplexHandler {
 
     public void addSourceHandler(int sessionID, SourceHandler handler) {
         sourceHandlers.put(sessionID, handler);
+        traffic.sessionStarted();
+        handler.handlerTraffic().sessionStarted();
         if (sourceHandlers.size() >= excessiveSources) {
             log.debug("excessive sources reached: {}", sourceHandlers.size());
             if (log.isTraceEnabled()) {
@@ -266,101 +548,131 @@ public class ChannelState extends ChannelDuplexHandler {
     public void channelClosed() throws Exception {
         log.debug("{} channel:close [{}]", this, this.hashCode());
         for (Map.Entry<Integer, SessionHandler> entry : targetHandlers.entrySet()) {
-            entry.getValue().receiveComplete(this, entry.getKey());
+            closeSession(entry.getValue(), entry.getKey());
         }
         for (Map.Entry<Integer, SourceHandler> entry : sourceHandlers.entrySet()) {
-            entry.getValue().receiveComplete(this, entry.getKey());
+            closeSession(entry.getValue(), entry.getKey());
+        }
+        handlerExecutors.clear();
+    }
+
+    private void closeSession(SessionHandler handler, int session) throws Exception {
+        OrderedExecutor executor = handlerExecutors.get(handler);
+        if (executor == null) {
+            handler.receiveComplete(this, session);
+            return;
         }
+        // behind any frames still queued for the session
+        executor.execute(() -> {
+            try {
+                handler.receiveComplete(this, session);
+            } catch (Exception ex) {
+                log.error("suppressing handler exception during receive complete", ex);
+            }
+        });
     }
 
     public void messageReceived(ByteBuf in) {
         log.trace("{} recv msg={}", this, in);
-        meshy.recvBytes(in.readableBytes());
-        buffer.writeBytes(in);
-        in.release();
-        loop:
-        while (true) {
-            switch (mode) {
-                // zero signifies a reply to a source
-                case ReadType:
-                    if (buffer.readableBytes() < 4) {
-                        break loop;
-                    }
-                    type = buffer.readInt();
-                    mode = READMODE.ReadSession;
-                    continue;
-                case ReadSession:
-                    if (buffer.readableBytes() < 4) {
-                        break loop;
-                    }
-                    session = buffer.readInt();
-                    mode = READMODE.ReadLength;
-                    continue;
-                    // zero length signifies end of session
-                case ReadLength:
-                    if (buffer.readableBytes() < 4) {
-                        break loop;
-                    }
-                    length = buffer.readInt();
-                    mode = READMODE.ReadData;
-                    continue;
-                case ReadData:
-                    int readable = buffer.readableBytes();
-                    if (readable < length) {
-                        break loop;
-                    }
-                    SessionHandler handler = null;
-                    if (type == MeshyConstants.KEY_RESPONSE) {
-                        handler = sourceHandlers.get(session);
-                    } else {
-                        handler = targetHandlers.get(session);
-                        if ((handler == null) && (meshy instanceof MeshyServer)) {
-                            if (type != MeshyConstants.KEY_EXISTING) {
-                                handler = meshy.createHandler(type);
-                                ((TargetHandler) handler).setContext((MeshyServer) meshy, this, session);
-                                log.debug("{} createHandler {} session={}", this, handler, session);
-                                if (targetHandlers.put(session, handler) != null) {
-                                    log.debug("clobbered session {} with {}", session, handler);
-                                }
-                                if (targetHandlers.size() >= excessiveTargets) {
-                                    log.debug("excessive targets reached, current targetHandlers = {}", targetHandlers.size());
-                                    if (log.isTraceEnabled()) {
-                                        debugSessions();
-                                    }
-                                }
-                            } else {
-                                log.debug("Ignoring bad handler creation request for session {} type {}",
-                                        session, type); // happens with fast streams and send-mores
-                            }
-                        }
-                    }
-                    if (handler != null) {
-                        if (length == 0) {
-                            sessionComplete(handler, type, session);
-                        } else {
-                            try {
-                                handler.receive(this, session, length, buffer);
-                            } catch (Exception ex) {
-                                log.error("suppressing handler exception during receive; trying receiveComplete", ex);
-                                sessionComplete(handler, type, session);
-                            }
-                        }
+        unreportedRecv += in.readableBytes();
+        decoder.decode(in);
+    }
+
+    // zero type signifies a reply to a source; zero length signifies end of session
+    private void receiveFrame(int type, int session, int length, ByteBuf frame) {
+        if ((type & WireFormat.TYPE_COMPRESSED) != 0) {
+            ByteBuf inflated = compressor.inflate(frame, channel.alloc());
+            try {
+                receiveFrame(type & ~WireFormat.TYPE_COMPRESSED, session, inflated.readableBytes(), inflated);
+            } finally {
+                inflated.release();
+            }
+            return;
+        }
+        traffic.received(length);
+        if ((session == WireFormat.HELLO_SESSION) && (type == MeshyConstants.KEY_EXISTING)) {
+            receiveHello(frame);
+            return;
+        }
+        SessionHandler handler = null;
+        if (type == MeshyConstants.KEY_RESPONSE) {
+            handler = sourceHandlers.get(session);
+        } else {
+            handler = targetHandlers.get(session);
+            if ((handler == null) && (meshy instanceof MeshyServer)) {
+                if (type != MeshyConstants.KEY_EXISTING) {
+                    handler = meshy.createHandler(type);
+                    ((TargetHandler) handler).setContext((MeshyServer) meshy, this, session);
+                    log.debug("{} createHandler {} session={}", this, handler, session);
+                    traffic.sessionStarted();
+                    handler.handlerTraffic().sessionStarted();
+                    if (targetHandlers.put(session, handler) != null) {
+                        log.debug("clobbered session {} with {}", session, handler);
                     }
-                    int read = readable - buffer.readableBytes();
-                    if (read < length) {
-                        if ((handler != null) || log.isDebugEnabled()) {
-                            log.debug("{} recv type={} handler={} ssn={} did not consume all bytes (read={} of {})",
-                                    this, type, handler, session, read, length);
+                    if (targetHandlers.size() >= excessiveTargets) {
+                        log.debug("excessive targets reached, current targetHandlers = {}", targetHandlers.size());
+                        if (log.isTraceEnabled()) {
+                            debugSessions();
                         }
-                        buffer.skipBytes(length - read);
                     }
-                    mode = READMODE.ReadType;
-                    continue;
-                default:
-                    throw new RuntimeException("invalid state");
+                } else {
+                    log.debug("Ignoring bad handler creation request for session {} type {}",
+                            session, type); // happens with fast streams and send-mores
+                }
             }
         }
-        buffer.discardReadBytes();
+        if (handler != null) {
+            handler.handlerTraffic().received(length);
+        }
+        if (handler == null) {
+            if (frame.isReadable() && log.isDebugEnabled()) {
+                log.debug("{} recv type={} handler=null ssn={} dropped {} bytes", this, type, session, length);
+            }
+        } else if (Meshy.handlerExecution(handler.getClass()) == HandlerExecution.INLINE) {
+            deliverFrame(handler, type, session, length, frame);
+        } else {
+            offloadFrame(handler, type, session, length, frame);
+        }
+    }
+
+    private void deliverFrame(SessionHandler handler, int type, int session, int length, ByteBuf frame) {
+        if (length == 0) {
+            sessionComplete(handler, type, session);
+        } else {
+            try {
+                handler.receive(this, session, length, frame);
+            } catch (Exception ex) {
+                log.error("suppressing handler exception during receive; trying receiveComplete", ex);
+                sessionComplete(handler, type, session);
+            }
+        }
+        if (frame.isReadable()) {
+            log.debug("{} recv type={} handler={} ssn={} did not consume all bytes (read={} of {})",
+                    this, type, handler, session, length - frame.readableBytes(), length);
+        }
+    }
+
+    /* hand the frame to the session's ordered executor; the frame stays retained until the handler has run */
+    private void offloadFrame(SessionHandler handler, int type, int session, int length, ByteBuf frame) {
+        OrderedExecutor executor = handlerExecutors.get(handler);
+        if (executor == null) {
+            executor = new OrderedExecutor(Meshy.handlerPool);
+            handlerExecutors.put(handler, executor);
+        }
+        ByteBuf retained = frame.retain();
+        try {
+            executor.execute(() -> {
+                try {
+                    deliverFrame(handler, type, session, length, retained);
+                } finally {
+                    retained.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            retained.release();
+            log.warn("{} handler pool rejected frame for session {}; completing session", this, session, ex);
+            sessionComplete(handler, type, session);
+        }
     }
 
     public boolean sessionComplete(SessionHandler handler, int sessionType, int sessionId) {
@@ -371,6 +683,7 @@ public class ChannelState extends ChannelDuplexHandler {
             wasRemoved = targetHandlers.remove(sessionId) != null;
         }
         if (wasRemoved) {
+            handlerExecutors.remove(handler);
             log.debug("{} sessionComplete type={} session={}", this, sessionType, sessionId);
             try {
                 handler.receiveComplete(this, sessionId);
@@ -388,7 +701,7 @@ public class ChannelState extends ChannelDuplexHandler {
     public ByteBuf allocateSendBuffer(int type, int session, byte[] data, int off, int len) {
         ByteBuf sendBuffer = allocateSendBuffer(type, session, len);
         sendBuffer.writeBytes(data, off, len);
-        return sendBuffer;
+        return compress(sendBuffer);
     }
 
     public ByteBuf allocateSendBuffer(int type, int session, int length) {
@@ -399,12 +712,25 @@ public class ChannelState extends ChannelDuplexHandler {
         return sendBuffer;
     }
 
+    /**
+     * Frames {@code length} bytes of {@code from}, compressing them if this channel compresses payloads. Otherwise
+     * large payloads (eg. relayed stream data) are not copied; the returned buffer wraps a retained slice of
+     * {@code from} behind a separate header.
+     */
     public ByteBuf allocateSendBuffer(int type, int session, ByteBuf from, int length) {
-        ByteBuf sendBuffer = channel.alloc().buffer(MESHY_BYTE_OVERHEAD + length);
-        sendBuffer.writeInt(type);
-        sendBuffer.writeInt(session);
-        sendBuffer.writeInt(length);
-        sendBuffer.writeBytes(from, length);
+        if ((length < MIN_WRAP_BYTES) || compressor.isEnabled()) {
+            ByteBuf sendBuffer = allocateSendBuffer(type, session, length);
+            sendBuffer.writeBytes(from, length);
+            return compress(sendBuffer);
+        }
+        ByteBuf header = channel.alloc().buffer(MESHY_BYTE_OVERHEAD);
+        header.writeInt(type);
+        header.writeInt(session);
+        header.writeInt(length);
+        CompositeByteBuf sendBuffer = channel.alloc().compositeBuffer(2);
+        sendBuffer.addComponent(header);
+        sendBuffer.addComponent(from.readSlice(length).retain());
+        sendBuffer.writerIndex(MESHY_BYTE_OVERHEAD + length);
         return sendBuffer;
     }
 }
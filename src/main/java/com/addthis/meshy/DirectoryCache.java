@@ -0,0 +1,290 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import javax.annotation.Nullable;
+
+import java.io.IOException;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import com.addthis.basis.util.Parameter;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Directory listings and {@link LocalFileHandler} decisions of the {@link LocalFileSystem}s in this VM, so that finds
+ * re-running the same globs do not list (and probe) the same directories over and over.
+ * <p/>
+ * An entry is used only while its directory's mtime is unchanged, which costs one stat per lookup instead of a
+ * listing. Entries loaded within {@code meshy.dirCache.mtimeSlack} ms of their directory's mtime are not trusted
+ * (a change in the same mtime tick would go unnoticed), and up to {@code meshy.dirCache.watches} directories are
+ * also watched so that changes drop their entries before the next lookup.
+ * <p/>
+ * Bounded by the estimated heap used by the listings, {@code meshy.dirCache.size} MB; 0 disables the cache.
+ */
+final class DirectoryCache {
+
+    private static final Logger log = LoggerFactory.getLogger(DirectoryCache.class);
+
+    static final long MAX_WEIGHT = Parameter.intValue("meshy.dirCache.size", 64) * 1024L * 1024L;
+    static final int MAX_WATCHES = Parameter.intValue("meshy.dirCache.watches", 4096);
+    static final long MTIME_SLACK = Parameter.intValue("meshy.dirCache.mtimeSlack", 2000);
+
+    /* rough heap cost of an entry, and of each child path besides its bytes (object headers, array slot) */
+    private static final int ENTRY_BYTES = 160;
+    private static final int CHILD_BYTES = 64;
+
+    static final DirectoryCache instance = new DirectoryCache(MAX_WEIGHT, MAX_WATCHES);
+
+    @Nullable private final Cache<Path, Listing> cache;
+    private final ConcurrentMap<Path, WatchKey> watches = new ConcurrentHashMap<>();
+    private final int maxWatches;
+    @Nullable private final WatchService watcher;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder weight = new LongAdder();
+
+    DirectoryCache(long maxWeight, int maxWatches) {
+        this.maxWatches = maxWatches;
+        if (maxWeight <= 0) {
+            cache = null;
+            watcher = null;
+            return;
+        }
+        cache = CacheBuilder.newBuilder()
+                            .maximumWeight(maxWeight)
+                            .weigher((Path dir, Listing listing) -> listing.weight)
+                            .removalListener(this::removed)
+                            .build();
+        watcher = (maxWatches > 0) ? newWatchService() : null;
+        if (watcher != null) {
+            Thread thread = new Thread(this::watch, "meshy-dirCache-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Nullable private static WatchService newWatchService() {
+        try {
+            return FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException ex) {
+            log.warn("directory cache is validated by mtime only: no watch service", ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return the listing of a directory, or null if it is not a directory (or the cache is disabled). the
+     * children are only listed on request, see {@link #withChildren}
+     */
+    @Nullable Listing get(Path dir, LocalFileHandler[] handlers) {
+        if (cache == null) {
+            return null;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(dir, BasicFileAttributes.class);
+        } catch (IOException ex) {
+            cache.invalidate(dir);
+            return null;
+        }
+        if (!attributes.isDirectory()) {
+            return null;
+        }
+        long mtime = attributes.lastModifiedTime().toMillis();
+        Listing listing = cache.getIfPresent(dir);
+        if ((listing != null) && (listing.mtime == mtime) && (listing.handlers == handlers)) {
+            hits.increment();
+            return listing;
+        }
+        misses.increment();
+        LocalFileHandler handler = null;
+        for (LocalFileHandler candidate : handlers) {
+            if (candidate.canHandleDirectory(dir.toFile())) {
+                handler = candidate;
+                break;
+            }
+        }
+        listing = new Listing(handlers, handler, mtime, System.currentTimeMillis(), null);
+        if (listing.isStable()) {
+            put(dir, listing);
+        }
+        return listing;
+    }
+
+    /**
+     * @return the listing with its children listed, loading them (and caching the result) if they were not yet
+     */
+    Listing withChildren(Path dir, Listing listing) throws IOException {
+        if (listing.children != null) {
+            return listing;
+        }
+        Path[] children;
+        try (Stream<Path> files = Files.list(dir)) {
+            children = files.toArray(Path[]::new);
+        } catch (NoSuchFileException ex) {
+            children = new Path[0];
+        }
+        Listing listed = new Listing(listing.handlers, null, listing.mtime, listing.loaded, children);
+        if ((cache != null) && listed.isStable()) {
+            put(dir, listed);
+        }
+        return listed;
+    }
+
+    private void put(Path dir, Listing listing) {
+        cache.put(dir, listing);
+        weight.add(listing.weight);
+        if ((watcher != null) && (watches.size() < maxWatches) && !watches.containsKey(dir)) {
+            try {
+                WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                            StandardWatchEventKinds.ENTRY_DELETE,
+                                            StandardWatchEventKinds.ENTRY_MODIFY);
+                // registering a directory twice returns the same key
+                watches.putIfAbsent(dir, key);
+            } catch (IOException | ClosedWatchServiceException ex) {
+                log.debug("not watching {}", dir, ex);
+            }
+        }
+    }
+
+    private void removed(RemovalNotification<Path, Listing> removal) {
+        weight.add(-removal.getValue().weight);
+        if (removal.getCause() == RemovalCause.REPLACED) {
+            return;
+        }
+        if (removal.wasEvicted()) {
+            evictions.increment();
+        } else {
+            invalidations.increment();
+        }
+        WatchKey key = watches.remove(removal.getKey());
+        if (key != null) {
+            key.cancel();
+        }
+    }
+
+    /* drops the entries of directories as the watch service reports changes to them */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            key.pollEvents();
+            log.trace("invalidating changed {}", dir);
+            cache.invalidate(dir);
+            if (!key.reset()) {
+                watches.remove(dir, key);
+            }
+        }
+    }
+
+    void invalidateAll() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    long invalidations() {
+        return invalidations.sum();
+    }
+
+    long size() {
+        return (cache != null) ? cache.size() : 0;
+    }
+
+    /** estimated heap used by cached listings */
+    long weight() {
+        return weight.sum();
+    }
+
+    static final class Listing {
+
+        /* the handlers the decision was made against; entries are dropped when the handlers are reloaded */
+        final LocalFileHandler[] handlers;
+        /* the handler of this directory, or null if it is a plain directory */
+        @Nullable final LocalFileHandler handler;
+        final long mtime;
+        final long loaded;
+        /* null until listed; always null for directories with a handler, which list themselves */
+        @Nullable final Path[] children;
+        final int weight;
+
+        Listing(LocalFileHandler[] handlers, @Nullable LocalFileHandler handler, long mtime, long loaded,
+                @Nullable Path[] children) {
+            this.handlers = handlers;
+            this.handler = handler;
+            this.mtime = mtime;
+            this.loaded = loaded;
+            this.children = children;
+            int bytes = ENTRY_BYTES;
+            if (children != null) {
+                for (Path child : children) {
+                    bytes += CHILD_BYTES + child.toString().length();
+                }
+            }
+            this.weight = bytes;
+        }
+
+        /* a listing taken in the same mtime tick as the last change could miss a change made right after it */
+        boolean isStable() {
+            return (loaded - mtime) > MTIME_SLACK;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DirectoryCache{size=" + size() + ",weight=" + weight() + ",hits=" + hits() + ",misses=" + misses() +
+               ",evictions=" + evictions() + ",invalidations=" + invalidations() + "}";
+    }
+}
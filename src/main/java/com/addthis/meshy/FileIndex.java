@@ -0,0 +1,806 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import javax.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import com.addthis.basis.util.Parameter;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Index of the names, sizes and mtimes of every file under the root of a {@link LocalFileSystem}, so that finds
+ * list directories without touching the file system. Enabled by setting {@code meshy.index.dir} to a directory
+ * for the index files.
+ * <p/>
+ * The index is a file of fixed size entry records, grouped by directory and sorted by name, then their names, then
+ * fixed size directory records sorted by path. It is written as the tree is walked, with only the directory records
+ * held in memory, and is memory mapped (in segments of up to 1 GB) and searched in place. Every indexed
+ * directory is watched, and the changes of {@code meshy.index.changeDelay} ms are applied together to an in-memory
+ * overlay: directories with created or deleted children are re-listed, while modified children (eg. files being
+ * written) only have their own entries updated. The index is rebuilt once the overlay holds
+ * {@code meshy.index.rebuildDirs} directories.
+ * <p/>
+ * A server maps the index left by its last run at startup, while it builds a fresh one in the background. That
+ * index has missed changes, so its directories are only used while their mtimes are unchanged (one stat instead
+ * of a listing and a stat per child), and the same goes for an index of more than {@code meshy.index.watches}
+ * directories, which cannot all be watched. Writing a file does not change the mtime of its directory, so such
+ * an index only lists names: its entries have unknown (-1) sizes and mtimes, which are asked from the files.
+ * <p/>
+ * Directories with a {@link LocalFileHandler} (eg. muxy directories) are not indexed. Lookups of directories that
+ * are not indexed return null and are answered by the live file system, as are all lookups while the index is
+ * stale: after the watch service overflows, or, for an index that is not watched, once it is older than
+ * {@code meshy.index.maxAge} seconds (it is then rebuilt that often).
+ */
+final class FileIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(FileIndex.class);
+
+    static final int MAX_WATCHES = Parameter.intValue("meshy.index.watches", 65536);
+    static final long MAX_AGE = Parameter.intValue("meshy.index.maxAge", 300) * 1000L;
+    static final int REBUILD_DIRS = Parameter.intValue("meshy.index.rebuildDirs", 1000);
+    static final int CHANGE_DELAY = Parameter.intValue("meshy.index.changeDelay", 100);
+
+    static final Meter hitMeter = Metrics.newMeter(FileIndex.class, "lookups", "hits", TimeUnit.SECONDS);
+    static final Meter missMeter = Metrics.newMeter(FileIndex.class, "lookups", "misses", TimeUnit.SECONDS);
+
+    static final int MAGIC = 0x4d494458; // MIDX
+    static final int VERSION = 2;
+    /* magic, version, build time, directory count, entry count, start of the names, start of the directories */
+    static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 8 + 8 + 8;
+    /* path offset, first entry, entry count, mtime */
+    static final int DIR_BYTES = 8 + 8 + 4 + 8;
+    /* name offset, flags, size, mtime */
+    static final int ENTRY_BYTES = 8 + 4 + 8 + 8;
+    static final int FLAG_DIR = 1;
+
+    private final Path root;
+    private final Path file;
+    private final Supplier<LocalFileHandler[]> handlers;
+    private final ScheduledExecutorService executor;
+    @Nullable private final WatchService watcher;
+    private final Map<WatchKey, String> watches = new ConcurrentHashMap<>();
+    // directories re-listed since the index was built; only changed by the executor
+    private final ConcurrentMap<String, Entry[]> overlay = new ConcurrentHashMap<>();
+    /* overlay value of a directory that has to be listed live until it is indexed again */
+    private static final Entry[] UNINDEXED = new Entry[0];
+
+    // changes the watcher has seen and the executor has yet to apply: directories with created or deleted
+    // children, and the names of modified children by directory
+    private final Set<String> dirtyDirs = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<String, Set<String>> modified = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushPending = new AtomicBoolean(false);
+    private final AtomicBoolean rebuildPending = new AtomicBoolean(false);
+
+    @Nullable private volatile Snapshot snapshot;
+    private volatile boolean overflowed;
+    private volatile boolean closed;
+
+    private FileIndex(Path root, Path file, Supplier<LocalFileHandler[]> handlers) {
+        this.root = root;
+        this.file = file;
+        this.handlers = handlers;
+        this.executor = new ScheduledThreadPoolExecutor(
+                1, new ThreadFactoryBuilder().setNameFormat("meshy-index-%d").setDaemon(true).build());
+        this.watcher = newWatchService();
+        if (watcher != null) {
+            Thread thread = new Thread(this::watch, "meshy-index-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * @return the index of a file system root, or null if indexes are disabled
+     */
+    @Nullable static FileIndex open(File rootDir, Supplier<LocalFileHandler[]> handlers) {
+        String indexDir = Parameter.value("meshy.index.dir", null);
+        if ((indexDir == null) || indexDir.isEmpty()) {
+            return null;
+        }
+        Path root = rootDir.toPath().toAbsolutePath().normalize();
+        Path file = new File(indexDir, "meshy-" + Hashing.murmur3_128().hashString(root.toString(), UTF_8) + ".idx")
+                .toPath();
+        FileIndex index = new FileIndex(root, file, handlers);
+        try {
+            Files.createDirectories(file.getParent());
+            if (Files.isRegularFile(file)) {
+                index.snapshot = Snapshot.map(file, false);
+                log.info("mapped index of {} built {} ms ago with {} entries", root,
+                         System.currentTimeMillis() - index.snapshot.builtAt, index.snapshot.entryCount);
+            }
+        } catch (IOException | RuntimeException ex) {
+            log.warn("ignoring unreadable index {} of {}", file, root, ex);
+        }
+        index.scheduleRebuild();
+        index.executor.scheduleWithFixedDelay(index::checkAge, MAX_AGE, MAX_AGE, TimeUnit.MILLISECONDS);
+        return index;
+    }
+
+    @Nullable private static WatchService newWatchService() {
+        try {
+            return FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException ex) {
+            log.warn("file index is rebuilt every meshy.index.maxAge: no watch service", ex);
+            return null;
+        }
+    }
+
+    /**
+     * @return the path of a file under the root relative to it, or null if it is not under the root
+     */
+    @Nullable String relative(File file) {
+        Path path = file.toPath().toAbsolutePath().normalize();
+        return path.startsWith(root) ? root.relativize(path).toString() : null;
+    }
+
+    /**
+     * @param dir a path from {@link #relative}
+     * @return the children of the directory sorted by name, or null if it is not indexed or the index is stale.
+     * their sizes and mtimes are -1 (unknown) unless the index is watched
+     */
+    @Nullable Entry[] children(String dir) {
+        Snapshot current = snapshot;
+        if ((current == null) || closed || overflowed || (!current.watched && isOld(current))) {
+            missMeter.mark();
+            return null;
+        }
+        Entry[] children = overlay.get(dir);
+        if (children == UNINDEXED) {
+            children = null;
+        } else if (children == null) {
+            int index = current.findDir(dir);
+            children = ((index >= 0) && (current.watched || isUnchanged(current, index, dir))) ?
+                       current.children(index) : null;
+        }
+        if (children == null) {
+            missMeter.mark();
+            return null;
+        }
+        hitMeter.mark();
+        return current.watched ? children : withoutAttributes(children);
+    }
+
+    private static Entry[] withoutAttributes(Entry[] children) {
+        Entry[] names = new Entry[children.length];
+        for (int i = 0; i < children.length; i++) {
+            names[i] = new Entry(children[i].name, children[i].isDir, -1, -1);
+        }
+        return names;
+    }
+
+    /**
+     * @param children from {@link #children}
+     * @return the child of that name, or null if there is none
+     */
+    @Nullable static Entry find(Entry[] children, String name) {
+        int index = indexOf(children, name);
+        return (index >= 0) ? children[index] : null;
+    }
+
+    private static int indexOf(Entry[] children, String name) {
+        int low = 0;
+        int high = children.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int compare = children[mid].name.compareTo(name);
+            if (compare < 0) {
+                low = mid + 1;
+            } else if (compare > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /* a directory of an index that has missed changes is trusted while its mtime is unchanged; see DirectoryCache */
+    private boolean isUnchanged(Snapshot snapshot, int index, String dir) {
+        long mtime = snapshot.mtime(index);
+        if ((snapshot.builtAt - mtime) <= DirectoryCache.MTIME_SLACK) {
+            return false;
+        }
+        try {
+            return Files.getLastModifiedTime(root.resolve(dir)).toMillis() == mtime;
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static boolean isOld(Snapshot snapshot) {
+        return (System.currentTimeMillis() - snapshot.builtAt) > MAX_AGE;
+    }
+
+    /* only run by the executor */
+    private void checkAge() {
+        Snapshot current = snapshot;
+        if ((current == null) || (!current.watched && isOld(current))) {
+            scheduleRebuild();
+        }
+    }
+
+    private void scheduleRebuild() {
+        if (rebuildPending.compareAndSet(false, true)) {
+            executor.execute(this::rebuild);
+        }
+    }
+
+    /* only run by the executor, so no overlay changes are made while the tree is walked */
+    private void rebuild() {
+        rebuildPending.set(false);
+        long start = System.currentTimeMillis();
+        try (Writer writer = new Writer(file)) {
+            boolean watchedAll = index(root, writer::add, false);
+            if (closed) {
+                return;
+            }
+            Snapshot built = writer.finish(start, watchedAll);
+            if (closed) {
+                return;
+            }
+            snapshot = built;
+            overlay.clear();
+            overflowed = false;
+            log.info("indexed {} in {} ms: {} directories, {} entries, watched={}", root,
+                     System.currentTimeMillis() - start, built.dirCount, built.entryCount, watchedAll);
+        } catch (IOException | RuntimeException ex) {
+            log.warn("failed to index {}", root, ex);
+        }
+    }
+
+    /**
+     * lists (and watches) a directory and every directory under it
+     *
+     * @param dirs given each directory and its listing
+     * @param onlyNew if true, directories under it that are already indexed are skipped
+     * @return true if every directory listed is watched
+     */
+    private boolean index(Path top, BiConsumer<String, Listing> dirs, boolean onlyNew) {
+        boolean watchedAll = watcher != null;
+        LocalFileHandler[] current = handlers.get();
+        Set<Object> visited = new HashSet<>();
+        Deque<Path> pending = new ArrayDeque<>();
+        pending.add(top);
+        while (!pending.isEmpty() && !closed) {
+            Path dir = pending.poll();
+            List<Entry> children = new ArrayList<>();
+            long mtime;
+            try {
+                mtime = Files.getLastModifiedTime(dir).toMillis();
+            } catch (IOException ex) {
+                continue;
+            }
+            // watched before it is listed, so that a file created in between is still reported by an event
+            String relative = root.relativize(dir).toString();
+            watchedAll &= watch(dir, relative);
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+                for (Path child : stream) {
+                    BasicFileAttributes attributes;
+                    try {
+                        attributes = Files.readAttributes(child, BasicFileAttributes.class);
+                    } catch (IOException ex) {
+                        continue;
+                    }
+                    String name = child.getFileName().toString();
+                    children.add(new Entry(name, attributes.isDirectory(), attributes.size(),
+                                           attributes.lastModifiedTime().toMillis()));
+                    // symbolic links are followed; a directory reached twice is a loop
+                    Object key = attributes.fileKey();
+                    if (attributes.isDirectory() && !isHandled(child, current) && ((key == null) || visited.add(key))
+                        && !(onlyNew && isIndexed(root.relativize(child).toString()))) {
+                        pending.add(child);
+                    }
+                }
+            } catch (IOException ex) {
+                log.debug("not indexing unreadable {}", dir, ex);
+                continue;
+            }
+            Entry[] sorted = children.toArray(new Entry[children.size()]);
+            Arrays.sort(sorted, Comparator.comparing(entry -> entry.name));
+            dirs.accept(relative, new Listing(mtime, sorted));
+        }
+        return watchedAll;
+    }
+
+    private static boolean isHandled(Path dir, LocalFileHandler[] handlers) {
+        for (LocalFileHandler handler : handlers) {
+            if (handler.canHandleDirectory(dir.toFile())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean watch(Path dir, String relative) {
+        if ((watcher == null) || (watches.size() >= MAX_WATCHES)) {
+            return false;
+        }
+        try {
+            WatchKey key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                                        StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+            watches.put(key, relative);
+            return true;
+        } catch (IOException | ClosedWatchServiceException ex) {
+            log.debug("not watching {}", dir, ex);
+            return false;
+        }
+    }
+
+    /* collects change events, which the executor applies to the overlay meshy.index.changeDelay ms later */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+            String relative = watches.get(key);
+            boolean overflow = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                WatchEvent.Kind<?> kind = event.kind();
+                if (kind == StandardWatchEventKinds.OVERFLOW) {
+                    overflow = true;
+                } else if (relative == null) {
+                    continue;
+                } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
+                    // eg. a file being appended to, which only changes its own entry
+                    String name = event.context().toString();
+                    modified.compute(relative, (dir, names) -> {
+                        Set<String> added = (names != null) ? names : new HashSet<>();
+                        added.add(name);
+                        return added;
+                    });
+                } else {
+                    dirtyDirs.add(relative);
+                }
+            }
+            if (!key.reset() && (relative != null)) {
+                // deleted, or no longer reachable; it is indexed again when its parent re-lists it
+                watches.remove(key);
+                dirtyDirs.add(relative);
+            }
+            try {
+                if (overflow) {
+                    log.warn("index of {} is stale: file system events were lost", root);
+                    overflowed = true;
+                    scheduleRebuild();
+                } else if (flushPending.compareAndSet(false, true)) {
+                    executor.schedule(this::flush, CHANGE_DELAY, TimeUnit.MILLISECONDS);
+                }
+            } catch (RejectedExecutionException ex) {
+                // closed
+                return;
+            }
+        }
+    }
+
+    /* only run by the executor */
+    private void flush() {
+        flushPending.set(false);
+        Set<String> relisted = new HashSet<>();
+        for (String dir : dirtyDirs) {
+            dirtyDirs.remove(dir);
+            changed(dir);
+            relisted.add(dir);
+        }
+        for (String dir : modified.keySet()) {
+            Set<String> names = modified.remove(dir);
+            if ((names != null) && !relisted.contains(dir)) {
+                modified(dir, names);
+            }
+        }
+        if (overlay.size() >= REBUILD_DIRS) {
+            scheduleRebuild();
+        }
+    }
+
+    /* only run by the executor */
+    private void changed(String relative) {
+        Path dir = root.resolve(relative);
+        if (!Files.isDirectory(dir)) {
+            // the parent is re-listed too, and no longer leads here
+            overlay.put(relative, UNINDEXED);
+            return;
+        }
+        Map<String, Listing> relisted = new HashMap<>();
+        index(dir, relisted::put, true);
+        relisted.forEach((relistedDir, listing) -> overlay.put(relistedDir, listing.children));
+    }
+
+    /* only run by the executor. updates the entries of modified children instead of listing their directory */
+    private void modified(String relative, Set<String> names) {
+        Entry[] children = overlay.get(relative);
+        if (children == null) {
+            Snapshot current = snapshot;
+            int index = (current != null) ? current.findDir(relative) : -1;
+            if (index < 0) {
+                // listed live
+                return;
+            }
+            children = current.children(index);
+        } else if (children == UNINDEXED) {
+            return;
+        }
+        Entry[] updated = children.clone();
+        Path dir = root.resolve(relative);
+        for (String name : names) {
+            int index = indexOf(updated, name);
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(dir.resolve(name), BasicFileAttributes.class);
+            } catch (IOException ex) {
+                index = -1;
+                attributes = null;
+            }
+            if (index < 0) {
+                // created or deleted since; the events that say so may still be on their way
+                changed(relative);
+                return;
+            }
+            updated[index] = new Entry(name, attributes.isDirectory(), attributes.size(),
+                                       attributes.lastModifiedTime().toMillis());
+        }
+        overlay.put(relative, updated);
+    }
+
+    /* @return true if the directory has an up to date listing */
+    private boolean isIndexed(String relative) {
+        Entry[] children = overlay.get(relative);
+        if (children != null) {
+            return children != UNINDEXED;
+        }
+        Snapshot current = snapshot;
+        return (current != null) && (current.findDir(relative) >= 0);
+    }
+
+    /**
+     * stops watching and indexing, and drops the mapped index (which is unmapped once it is collected). lookups
+     * return null from then on
+     */
+    void close() {
+        closed = true;
+        executor.shutdownNow();
+        if (watcher != null) {
+            try {
+                watcher.close();
+            } catch (IOException ex) {
+                log.warn("failed to close watch service of {}", root, ex);
+            }
+        }
+        watches.clear();
+        overlay.clear();
+        snapshot = null;
+    }
+
+    @Override
+    public String toString() {
+        Snapshot current = snapshot;
+        return "FileIndex{" + root + ",entries=" + ((current != null) ? current.entryCount : 0) +
+               ",overlay=" + overlay.size() + ",watches=" + watches.size() + "}";
+    }
+
+    /** a file or directory in the index */
+    static final class Entry {
+
+        final String name;
+        final boolean isDir;
+        final long size;
+        final long mtime;
+
+        Entry(String name, boolean isDir, long size, long mtime) {
+            this.name = name;
+            this.isDir = isDir;
+            this.size = size;
+            this.mtime = mtime;
+        }
+    }
+
+    /** a directory and its children, sorted by name */
+    private static final class Listing {
+
+        final long mtime;
+        final Entry[] children;
+
+        Listing(long mtime, Entry[] children) {
+            this.mtime = mtime;
+            this.children = children;
+        }
+    }
+
+    /** a directory record of an index being written */
+    private static final class DirRecord {
+
+        final String path;
+        final long pathOffset;
+        final long first;
+        final int count;
+        final long mtime;
+
+        DirRecord(String path, long pathOffset, long first, int count, long mtime) {
+            this.path = path;
+            this.pathOffset = pathOffset;
+            this.first = first;
+            this.count = count;
+            this.mtime = mtime;
+        }
+    }
+
+    /**
+     * writes listings to a new index file as they are made. entries go straight to the index file and names to a
+     * second temp file, which are joined (followed by the directory records) once every directory is listed
+     */
+    private static final class Writer implements Closeable {
+
+        private final Path file;
+        private final Path temp;
+        private final Path namesTemp;
+        private final DataOutputStream entries;
+        private final DataOutputStream names;
+        private final List<DirRecord> dirs = new ArrayList<>();
+        private long entryCount;
+        private long namesSize;
+
+        Writer(Path file) throws IOException {
+            this.file = file;
+            // servers of other vms may share the index directory, and so the index file of a root
+            this.temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            this.namesTemp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            this.entries = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+            this.names = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(namesTemp)));
+            // written once the rest is
+            entries.write(new byte[HEADER_BYTES]);
+        }
+
+        void add(String dir, Listing listing) {
+            try {
+                dirs.add(new DirRecord(dir, writeName(dir), entryCount, listing.children.length, listing.mtime));
+                for (Entry child : listing.children) {
+                    entries.writeLong(writeName(child.name));
+                    entries.writeInt(child.isDir ? FLAG_DIR : 0);
+                    entries.writeLong(child.size);
+                    entries.writeLong(child.mtime);
+                }
+                entryCount += listing.children.length;
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+
+        private long writeName(String name) throws IOException {
+            long offset = namesSize;
+            byte[] bytes = name.getBytes(UTF_8);
+            names.writeInt(bytes.length);
+            names.write(bytes);
+            namesSize += 4 + bytes.length;
+            return offset;
+        }
+
+        /* completes the index file, replaces the old one with it, and maps it */
+        Snapshot finish(long builtAt, boolean watched) throws IOException {
+            entries.close();
+            names.close();
+            dirs.sort(Comparator.comparing(dir -> dir.path));
+            long namesStart = HEADER_BYTES + (entryCount * ENTRY_BYTES);
+            long dirsStart = namesStart + namesSize;
+            try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE);
+                 FileChannel in = FileChannel.open(namesTemp, StandardOpenOption.READ)) {
+                out.position(namesStart);
+                for (long copied = 0; copied < namesSize; ) {
+                    copied += in.transferTo(copied, namesSize - copied, out);
+                }
+                DataOutputStream table = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(out)));
+                for (DirRecord dir : dirs) {
+                    table.writeLong(dir.pathOffset);
+                    table.writeLong(dir.first);
+                    table.writeInt(dir.count);
+                    table.writeLong(dir.mtime);
+                }
+                table.flush();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+                header.putInt(MAGIC).putInt(VERSION).putLong(builtAt).putInt(dirs.size()).putLong(entryCount)
+                      .putLong(namesStart).putLong(dirsStart).flip();
+                while (header.hasRemaining()) {
+                    out.write(header, header.position());
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return Snapshot.map(file, watched);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                entries.close();
+                names.close();
+            } finally {
+                Files.deleteIfExists(namesTemp);
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * a mapped index file. reads are absolute, so the buffers are shared by all threads. buffers are indexed by int,
+     * so the file is mapped in segments, which records and names may span
+     */
+    static final class Snapshot {
+
+        static final int SEGMENT_BITS = 30;
+
+        private final ByteBuffer[] segments;
+        private final int segmentBits;
+        private final long segmentMask;
+        final long builtAt;
+        /* true if changes since the index was built are being tracked */
+        final boolean watched;
+        final int dirCount;
+        final long entryCount;
+        private final long namesStart;
+        private final long dirsStart;
+
+        private Snapshot(ByteBuffer[] segments, int segmentBits, long size, boolean watched) {
+            this.segments = segments;
+            this.segmentBits = segmentBits;
+            this.segmentMask = (1L << segmentBits) - 1;
+            if ((size < HEADER_BYTES) || (getInt(0) != MAGIC) || (getInt(4) != VERSION)) {
+                throw new IllegalArgumentException("not an index file of version " + VERSION);
+            }
+            this.builtAt = getLong(8);
+            this.watched = watched;
+            this.dirCount = getInt(16);
+            this.entryCount = getLong(20);
+            this.namesStart = getLong(28);
+            this.dirsStart = getLong(36);
+        }
+
+        /* @param watched false for an index left by a previous run, which has missed changes since */
+        static Snapshot map(Path file, boolean watched) throws IOException {
+            return map(file, watched, SEGMENT_BITS);
+        }
+
+        /* @param segmentBits log2 of the segment size; small ones make tests of records spanning segments easy */
+        static Snapshot map(Path file, boolean watched, int segmentBits) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                ByteBuffer[] segments = new ByteBuffer[(int) ((size + (1L << segmentBits) - 1) >>> segmentBits)];
+                for (int i = 0; i < segments.length; i++) {
+                    long start = (long) i << segmentBits;
+                    segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                              Math.min(1L << segmentBits, size - start));
+                }
+                return new Snapshot(segments, segmentBits, size, watched);
+            }
+        }
+
+        /** @return the index of a directory, or -1 if it is not indexed */
+        int findDir(String dir) {
+            int low = 0;
+            int high = dirCount - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int compare = name(getLong(dirsStart + ((long) mid * DIR_BYTES))).compareTo(dir);
+                if (compare < 0) {
+                    low = mid + 1;
+                } else if (compare > 0) {
+                    high = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        long mtime(int dir) {
+            return getLong(dirsStart + ((long) dir * DIR_BYTES) + 20);
+        }
+
+        Entry[] children(int dir) {
+            long record = dirsStart + ((long) dir * DIR_BYTES);
+            long first = getLong(record + 8);
+            Entry[] children = new Entry[getInt(record + 16)];
+            for (int i = 0; i < children.length; i++) {
+                long entry = HEADER_BYTES + ((first + i) * ENTRY_BYTES);
+                children[i] = new Entry(name(getLong(entry)), (getInt(entry + 8) & FLAG_DIR) != 0,
+                                        getLong(entry + 12), getLong(entry + 20));
+            }
+            return children;
+        }
+
+        private String name(long offset) {
+            long position = namesStart + offset;
+            byte[] bytes = new byte[getInt(position)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = get(position + 4 + i);
+            }
+            return new String(bytes, UTF_8);
+        }
+
+        private byte get(long position) {
+            return segments[(int) (position >>> segmentBits)].get((int) (position & segmentMask));
+        }
+
+        private int getInt(long position) {
+            ByteBuffer segment = segments[(int) (position >>> segmentBits)];
+            int offset = (int) (position & segmentMask);
+            if ((offset + 4) <= segment.limit()) {
+                return segment.getInt(offset);
+            }
+            return ((get(position) & 0xff) << 24) | ((get(position + 1) & 0xff) << 16) |
+                   ((get(position + 2) & 0xff) << 8) | (get(position + 3) & 0xff);
+        }
+
+        private long getLong(long position) {
+            ByteBuffer segment = segments[(int) (position >>> segmentBits)];
+            int offset = (int) (position & segmentMask);
+            if ((offset + 8) <= segment.limit()) {
+                return segment.getLong(offset);
+            }
+            return ((long) getInt(position) << 32) | (getInt(position + 4) & 0xffffffffL);
+        }
+    }
+}
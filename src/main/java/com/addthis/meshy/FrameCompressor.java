@@ -0,0 +1,186 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.addthis.basis.util.Parameter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Counter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * Deflate compression of frame payloads for one channel.
+ * <p/>
+ * Compressed frames have {@link WireFormat#TYPE_COMPRESSED} set in their type and a payload of
+ * {@code [int rawLength, deflated bytes]}. Frames are compressed by the sending thread as they are queued, and
+ * only once the other side has offered {@link WireFormat#FEATURE_DEFLATE} in its hello (which also means it
+ * reads v2 headers, the only ones that carry the flag on the wire). Payloads under {@link #MIN_BYTES} or over
+ * {@link #MAX_INFLATE}, and payloads that deflate does not shrink, are sent as they are. A compressed frame that
+ * claims to inflate to more than {@link #MAX_INFLATE} bytes is refused before anything is allocated for it.
+ */
+final class FrameCompressor {
+
+    /* payloads smaller than this are never compressed */
+    static final int MIN_BYTES = Math.max(16, Parameter.intValue("meshy.compress.minBytes", 512));
+    static final int LEVEL = Parameter.intValue("meshy.compress.level", Deflater.BEST_SPEED);
+    /* largest payload compressed, and so the largest a peer is trusted to inflate a frame to */
+    static final int MAX_INFLATE = Parameter.intValue("meshy.compress.maxInflate", 64 * 1024 * 1024);
+
+    static final Counter rawBytesMetric = Metrics.newCounter(FrameCompressor.class, "rawBytes");
+    static final Counter compressedBytesMetric = Metrics.newCounter(FrameCompressor.class, "compressedBytes");
+    static final Counter compressNanosMetric = Metrics.newCounter(FrameCompressor.class, "compressNanos");
+
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(LEVEL, true));
+    private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[1024]);
+
+    private final LongAdder rawBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder compressNanos = new LongAdder();
+    private final LongAdder inflateNanos = new LongAdder();
+
+    private volatile boolean enabled;
+
+    void enable() {
+        enabled = true;
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param frame a frame with a v1 header. ownership passes to this method
+     * @return the frame, or a compressed copy of it
+     */
+    ByteBuf compress(ByteBuf frame, ByteBufAllocator alloc) {
+        int start = frame.readerIndex();
+        int length = frame.getInt(start + 8);
+        if (!enabled || (length < MIN_BYTES) || (length > MAX_INFLATE)) {
+            return frame;
+        }
+        long mark = System.nanoTime();
+        // only worth sending if it saves more than the raw length prefix
+        int limit = length - 4;
+        // raw payload followed by room for the deflated one
+        byte[] out = scratch(length, limit);
+        frame.getBytes(start + WireFormat.V1_HEADER_BYTES, out, 0, length);
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(out, 0, length);
+        deflater.finish();
+        int packed = 0;
+        while (!deflater.finished() && (packed < limit)) {
+            packed += deflater.deflate(out, length + packed, limit - packed);
+        }
+        ByteBuf result = frame;
+        if (deflater.finished() && (packed < limit)) {
+            result = alloc.buffer(WireFormat.V1_HEADER_BYTES + 4 + packed);
+            result.writeInt(frame.getInt(start) | WireFormat.TYPE_COMPRESSED);
+            result.writeInt(frame.getInt(start + 4));
+            result.writeInt(4 + packed);
+            result.writeInt(length);
+            result.writeBytes(out, length, packed);
+            frame.release();
+            packed += 4;
+        } else {
+            packed = length;
+        }
+        long nanos = System.nanoTime() - mark;
+        rawBytes.add(length);
+        compressedBytes.add(packed);
+        compressNanos.add(nanos);
+        rawBytesMetric.inc(length);
+        compressedBytesMetric.inc(packed);
+        compressNanosMetric.inc(nanos);
+        return result;
+    }
+
+    /**
+     * @param frame the payload of a compressed frame
+     * @return a new buffer with the inflated payload
+     */
+    ByteBuf inflate(ByteBuf frame, ByteBufAllocator alloc) {
+        long mark = System.nanoTime();
+        int rawLength = frame.readInt();
+        if (rawLength < 0) {
+            throw new CorruptedFrameException("negative inflated length " + rawLength);
+        } else if (rawLength > MAX_INFLATE) {
+            throw new CorruptedFrameException("inflated length " + rawLength + " over " + MAX_INFLATE);
+        }
+        int packed = frame.readableBytes();
+        byte[] in = scratch(packed, 0);
+        frame.readBytes(in, 0, packed);
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        inflater.setInput(in, 0, packed);
+        ByteBuf out = alloc.heapBuffer(rawLength);
+        try {
+            int inflated = inflater.inflate(out.array(), out.arrayOffset(), rawLength);
+            if ((inflated != rawLength) || !inflater.finished()) {
+                throw new CorruptedFrameException("inflated " + inflated + " of " + rawLength + " bytes");
+            }
+            out.writerIndex(rawLength);
+        } catch (DataFormatException | RuntimeException ex) {
+            out.release();
+            throw (ex instanceof CorruptedFrameException) ? (CorruptedFrameException) ex
+                                                          : new CorruptedFrameException(ex);
+        }
+        inflateNanos.add(System.nanoTime() - mark);
+        return out;
+    }
+
+    /* per-thread scratch space with room for a raw payload followed by extra bytes */
+    private static byte[] scratch(int length, int extra) {
+        byte[] bytes = scratch.get();
+        int needed = length + extra;
+        if (bytes.length < needed) {
+            // doubled to the next power of two, which would overflow past 2^30
+            bytes = new byte[(needed < (1 << 30)) ? (Integer.highestOneBit(needed) << 1) : needed];
+            scratch.set(bytes);
+        }
+        return bytes;
+    }
+
+    /** raw bytes of the frames considered for compression (those at least {@link #MIN_BYTES} long) */
+    long rawBytes() {
+        return rawBytes.sum();
+    }
+
+    /** bytes those frames were sent as */
+    long compressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    long compressNanos() {
+        return compressNanos.sum();
+    }
+
+    long inflateNanos() {
+        return inflateNanos.sum();
+    }
+
+    double ratio() {
+        long raw = rawBytes();
+        return (raw == 0) ? 1.0 : ((double) compressedBytes() / raw);
+    }
+}
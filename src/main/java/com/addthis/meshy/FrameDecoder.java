@@ -0,0 +1,220 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import javax.annotation.Nullable;
+
+import com.addthis.basis.util.Parameter;
+
+import com.google.common.base.MoreObjects;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+
+/**
+ * Splits the inbound byte stream of a channel into meshy frames ({@code [type, session, length, data]}). Headers
+ * may be in either {@link WireFormat} version.
+ * <p/>
+ * Reads are cumulated without copying: a read that holds only whole frames is sliced in place, and a frame
+ * that straddles reads is stitched together from the original read buffers in a {@link CompositeByteBuf}.
+ * Each frame is handed to the receiver as a retained slice that is released once the receiver returns.
+ * The only copy is the (rare) consolidation of a composite that collects more than {@link #MAX_COMPONENTS}
+ * reads for a single frame.
+ */
+final class FrameDecoder {
+
+    static final int HEADER_BYTES = WireFormat.V1_HEADER_BYTES;
+
+    /* number of reads a partial frame can span before the pending bytes are consolidated into one buffer */
+    static final int MAX_COMPONENTS = Parameter.intValue("meshy.channel.maxComponents", 64);
+
+    interface FrameReceiver {
+
+        /**
+         * @param frame slice holding exactly {@code length} bytes of frame data. only valid until this method
+         *              returns; retain it (or a slice of it) to keep it longer.
+         */
+        void receiveFrame(int type, int session, int length, ByteBuf frame);
+    }
+
+    private final FrameReceiver receiver;
+
+    // bytes read from the channel that have not yet been handed out as frames
+    @Nullable private ByteBuf cumulation;
+
+    // header of the frame currently being assembled
+    private boolean haveHeader;
+    private int type;
+    private int session;
+    private int length;
+    // session of the last v2 header, which later v2 headers may refer back to
+    private int lastSession;
+
+    // accounting for benchmarks and debugging
+    private long framesDecoded;
+    private long bytesCopied;
+    private long v2Frames;
+
+    FrameDecoder(FrameReceiver receiver) {
+        this.receiver = receiver;
+    }
+
+    /**
+     * Takes ownership of {@code in} and delivers every frame it completes.
+     */
+    void decode(ByteBuf in) {
+        ByteBuf data = cumulate(in);
+        try {
+            while (true) {
+                if (!haveHeader) {
+                    if (!readHeader(data)) {
+                        break;
+                    }
+                    haveHeader = true;
+                }
+                if (data.readableBytes() < length) {
+                    break;
+                }
+                haveHeader = false;
+                framesDecoded += 1;
+                ByteBuf frame = data.readSlice(length).retain();
+                try {
+                    receiver.receiveFrame(type, session, length, frame);
+                } finally {
+                    frame.release();
+                }
+            }
+        } finally {
+            discardReadBytes(data);
+        }
+    }
+
+    /**
+     * @return false (leaving {@code data} as it was) if it does not yet hold a whole header
+     */
+    private boolean readHeader(ByteBuf data) {
+        if (!data.isReadable()) {
+            return false;
+        }
+        int start = data.readerIndex();
+        if (!WireFormat.isV2(data.getByte(start))) {
+            if (data.readableBytes() < HEADER_BYTES) {
+                return false;
+            }
+            type = data.readInt();
+            session = data.readInt();
+            length = data.readInt();
+            return true;
+        }
+        int tag = data.readByte();
+        int kind = tag & WireFormat.KIND_MASK;
+        long nextType = (kind == WireFormat.KIND_EXPLICIT) ? WireFormat.readVarint(data) : WireFormat.typeOf(kind);
+        long nextSession = ((tag & WireFormat.SAME_SESSION) != 0) ? lastSession : WireFormat.readVarint(data);
+        long nextLength = WireFormat.readVarint(data);
+        if ((nextType == WireFormat.INCOMPLETE) || (nextSession == WireFormat.INCOMPLETE)
+            || (nextLength == WireFormat.INCOMPLETE)) {
+            data.readerIndex(start);
+            return false;
+        }
+        type = (int) nextType | (((tag & WireFormat.COMPRESSED) != 0) ? WireFormat.TYPE_COMPRESSED : 0);
+        session = (int) nextSession;
+        length = (int) nextLength;
+        lastSession = session;
+        v2Frames += 1;
+        return true;
+    }
+
+    /**
+     * Releases any partial frame still held. Must be called when the channel goes inactive.
+     */
+    void release() {
+        if (cumulation != null) {
+            cumulation.release();
+            cumulation = null;
+        }
+        haveHeader = false;
+    }
+
+    /** number of bytes waiting for the rest of their frame */
+    int pendingBytes() {
+        return (cumulation == null) ? 0 : cumulation.readableBytes();
+    }
+
+    long framesDecoded() {
+        return framesDecoded;
+    }
+
+    long bytesCopied() {
+        return bytesCopied;
+    }
+
+    long v2Frames() {
+        return v2Frames;
+    }
+
+    private ByteBuf cumulate(ByteBuf in) {
+        if (cumulation == null) {
+            cumulation = in;
+            return in;
+        }
+        CompositeByteBuf composite;
+        if (cumulation instanceof CompositeByteBuf) {
+            composite = (CompositeByteBuf) cumulation;
+        } else {
+            composite = in.alloc().compositeBuffer(MAX_COMPONENTS);
+            addComponent(composite, cumulation);
+            cumulation = composite;
+        }
+        if (composite.numComponents() >= MAX_COMPONENTS) {
+            bytesCopied += composite.capacity();
+            composite.consolidate();
+        }
+        addComponent(composite, in);
+        return composite;
+    }
+
+    private void discardReadBytes(ByteBuf data) {
+        if (!data.isReadable()) {
+            data.release();
+            cumulation = null;
+        } else if (data instanceof CompositeByteBuf) {
+            if (data.refCnt() == 1) {
+                ((CompositeByteBuf) data).discardReadComponents();
+            } else {
+                // a receiver retained a frame. discarding would release components out from under that frame, so
+                // carry the unread tail forward as a slice and leave the composite to the last frame released.
+                cumulation = data.readSlice(data.readableBytes()).retain();
+                data.release();
+            }
+        }
+        // a plain read buffer keeps its reader index; the unread tail is stitched to the next read
+    }
+
+    private static void addComponent(CompositeByteBuf composite, ByteBuf buf) {
+        int readable = buf.readableBytes();
+        composite.addComponent(buf);
+        composite.writerIndex(composite.writerIndex() + readable);
+    }
+
+    @Override
+    public String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("pending", pendingBytes())
+                .add("haveHeader", haveHeader)
+                .add("type", type)
+                .add("session", session)
+                .add("length", length)
+                .toString();
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import java.util.Arrays;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+
+import com.addthis.basis.util.Parameter;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Compiled file name globs, shared by every find in this VM. Finds tend to repeat the same few globs, and each
+ * compiled jdk glob is a regex that allocates a matcher (and the caller a {@link Path}) per name tested.
+ * <p/>
+ * The common shapes are matched with plain string comparisons, like {@link com.addthis.meshy.service.file.Filter}:
+ * {@code *}, {@code prefix*}, {@code *suffix}, {@code prefix*suffix} and {@code {a,b,c}} of literal names. Anything
+ * else is left to the jdk glob. Up to {@code meshy.glob.cacheSize} globs are kept.
+ */
+public final class GlobMatchers {
+
+    static final int CACHE_SIZE = Parameter.intValue("meshy.glob.cacheSize", 1024);
+
+    private static final CharMatcher META_CHARS = CharMatcher.anyOf("\\*?[]{}");
+
+    private static final LoadingCache<String, NameMatcher> cache =
+            CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).build(CacheLoader.from(GlobMatchers::compile));
+
+    private GlobMatchers() {
+    }
+
+    /** a {@link PathMatcher} of file names that can match a name without a {@link Path} */
+    public interface NameMatcher extends PathMatcher {
+
+        boolean matches(String name);
+
+        @Override
+        default boolean matches(Path path) {
+            Path name = path.getFileName();
+            return (name != null) && matches(name.toString());
+        }
+    }
+
+    /** @return the (possibly cached) matcher of a file name glob */
+    public static NameMatcher get(String glob) {
+        return cache.getUnchecked(glob);
+    }
+
+    /** match a file name against any path matcher, without creating a {@link Path} for the name if possible */
+    public static boolean matches(PathMatcher matcher, String name) {
+        if (matcher instanceof NameMatcher) {
+            return ((NameMatcher) matcher).matches(name);
+        }
+        return matcher.matches(Paths.get(name));
+    }
+
+    static NameMatcher compile(String glob) {
+        int star = glob.indexOf('*');
+        if ((star >= 0) && (glob.indexOf('*', star + 1) < 0)) {
+            String prefix = glob.substring(0, star);
+            String suffix = glob.substring(star + 1);
+            if (META_CHARS.matchesNoneOf(prefix) && META_CHARS.matchesNoneOf(suffix)) {
+                int length = prefix.length() + suffix.length();
+                return name -> (name.length() >= length) && name.startsWith(prefix) && name.endsWith(suffix);
+            }
+        }
+        if (glob.startsWith("{") && glob.endsWith("}")) {
+            String body = glob.substring(1, glob.length() - 1);
+            if (META_CHARS.matchesNoneOf(body)) {
+                String[] names = body.split(",", -1);
+                Arrays.sort(names);
+                return name -> Arrays.binarySearch(names, name) >= 0;
+            }
+        }
+        if (META_CHARS.matchesNoneOf(glob)) {
+            return glob::equals;
+        }
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        return new NameMatcher() {
+            @Override
+            public boolean matches(String name) {
+                return matcher.matches(Paths.get(name));
+            }
+
+            @Override
+            public boolean matches(Path path) {
+                Path name = path.getFileName();
+                return (name != null) && matcher.matches(name);
+            }
+        };
+    }
+}
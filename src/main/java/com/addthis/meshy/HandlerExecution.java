@@ -0,0 +1,34 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+/**
+ * Where a {@link SessionHandler}'s {@code receive} and {@code receiveComplete} callbacks run. Declared per handler
+ * class when it is registered with {@link Meshy#registerHandlerClass(Class, HandlerExecution)}; subclasses inherit
+ * the policy of their nearest registered ancestor.
+ */
+public enum HandlerExecution {
+
+    /**
+     * on the channel's event loop as frames are decoded. cheapest, but a slow callback stalls every channel that
+     * shares the loop.
+     */
+    INLINE,
+
+    /**
+     * on the shared handler pool ({@code meshy.handler.threads}). frames of one session are still delivered one at
+     * a time and in order; different sessions run concurrently.
+     */
+    OFFLOAD
+}
@@ -0,0 +1,82 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import com.addthis.basis.util.Parameter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Meter;
+
+/**
+ * Creates target handlers of one registered type. Handlers that support it ({@link TargetHandler#recycle()})
+ * are returned here once their session is complete and handed out again for later sessions.
+ */
+final class HandlerPool<T extends TargetHandler> {
+
+    /* max idle handlers kept per type */
+    static final int MAX_IDLE = Parameter.intValue("meshy.handler.poolSize", 256);
+
+    private final Supplier<T> factory;
+    private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final Meter hits;
+    private final Meter misses;
+
+    HandlerPool(Class<T> type, Supplier<T> factory) {
+        this.factory = factory;
+        this.hits = Metrics.newMeter(type, "poolHits", "hits", TimeUnit.SECONDS);
+        this.misses = Metrics.newMeter(type, "poolMisses", "misses", TimeUnit.SECONDS);
+    }
+
+    T get() {
+        T handler = idle.poll();
+        if (handler != null) {
+            idleCount.decrementAndGet();
+            hits.mark();
+        } else {
+            handler = factory.get();
+            misses.mark();
+        }
+        handler.setPool(this);
+        return handler;
+    }
+
+    /** @param handler a completed handler that has been reset by {@link TargetHandler#recycle()} */
+    @SuppressWarnings("unchecked")
+    void release(TargetHandler handler) {
+        if (idleCount.incrementAndGet() <= MAX_IDLE) {
+            idle.add((T) handler);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    int idle() {
+        return idleCount.get();
+    }
+
+    long hits() {
+        return hits.count();
+    }
+
+    long misses() {
+        return misses.count();
+    }
+}
@@ -20,7 +20,6 @@ import java.util.LinkedList;
 import java.util.Map;
 
 import java.nio.file.PathMatcher;
-import java.nio.file.Paths;
 
 import com.addthis.muxy.MuxFile;
 import com.addthis.muxy.ReadMuxFileDirectory;
@@ -60,7 +59,7 @@ public class LocalFileHandlerMux implements LocalFileHandler {
             LinkedList<VirtualFileReference> list = new LinkedList<>();
             for (MuxFile meta : ReadMuxFileDirectoryCache.listFiles(dir)) {
                 VirtualFileReference ref = new MuxFileReference(meta);
-                if ((filter == null) || filter.matches(Paths.get(ref.getName()))) {
+                if ((filter == null) || GlobMatchers.matches(filter, ref.getName())) {
                     list.add(ref);
                 }
             }
@@ -19,6 +19,7 @@ import javax.annotation.Nullable;
 import java.io.File;
 import java.io.FileInputStream;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
@@ -40,7 +41,7 @@ import org.slf4j.LoggerFactory;
 public class LocalFileSystem implements VirtualFileSystem {
     private static final Logger log = LoggerFactory.getLogger(LocalFileSystem.class);
 
-    private static LocalFileHandler[] handlers;
+    private static volatile LocalFileHandler[] handlers;
 
     static {
         reloadHandlers();
@@ -60,12 +61,13 @@ public class LocalFileSystem implements VirtualFileSystem {
             }
         }
         handlers = list.toArray(new LocalFileHandler[list.size()]);
+        DirectoryCache.instance.invalidateAll();
     }
 
     private FileReference rootDir;
 
     public LocalFileSystem(File rootDir) {
-        this.rootDir = new FileReference(rootDir);
+        this.rootDir = new FileReference(rootDir, FileIndex.open(rootDir, () -> handlers));
     }
 
     @Override
@@ -83,19 +85,48 @@ public class LocalFileSystem implements VirtualFileSystem {
         return rootDir;
     }
 
+    /** stops maintaining the index of the file system, if any; lookups use the live file system from then on */
+    @Override
+    public void close() {
+        if (rootDir.index != null) {
+            rootDir.index.close();
+        }
+    }
+
     /**
      * normal ptr reference
      */
     private static final class FileReference implements VirtualFileReference {
 
         private final File ptr;
-
-        FileReference(final Path path) {
-            this.ptr = path.toFile();
+        /* the index of the file system, if enabled */
+        @Nullable private final FileIndex index;
+        /* from a watched index, or -1 if the file has to be asked */
+        private final long length;
+        private final long lastModified;
+
+        FileReference(final File file, @Nullable final FileIndex index) {
+            this(file, index, -1, -1);
         }
 
-        FileReference(final File file) {
+        FileReference(final File file, @Nullable final FileIndex index, long length, long lastModified) {
             this.ptr = file;
+            this.index = index;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        private FileReference indexed(FileIndex.Entry entry) {
+            return new FileReference(new File(ptr, entry.name), index, entry.size, entry.mtime);
+        }
+
+        /* @return the indexed children of this directory, or null if they have to be listed */
+        @Nullable private FileIndex.Entry[] indexedChildren() {
+            if (index == null) {
+                return null;
+            }
+            String relative = index.relative(ptr);
+            return (relative != null) ? index.children(relative) : null;
         }
 
         @Override
@@ -110,12 +141,12 @@ public class LocalFileSystem implements VirtualFileSystem {
 
         @Override
         public long getLastModified() {
-            return ptr.lastModified();
+            return (lastModified >= 0) ? lastModified : ptr.lastModified();
         }
 
         @Override
         public long getLength() {
-            return ptr.length();
+            return (length >= 0) ? length : ptr.length();
         }
 
         @Nullable @Override
@@ -130,20 +161,55 @@ public class LocalFileSystem implements VirtualFileSystem {
 
         @Nullable @Override
         public VirtualFileReference getFile(String name) {
-            for (LocalFileHandler handler : handlers) {
-                if (handler.canHandleDirectory(ptr)) {
-                    return handler.getFile(ptr, name);
+            FileIndex.Entry[] children = indexedChildren();
+            FileIndex.Entry child = (children != null) ? FileIndex.find(children, name) : null;
+            if (child != null) {
+                return indexed(child);
+            }
+            // a miss may be a file created since the index last heard of its directory
+            LocalFileHandler[] current = handlers;
+            DirectoryCache.Listing listing = DirectoryCache.instance.get(ptr.toPath(), current);
+            if (listing != null) {
+                if (listing.handler != null) {
+                    return listing.handler.getFile(ptr, name);
+                }
+            } else {
+                for (LocalFileHandler handler : current) {
+                    if (handler.canHandleDirectory(ptr)) {
+                        return handler.getFile(ptr, name);
+                    }
                 }
             }
             File next = new File(ptr, name);
-            return next.exists() ? new FileReference(next) : null;
+            return next.exists() ? new FileReference(next, index) : null;
         }
 
         /**
          * unsafe. catch delegated to wrapper
          */
         private Iterator<VirtualFileReference> listFilesHelper(@Nonnull final PathMatcher filter) throws Exception {
-            for (LocalFileHandler handler : handlers) {
+            FileIndex.Entry[] children = indexedChildren();
+            if (children != null) {
+                return Arrays.stream(children)
+                             .filter(child -> GlobMatchers.matches(filter, child.name))
+                             .map(this::indexed)
+                             .collect(Collectors.<VirtualFileReference>toList())
+                             .iterator();
+            }
+            LocalFileHandler[] current = handlers;
+            DirectoryCache.Listing listing = DirectoryCache.instance.get(ptr.toPath(), current);
+            if (listing != null) {
+                if (listing.handler != null) {
+                    log.debug("delegate {} to {}", ptr, listing.handler);
+                    return listing.handler.listFiles(ptr, filter);
+                }
+                return Arrays.stream(DirectoryCache.instance.withChildren(ptr.toPath(), listing).children)
+                             .filter(file -> filter.matches(file.getFileName()))
+                             .map(file -> new FileReference(file.toFile(), index))
+                             .collect(Collectors.<VirtualFileReference>toList())
+                             .iterator();
+            }
+            for (LocalFileHandler handler : current) {
                 if (handler.canHandleDirectory(ptr)) {
                     log.debug("delegate {} to {}", ptr, handler);
                     return handler.listFiles(ptr, filter);
@@ -153,7 +219,7 @@ public class LocalFileSystem implements VirtualFileSystem {
                 return Collections.emptyIterator();
             }
             try (Stream<Path> files = Files.list(ptr.toPath()).filter(file -> filter.matches(file.getFileName()))) {
-                return files.map(FileReference::new)
+                return files.map(file -> new FileReference(file.toFile(), index))
                             .collect(Collectors.<VirtualFileReference>toList())
                             .iterator();
             }
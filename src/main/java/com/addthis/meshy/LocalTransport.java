@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import javax.annotation.Nullable;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import io.netty.channel.local.LocalAddress;
+
+/**
+ * Directory of the servers listening in this VM. Every {@link MeshyServer} also binds a netty local (in-VM)
+ * server channel, and connections from this VM to one of its ports (peers in a {@link MeshyServerGroup}, or an
+ * embedded {@link MeshyClient}) are made over that instead of TCP loopback. Buffers written to a local channel
+ * are handed to the other side as they are, without system calls or copies.
+ * <p/>
+ * Enabled per mesh with {@code meshy.transport.local} (default true), which must be set on both sides.
+ */
+final class LocalTransport {
+
+    /* stands in for the inet addresses of local channels from clients (which have none) and of unix channels */
+    static final InetSocketAddress LOOPBACK = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    private static final ConcurrentMap<LocalAddress, Server> servers = new ConcurrentHashMap<>();
+
+    private LocalTransport() {
+    }
+
+    /**
+     * @param primary the address the server reports to its peers
+     * @param bound   every inet address the server listens on
+     */
+    static LocalAddress register(String uuid, InetSocketAddress primary, List<InetSocketAddress> bound) {
+        LocalAddress address = new LocalAddress("meshy-" + uuid);
+        servers.put(address, new Server(primary, bound));
+        return address;
+    }
+
+    static void unregister(LocalAddress address) {
+        servers.remove(address);
+    }
+
+    /**
+     * @return the local address of the server in this VM that a tcp connection to {@code address} would reach,
+     * or null
+     */
+    @Nullable static LocalAddress lookup(InetSocketAddress address) {
+        InetAddress inet = address.getAddress();
+        if (inet == null) {
+            return null;
+        }
+        for (Map.Entry<LocalAddress, Server> server : servers.entrySet()) {
+            for (InetSocketAddress bound : server.getValue().bound) {
+                if ((bound.getPort() == address.getPort()) && reaches(inet, bound.getAddress())) {
+                    return server.getKey();
+                }
+            }
+        }
+        return null;
+    }
+
+    /* true if a connection to the target address reaches a server bound to the given address of this host */
+    private static boolean reaches(InetAddress target, InetAddress bound) {
+        if (!bound.isAnyLocalAddress()) {
+            return bound.equals(target);
+        }
+        if (target.isLoopbackAddress() || target.isAnyLocalAddress()) {
+            return true;
+        }
+        try {
+            return NetworkInterface.getByInetAddress(target) != null;
+        } catch (SocketException ignored) {
+            return false;
+        }
+    }
+
+    /**
+     * @return the address if it is an inet address, the primary address of the server if it is the local address
+     * of one in this VM, otherwise {@link #LOOPBACK}
+     */
+    static InetSocketAddress inetAddress(SocketAddress address) {
+        if (address instanceof InetSocketAddress) {
+            return (InetSocketAddress) address;
+        }
+        Server server = servers.get(address);
+        return (server != null) ? server.primary : LOOPBACK;
+    }
+
+    private static final class Server {
+
+        final InetSocketAddress primary;
+        final List<InetSocketAddress> bound;
+
+        Server(InetSocketAddress primary, List<InetSocketAddress> bound) {
+            this.primary = primary;
+            this.bound = bound;
+        }
+    }
+}
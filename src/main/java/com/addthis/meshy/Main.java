@@ -235,6 +235,8 @@ public final class Main {
             String[] ports = LessStrings.splitArray(args[1], ",");
             LinkedList<MeshyServer> meshNodes = new LinkedList<>();
             MeshyServerGroup group = new MeshyServerGroup();
+            /* one set of event loops for all of the ports; shut down when the last server closes */
+            MeshyEventLoopGroup eventLoops = MeshyEventLoopGroup.builder().build();
             for (String port : ports) {
                 String[] netIf = null;
                 String[] portInfo = LessStrings.splitArray(port, ":");
@@ -245,14 +247,15 @@ public final class Main {
                 }
                 switch (args.length) {
                     case 2:
-                        meshNodes.add(new MeshyServer(portNum, new File("."), netIf, group));
+                        meshNodes.add(new MeshyServer(portNum, new File("."), netIf, group, eventLoops));
                         break;
                     case 3:
                     case 4:
-                        meshNodes.add(new MeshyServer(portNum, new File(args[2]), netIf, group));
+                        meshNodes.add(new MeshyServer(portNum, new File(args[2]), netIf, group, eventLoops));
                         break;
                 }
             }
+            eventLoops.release();
             for (MeshyServer server : meshNodes) {
                 Thread shutdownThread = new Thread(() -> {
                         MeshyServer.log.info("Running meshy shutdown hook..");
@@ -299,6 +302,7 @@ public final class Main {
                 log.warn("No prometheus config file found. Using prometheus default.");
             }
             DefaultExports.initialize();
+            new TrafficCollector().register();
             log.info("Prometheus collector registered.");
         } catch (Exception e) {
             log.error("Prometheus collector not registered: ", e);
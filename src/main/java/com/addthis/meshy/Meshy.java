@@ -31,9 +31,16 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
 import java.text.DecimalFormat;
 
@@ -52,6 +59,7 @@ import com.addthis.meshy.service.stream.StreamSource;
 import com.addthis.meshy.service.stream.StreamTarget;
 
 import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 import com.yammer.metrics.Metrics;
 import com.yammer.metrics.core.Meter;
@@ -68,9 +76,16 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.DefaultPromise;
 import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.Promise;
 
 /**
  * full mesh nodes are both clients and servers. so the client logic is not exclusive to client-only nodes.
@@ -88,11 +103,22 @@ public abstract class Meshy implements ChannelMaster, Closeable {
     static final int LOW_WATERMARK = Parameter.intValue("meshy.channel.lowWatermark", 5 * 1024) * 1024;
 
     static final Map<Integer, Class<? extends SessionHandler>> idHandlerMap = new HashMap<>();
+    static final Map<Integer, Supplier<? extends TargetHandler>> idFactoryMap = new HashMap<>();
+    static final Map<Integer, HandlerPool<?>> idPoolMap = new HashMap<>();
     static final Map<Class<? extends SessionHandler>, Integer> handlerIdMap = new HashMap<>();
+    static final Map<Class<? extends SessionHandler>, HandlerExecution> handlerExecutionMap = new HashMap<>();
+    /* resolved policies of registered classes and their subclasses */
+    private static final ConcurrentMap<Class<?>, HandlerExecution> executionCache = new ConcurrentHashMap<>();
+    static final int HANDLER_THREADS = Parameter.intValue("meshy.handler.threads",
+                                                          Runtime.getRuntime().availableProcessors());
+    /* runs the callbacks of handlers registered as HandlerExecution.OFFLOAD */
+    static final ExecutorService handlerPool = Executors.newFixedThreadPool(
+            HANDLER_THREADS, new ThreadFactoryBuilder().setNameFormat("meshy-handler-%d").setDaemon(true).build());
     static final AtomicInteger nextHandlerID = new AtomicInteger(1);
     static final DecimalFormat numbers = new DecimalFormat("#,###");
     static final VirtualMachineMetrics vmMetrics = VirtualMachineMetrics.getInstance();
     static final AtomicInteger nextSession = new AtomicInteger(0);
+    static final AttributeKey<Integer> STRIPE = AttributeKey.valueOf("meshy.stripe");
     static final Enumeration<NetworkInterface> netIfEnum;
 
     // metrics and logging
@@ -103,16 +129,19 @@ public abstract class Meshy implements ChannelMaster, Closeable {
 
     // static init block
     static {
+        /* registration order assigns the handler ids used on the wire */
         registerHandlerClass(HostSource.class);
-        registerHandlerClass(HostTarget.class);
+        registerHandlerClass(HostTarget.class, HostTarget::new, HandlerExecution.INLINE);
         registerHandlerClass(FileSource.class);
-        registerHandlerClass(FileTarget.class);
-        registerHandlerClass(PeerSource.class);
-        registerHandlerClass(PeerTarget.class);
+        /* forwarding and peering open connections and scan interfaces; keep them off the event loop */
+        registerHandlerClass(FileTarget.class, FileTarget::new, HandlerExecution.OFFLOAD);
+        registerHandlerClass(PeerSource.class, HandlerExecution.OFFLOAD);
+        registerHandlerClass(PeerTarget.class, PeerTarget::new, HandlerExecution.OFFLOAD);
         registerHandlerClass(StreamSource.class);
-        registerHandlerClass(StreamTarget.class);
+        registerHandlerClass(StreamTarget.class, StreamTarget::new, HandlerExecution.INLINE);
         registerHandlerClass(MessageSource.class);
-        registerHandlerClass(MessageTarget.class);
+        /* message listeners are application code of unknown cost */
+        registerHandlerClass(MessageTarget.class, MessageTarget::new, HandlerExecution.OFFLOAD);
         /* create enum for "smart" auto-mesh */
         try {
             netIfEnum = NetworkInterface.getNetworkInterfaces();
@@ -122,42 +151,87 @@ public abstract class Meshy implements ChannelMaster, Closeable {
     }
 
     private final Collection<ChannelCloseListener> channelCloseListeners = new ArrayList<>();
-    protected final Set<ChannelState> connectedChannels = new HashSet<>();
-    /* nodes actively being peered */
+    protected final ChannelRegistry connectedChannels = new ChannelRegistry();
+    protected final TrafficShaping trafficShaping = new TrafficShaping(connectedChannels);
+    /* nodes actively being peered; guarded by the connectedChannels lock */
     protected final Set<String> inPeering = new HashSet<>();
 
+    protected final MeshyTransport transport;
+    /* event loops of this mesh, possibly shared with others; retained until it is closed */
+    protected final MeshyEventLoopGroup eventLoops;
     protected final EventLoopGroup workerGroup;
+    /* every channel of this mesh, so closing it does not depend on shutting down (shared) event loops */
+    protected final ChannelGroup allChannels = new DefaultChannelGroup(GlobalEventExecutor.INSTANCE);
+    private final AtomicBoolean closing = new AtomicBoolean(false);
+    private final Promise<Void> terminated = new DefaultPromise<>(GlobalEventExecutor.INSTANCE);
 
     private final Bootstrap clientBootstrap;
+    /* connects to servers in this vm; null if the local transport is disabled */
+    @Nullable private final Bootstrap localBootstrap;
     private final String uuid;
+    /* compress frame payloads on channels whose other side supports it */
+    final boolean compressFrames;
+    /* connect to (and, for servers, accept from) meshes in this vm over netty's in-vm transport */
+    protected final boolean localTransport;
 
     private final AtomicLong lastEvent = new AtomicLong(0);
-    private final AtomicInteger bytesIn = new AtomicInteger(0);
-    private final AtomicInteger bytesOut = new AtomicInteger(0);
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
 
     protected Meshy() {
+        this(MeshyEventLoopGroup.builder().build(), false);
+    }
+
+    /**
+     * @param eventLoops event loops shared with other meshes. retained until this mesh is closed
+     */
+    protected Meshy(MeshyEventLoopGroup eventLoops) {
+        this(eventLoops, true);
+    }
+
+    /**
+     * @param retain false if the event loops were created for this mesh alone, which then holds their only
+     *               reference
+     */
+    Meshy(MeshyEventLoopGroup eventLoops, boolean retain) {
         if (HOSTNAME != null) {
             uuid = HOSTNAME + "-" + Long.toHexString(System.currentTimeMillis() & 0xffffff);
         } else {
             uuid = Long.toHexString(UUID.randomUUID().getMostSignificantBits());
         }
-        workerGroup = new NioEventLoopGroup();
-        clientBootstrap = new Bootstrap()
+        compressFrames = Parameter.boolValue("meshy.compress", false);
+        localTransport = Parameter.boolValue("meshy.transport.local", true);
+        this.eventLoops = retain ? eventLoops.retain() : eventLoops;
+        this.transport = eventLoops.getTransport();
+        workerGroup = eventLoops.group();
+        clientBootstrap = transport.configure(new Bootstrap())
                 .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
                 .option(ChannelOption.TCP_NODELAY, true)
                 .option(ChannelOption.SO_KEEPALIVE, true)
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 30000)
                 .option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, HIGH_WATERMARK)
                 .option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, LOW_WATERMARK)
-                .channel(NioSocketChannel.class)
+                .channel(transport.socketChannel())
+                .group(workerGroup)
+                .handler(channelInitializer());
+        localBootstrap = localTransport ? new Bootstrap()
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, HIGH_WATERMARK)
+                .option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, LOW_WATERMARK)
+                .channel(LocalChannel.class)
                 .group(workerGroup)
-                .handler(new ChannelInitializer<NioSocketChannel>() {
-                    @Override
-                    protected void initChannel(final NioSocketChannel ch) throws Exception {
-                        ch.pipeline().addLast(new ChannelState(Meshy.this, ch));
-                    }
-                });
+                .handler(channelInitializer()) : null;
         updateLastEventTime();
+        TrafficCollector.add(this);
+    }
+
+    public MeshyTransport getTransport() {
+        return transport;
+    }
+
+    /** bandwidth limits of this mesh's channels, adjustable at runtime */
+    public TrafficShaping getTrafficShaping() {
+        return trafficShaping;
     }
 
     protected void updateLastEventTime() {
@@ -165,13 +239,62 @@ public abstract class Meshy implements ChannelMaster, Closeable {
     }
 
     static void registerHandlerClass(Class<? extends SessionHandler> clazz) {
+        registerHandlerClass(clazz, HandlerExecution.INLINE);
+    }
+
+    static void registerHandlerClass(Class<? extends SessionHandler> clazz, HandlerExecution execution) {
         if (!handlerIdMap.containsKey(clazz)) {
             int id = nextHandlerID.getAndIncrement();
             idHandlerMap.put(id, clazz);
             handlerIdMap.put(clazz, id);
+            handlerExecutionMap.put(clazz, execution);
         }
     }
 
+    /**
+     * register a target handler with a factory, so that sessions do not construct it reflectively. handlers that
+     * implement {@link TargetHandler#recycle()} are pooled and reused across sessions.
+     */
+    static <T extends TargetHandler> void registerHandlerClass(Class<T> clazz, Supplier<T> factory,
+                                                              HandlerExecution execution) {
+        if (!handlerIdMap.containsKey(clazz)) {
+            registerHandlerClass(clazz, execution);
+            Integer id = handlerIdMap.get(clazz);
+            if (overridesRecycle(clazz)) {
+                idPoolMap.put(id, new HandlerPool<>(clazz, factory));
+            } else {
+                idFactoryMap.put(id, factory);
+            }
+        }
+    }
+
+    /* handlers that keep the default recycle() are never reused, so a pool would only count misses */
+    private static boolean overridesRecycle(Class<? extends TargetHandler> clazz) {
+        for (Class<?> c = clazz; c != TargetHandler.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("recycle");
+                return true;
+            } catch (NoSuchMethodException ignored) {
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the policy of the nearest registered class in the handler's hierarchy, or inline if there is none
+     */
+    static HandlerExecution handlerExecution(Class<? extends SessionHandler> clazz) {
+        return executionCache.computeIfAbsent(clazz, key -> {
+            for (Class<?> c = key; c != null; c = c.getSuperclass()) {
+                HandlerExecution execution = handlerExecutionMap.get(c);
+                if (execution != null) {
+                    return execution;
+                }
+            }
+            return HandlerExecution.INLINE;
+        });
+    }
+
     public static InputStream getInput(int length, ByteBuf buffer) {
         return new ByteArrayInputStream(getBytes(length, buffer));
     }
@@ -203,31 +326,91 @@ public abstract class Meshy implements ChannelMaster, Closeable {
         closeAsync().syncUninterruptibly();
     }
 
+    /**
+     * close the channels of this mesh and release its event loops, which shut down unless other meshes still
+     * use them. safe to call more than once
+     *
+     * @return {@link #terminationFuture()}
+     */
     public Future<?> closeAsync() {
-        synchronized (connectedChannels) {
-            for (ChannelState state : connectedChannels) {
+        if (closing.compareAndSet(false, true)) {
+            TrafficCollector.remove(this);
+            for (ChannelState state : connectedChannels.all()) {
                 state.debugSessions();
             }
+            allChannels.close().addListener(closed -> eventLoops.release().addListener(released -> {
+                if (released.isSuccess()) {
+                    terminated.trySuccess(null);
+                } else {
+                    terminated.tryFailure(released.cause());
+                }
+            }));
         }
-        return workerGroup.shutdownGracefully();
+        return terminated;
+    }
+
+    /** completes once {@link #closeAsync()} has closed every channel and released the event loops */
+    public Future<?> terminationFuture() {
+        return terminated;
+    }
+
+    protected ChannelInitializer<Channel> channelInitializer() {
+        return new ChannelInitializer<Channel>() {
+            @Override
+            protected void initChannel(final Channel ch) throws Exception {
+                allChannels.add(ch);
+                ch.pipeline().addLast(new ChannelState(Meshy.this, ch));
+            }
+        };
     }
 
     protected ChannelFuture connect(InetSocketAddress addr) {
-        return clientBootstrap.connect(addr);
+        LocalAddress local = localAddress(addr);
+        return (local != null) ? localBootstrap.connect(local) : clientBootstrap.connect(addr);
     }
 
-    public int getChannelCount() {
-        synchronized (connectedChannels) {
-            return connectedChannels.size();
+    /**
+     * connect an additional striped channel to a peer. the stripe index is available to
+     * {@link #channelConnected} through the {@link #STRIPE} channel attribute.
+     */
+    protected ChannelFuture connect(InetSocketAddress addr, int stripe) {
+        LocalAddress local = localAddress(addr);
+        if (local != null) {
+            return localBootstrap.clone().attr(STRIPE, stripe).connect(local);
+        }
+        return clientBootstrap.clone().attr(STRIPE, stripe).connect(addr);
+    }
+
+    /** connect to the unix domain socket of a server on this host. needs the {@link MeshyTransport#EPOLL} transport */
+    protected ChannelFuture connect(DomainSocketAddress addr) {
+        if (transport != MeshyTransport.EPOLL) {
+            throw new IllegalStateException("unix domain sockets need the epoll transport, not " + transport);
+        }
+        return UnixTransport.bootstrap(workerGroup, channelInitializer()).connect(addr);
+    }
+
+    /* the in-vm address of a server in this vm listening on addr, if the local transport is enabled */
+    @Nullable private LocalAddress localAddress(InetSocketAddress addr) {
+        if (localBootstrap == null) {
+            return null;
         }
+        LocalAddress local = LocalTransport.lookup(addr);
+        if (local != null) {
+            log.debug("{} connecting to {} in this vm at {}", this, addr, local);
+        }
+        return local;
+    }
+
+    public int getChannelCount() {
+        return connectedChannels.size();
     }
 
     protected int getAndClearSent() {
-        return bytesOut.getAndSet(0);
+        return (int) bytesOut.sumThenReset();
     }
 
     protected int getAndClearRecv() {
-        return bytesIn.getAndSet(0);
+        return (int) bytesIn.sumThenReset();
     }
 
     @Override public String getUUID() {
@@ -235,6 +418,14 @@ public abstract class Meshy implements ChannelMaster, Closeable {
     }
 
     @Override public TargetHandler createHandler(int type) {
+        HandlerPool<?> pool = idPoolMap.get(type);
+        if (pool != null) {
+            return pool.get();
+        }
+        Supplier<? extends TargetHandler> factory = idFactoryMap.get(type);
+        if (factory != null) {
+            return factory.get();
+        }
         try {
             return (TargetHandler) idHandlerMap.get(type).newInstance();
         } catch (Exception e) {
@@ -254,38 +445,21 @@ public abstract class Meshy implements ChannelMaster, Closeable {
      * @param nameFilter null = all channels, empty = named channels, non-empty = exact match
      */
     @Override public Collection<ChannelState> getChannels(final String nameFilter) {
-        Collection<ChannelState> group;
-        HashSet<String> uuids = new HashSet<>();
-        final boolean breakOnMatch = (nameFilter != MeshyConstants.LINK_ALL) &&
-                                     (nameFilter != MeshyConstants.LINK_NAMED);
-        synchronized (connectedChannels) {
-            group = new ArrayList<>(breakOnMatch ? 1 : connectedChannels.size());
-            for (ChannelState state : connectedChannels) {
-                if ((nameFilter == MeshyConstants.LINK_ALL) ||
-                    ((nameFilter == MeshyConstants.LINK_NAMED) && (state.getRemoteAddress() != null)) ||
-                    ((state.getName() != null) && nameFilter.equals(state.getName()))) {
-                    /* prevent dups if >1 connection to the same host */
-                    if ((state.getName() != null) && !uuids.add(state.getName())) {
-                        continue;
-                    }
-                    group.add(state);
-                    if (breakOnMatch) {
-                        break;
-                    }
-                }
-            }
-        }
-        return group;
+        return getChannels(nameFilter, 0);
+    }
+
+    @Override public Collection<ChannelState> getChannels(final String nameFilter, final int session) {
+        return connectedChannels.select(nameFilter, session);
     }
 
     @Override public void sentBytes(int size) {
         bytesOutMeter.mark(size);
-        bytesOut.addAndGet(size);
+        bytesOut.add(size);
     }
 
     @Override public void recvBytes(int size) {
         bytesInMeter.mark(size);
-        bytesIn.addAndGet(size);
+        bytesIn.add(size);
     }
 
     @Override public long lastEventTime() {
@@ -293,9 +467,8 @@ public abstract class Meshy implements ChannelMaster, Closeable {
     }
 
     protected void channelConnected(Channel channel, ChannelState channelState) {
-        synchronized (connectedChannels) {
-            connectedChannels.add(channelState);
-        }
+        connectedChannels.add(channelState);
+        trafficShaping.apply(channelState);
         log.debug("{} channelConnected @ {}", this, channel.remoteAddress());
     }
 
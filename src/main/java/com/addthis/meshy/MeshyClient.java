@@ -13,18 +13,23 @@
  */
 package com.addthis.meshy;
 
+import javax.annotation.Nullable;
+
 import java.io.IOException;
 
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.addthis.meshy.service.file.FileReference;
 import com.addthis.meshy.service.file.FileSource;
 import com.addthis.meshy.service.stream.SourceInputStream;
+import com.addthis.meshy.service.stream.StreamCollector;
 import com.addthis.meshy.service.stream.StreamSource;
 
 import org.slf4j.Logger;
@@ -32,6 +37,7 @@ import org.slf4j.LoggerFactory;
 
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.unix.DomainSocketAddress;
 import io.netty.util.concurrent.Future;
 
 
@@ -50,14 +56,35 @@ public class MeshyClient extends Meshy {
      * client
      */
     public MeshyClient(InetSocketAddress address) throws IOException {
-        super();
+        this(MeshyEventLoopGroup.builder().build(), false, address);
+    }
+
+    /**
+     * client running on event loops shared with other meshes
+     */
+    public MeshyClient(MeshyEventLoopGroup eventLoops, InetSocketAddress address) throws IOException {
+        this(eventLoops, true, address);
+    }
+
+    /**
+     * client of a server on this host, connected to its unix domain socket (see {@code meshy.unix.path}).
+     * runs on the epoll transport regardless of {@code meshy.transport}
+     */
+    public MeshyClient(DomainSocketAddress address) throws IOException {
+        this(MeshyEventLoopGroup.builder().transport(UnixTransport.transport()).build(), false, address);
+    }
+
+    private MeshyClient(MeshyEventLoopGroup eventLoops, boolean retain, SocketAddress address) throws IOException {
+        super(eventLoops, retain);
         /* block session creation until connection is fully established */
         try {
             clientInitGate.acquire();
         } catch (Exception ex) {
             throw new RuntimeException(ex);
         }
-        ChannelFuture clientConnect = connect(address);
+        ChannelFuture clientConnect = (address instanceof DomainSocketAddress)
+                                      ? connect((DomainSocketAddress) address)
+                                      : connect((InetSocketAddress) address);
         clientConnect.awaitUninterruptibly();
         if (!clientConnect.isSuccess()) {
             close();
@@ -110,11 +137,8 @@ public class MeshyClient extends Meshy {
     }
 
     @Override public Future<?> closeAsync() {
-        if (closed.compareAndSet(false, true)) {
-            return super.closeAsync();
-        } else {
-            return workerGroup.terminationFuture();
-        }
+        closed.set(true);
+        return super.closeAsync();
     }
 
     public MeshyClient setBufferSize(int size) {
@@ -153,6 +177,23 @@ public class MeshyClient extends Meshy {
         fileSource.requestRemoteFiles(paths);
     }
 
+    /**
+     * non-blocking version. completes with the references found once every peer has answered, or exceptionally
+     * if the search does not complete within {@code meshy.complete.timeout}.
+     */
+    public CompletableFuture<Collection<FileReference>> listFilesAsync(final String[] paths) {
+        if (closed.get()) {
+            return failed(new IOException("client connection closed"));
+        }
+        FileSource fileSource;
+        try {
+            fileSource = new FileSource(this, paths);
+        } catch (RuntimeException ex) {
+            return failed(ex);
+        }
+        return fileSource.getCompletionFuture().thenApply(ignored -> fileSource.getFileList());
+    }
+
     public SourceInputStream readFile(FileReference ref) throws IOException {
         return readFile(ref.getHostUUID(), ref.name);
     }
@@ -175,6 +216,32 @@ public class MeshyClient extends Meshy {
         return new StreamSource(this, nodeUuid, fileName, options, bufferSize).getInputStream();
     }
 
+    public CompletableFuture<byte[]> readFileAsync(FileReference ref) {
+        return readFileAsync(ref.getHostUUID(), ref.name, null);
+    }
+
+    /**
+     * non-blocking version. completes with the whole file once it has been streamed, so only suited to files
+     * that comfortably fit in memory.
+     */
+    public CompletableFuture<byte[]> readFileAsync(String nodeUuid, String fileName,
+                                                  @Nullable Map<String, String> options) {
+        if (closed.get()) {
+            return failed(new IOException("client connection closed"));
+        }
+        try {
+            return new StreamCollector(this, nodeUuid, fileName, options, bufferSize).getFuture();
+        } catch (IOException | RuntimeException ex) {
+            return failed(ex);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable cause) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(cause);
+        return future;
+    }
+
     public StreamSource getFileSource(String nodeUuid, String fileName, Map<String, String> options)
             throws IOException {
         if (closed.get()) {
@@ -15,10 +15,14 @@ package com.addthis.meshy;
 
 import java.io.IOException;
 
+import java.net.InetSocketAddress;
+
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.addthis.basis.util.Parameter;
+
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GlobalEventExecutor;
 import io.netty.util.concurrent.SucceededFuture;
@@ -31,6 +35,12 @@ public final class MeshyClientHelper {
      */
     static final Map<String, StaticClient> meshyClients = new HashMap<>();
 
+    /* event loop threads shared by all of the static clients */
+    static final int THREADS = Parameter.intValue("meshy.helper.threads", MeshyEventLoopGroup.DEFAULT_THREADS);
+
+    /* event loops of the static clients while there are any; guarded by meshyClients */
+    private static MeshyEventLoopGroup eventLoops;
+
     private MeshyClientHelper() {
     }
 
@@ -42,7 +52,15 @@ public final class MeshyClientHelper {
             String key = host + ":" + port;
             StaticClient client = meshyClients.get(key);
             if (client == null) {
-                client = new StaticClient(key, host, port);
+                if (eventLoops == null) {
+                    eventLoops = MeshyEventLoopGroup.builder().threads(THREADS).build();
+                }
+                try {
+                    client = new StaticClient(key, eventLoops, new InetSocketAddress(host, port));
+                } catch (IOException | RuntimeException ex) {
+                    releaseIfIdle();
+                    throw ex;
+                }
                 meshyClients.put(key, client);
             }
             client.incRef();
@@ -50,14 +68,22 @@ public final class MeshyClientHelper {
         }
     }
 
+    /* drop the helper's reference to the event loops once no static client uses them */
+    private static void releaseIfIdle() {
+        if (meshyClients.isEmpty() && (eventLoops != null)) {
+            eventLoops.release();
+            eventLoops = null;
+        }
+    }
+
     /** */
     private static class StaticClient extends MeshyClient {
 
         private final AtomicInteger refCount = new AtomicInteger(0);
         private final String key;
 
-        StaticClient(String key, String host, int port) throws IOException {
-            super(host, port);
+        StaticClient(String key, MeshyEventLoopGroup eventLoops, InetSocketAddress address) throws IOException {
+            super(eventLoops, address);
             this.key = key;
         }
 
@@ -70,6 +96,7 @@ public final class MeshyClientHelper {
             synchronized (meshyClients) {
                 if (refCount.decrementAndGet() == 0) {
                     meshyClients.remove(key);
+                    releaseIfIdle();
                     return super.closeAsync();
                 } else {
                     return new SucceededFuture<>(GlobalEventExecutor.INSTANCE, null);
@@ -0,0 +1,131 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.addthis.basis.util.Parameter;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.GlobalEventExecutor;
+import io.netty.util.concurrent.SucceededFuture;
+
+/**
+ * Netty event loops that several meshes (servers of a {@link MeshyServerGroup}, or many clients) can share
+ * instead of each starting its own. A mesh built on a shared group retains it and releases it when closed; the
+ * group shuts down on the last release. Whoever builds a group holds the first reference, and releases it once
+ * it will not hand the group to any more meshes:
+ * <pre>
+ *   MeshyEventLoopGroup loops = MeshyEventLoopGroup.builder().threads(4).build();
+ *   MeshyClient a = new MeshyClient(loops, addressA);
+ *   MeshyClient b = new MeshyClient(loops, addressB);
+ *   loops.release(); // shuts down once a and b are closed
+ * </pre>
+ */
+public final class MeshyEventLoopGroup {
+
+    /* event loop threads of groups that do not set them. 0 is netty's default, twice the number of cores */
+    static final int DEFAULT_THREADS = Parameter.intValue("meshy.eventLoop.threads", 0);
+
+    private final MeshyTransport transport;
+    private final EventLoopGroup group;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    private MeshyEventLoopGroup(MeshyTransport transport, int threads) {
+        this.transport = transport;
+        this.group = transport.createEventLoopGroup(threads);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public MeshyTransport getTransport() {
+        return transport;
+    }
+
+    EventLoopGroup group() {
+        return group;
+    }
+
+    /**
+     * @throws IllegalStateException if the group has already been released by every user
+     */
+    public MeshyEventLoopGroup retain() {
+        while (true) {
+            int count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("event loop group is shut down");
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * @return the termination future of the group if this was the last reference, otherwise a completed future
+     */
+    public Future<?> release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            return group.shutdownGracefully();
+        } else if (count < 0) {
+            throw new IllegalStateException("event loop group released more often than retained");
+        }
+        return new SucceededFuture<>(GlobalEventExecutor.INSTANCE, null);
+    }
+
+    public int refCount() {
+        return refCount.get();
+    }
+
+    public Future<?> terminationFuture() {
+        return group.terminationFuture();
+    }
+
+    @Override
+    public String toString() {
+        return "MeshyEventLoopGroup{" + transport + ",refs=" + refCount.get() + "}";
+    }
+
+    public static final class Builder {
+
+        private MeshyTransport transport;
+        private int threads = DEFAULT_THREADS;
+
+        private Builder() {
+        }
+
+        /** defaults to the transport named by {@code meshy.transport} */
+        public Builder transport(MeshyTransport transport) {
+            this.transport = transport;
+            return this;
+        }
+
+        /** defaults to {@code meshy.eventLoop.threads}; 0 for netty's default */
+        public Builder threads(int threads) {
+            if (threads < 0) {
+                throw new IllegalArgumentException("negative thread count: " + threads);
+            }
+            this.threads = threads;
+            return this;
+        }
+
+        public MeshyEventLoopGroup build() {
+            return new MeshyEventLoopGroup((transport != null) ? transport : MeshyTransport.configured(), threads);
+        }
+    }
+}
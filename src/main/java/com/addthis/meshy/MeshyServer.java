@@ -19,6 +19,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 
+import java.net.BindException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.InterfaceAddress;
@@ -29,8 +30,12 @@ import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.addthis.basis.util.LessBytes;
@@ -53,13 +58,14 @@ import io.netty.bootstrap.ServerBootstrap;
 import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalServerChannel;
 import io.netty.channel.socket.ServerSocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+import io.netty.handler.traffic.TrafficCounter;
 import io.netty.util.concurrent.DefaultPromise;
 import io.netty.util.concurrent.Future;
 import io.netty.util.concurrent.GlobalEventExecutor;
@@ -76,9 +82,13 @@ public class MeshyServer extends Meshy {
     private static final int autoMeshTimeout = Parameter.intValue("meshy.autoMeshTimeout", 60000);
 
     static final Counter peerCountMetric = Metrics.newCounter(Meshy.class, "peerCount");
+    /* name of accepted channels until peering names them; clients never are */
+    static final String TEMP_UUID_PREFIX = "temp-uuid-";
 
     private static final ArrayList<byte[]> vmLocalNet = new ArrayList<>(3);
     private static final HashMap<String, VirtualFileSystem[]> vfsCache = new HashMap<>();
+    /* number of open servers using each cached list of file systems */
+    private static final IdentityHashMap<VirtualFileSystem[], Integer> vfsUsers = new IdentityHashMap<>();
     private static final HashSet<String> blockedPeers = new HashSet<>();
 
     public static final MessageFileSystem messageFileSystem = new MessageFileSystem();
@@ -109,14 +119,56 @@ public class MeshyServer extends Meshy {
 
     }
 
+    /**
+     * forget (and close) the cached file systems, so that servers created from now on load new ones. servers still
+     * using the old ones fall back to the live file system
+     */
     public static void resetFileSystems() {
-        vfsCache.clear();
+        synchronized (vfsCache) {
+            for (VirtualFileSystem[] vfsList : vfsCache.values()) {
+                closeFileSystems(vfsList);
+            }
+            vfsCache.clear();
+            vfsUsers.clear();
+        }
     }
 
     /**
      * cache for use of multiple servers in one VM
      */
     protected static VirtualFileSystem[] loadFileSystems(File rootDir) {
+        synchronized (vfsCache) {
+            VirtualFileSystem[] vfsList = loadCachedFileSystems(rootDir);
+            vfsUsers.merge(vfsList, 1, Integer::sum);
+            return vfsList;
+        }
+    }
+
+    /* closes the file systems of a closed server once no other server uses them */
+    private static void releaseFileSystems(VirtualFileSystem[] vfsList) {
+        synchronized (vfsCache) {
+            Integer users = vfsUsers.get(vfsList);
+            if (users == null) {
+                // reset since they were loaded
+                return;
+            }
+            if (users > 1) {
+                vfsUsers.put(vfsList, users - 1);
+                return;
+            }
+            vfsUsers.remove(vfsList);
+            vfsCache.values().remove(vfsList);
+            closeFileSystems(vfsList);
+        }
+    }
+
+    private static void closeFileSystems(VirtualFileSystem[] vfsList) {
+        for (VirtualFileSystem vfs : vfsList) {
+            vfs.close();
+        }
+    }
+
+    private static VirtualFileSystem[] loadCachedFileSystems(File rootDir) {
         String cacheKey = rootDir != null ? rootDir.getAbsolutePath() : ".";
         VirtualFileSystem[] vfsList = vfsCache.get(cacheKey);
         if (vfsList == null) {
@@ -144,14 +196,24 @@ public class MeshyServer extends Meshy {
     private final int serverPort;
     private final File rootDir;
     private final VirtualFileSystem[] filesystems;
-    private final EventLoopGroup bossGroup;
+    private final AtomicBoolean filesystemsReleased = new AtomicBoolean(false);
+    /* accepts tcp connections. null on shared event loops, which then accept them too */
+    @Nullable private final EventLoopGroup bossGroup;
     private final String serverUuid;
     private final MeshyServerGroup group;
     private final AtomicInteger serverPeers;
+    /* number of channels opened to each named peer this server connects to */
+    private final int peerStripes;
 
     private final Promise<?> closeFuture;
 
     private final InetSocketAddress serverLocal;
+    /* in-vm address this server also accepts connections on; see LocalTransport */
+    @Nullable private final LocalAddress localServerAddress;
+    /* unix domain socket this server also accepts connections on; see UnixTransport */
+    @Nullable private final DomainSocketAddress unixServerAddress;
+    /* event loops for unix socket channels when the tcp transport is not epoll */
+    @Nullable private final EventLoopGroup unixGroup;
     private final NetworkInterface serverNetIf;
 
     public MeshyServer(int port) throws IOException {
@@ -164,13 +226,27 @@ public class MeshyServer extends Meshy {
 
     public MeshyServer(final int port, final File rootDir, @Nullable String[] netif, final MeshyServerGroup group)
             throws IOException {
-        super();
+        this(port, rootDir, netif, group, MeshyEventLoopGroup.builder().build(), false);
+    }
+
+    /**
+     * server running on event loops shared with other meshes (eg. the other servers of its group)
+     */
+    public MeshyServer(int port, File rootDir, @Nullable String[] netif, MeshyServerGroup group,
+                       MeshyEventLoopGroup eventLoops) throws IOException {
+        this(port, rootDir, netif, group, eventLoops, true);
+    }
+
+    private MeshyServer(final int port, final File rootDir, @Nullable String[] netif, final MeshyServerGroup group,
+                        MeshyEventLoopGroup eventLoops, boolean retain) throws IOException {
+        super(eventLoops, retain);
         this.group = group;
         this.rootDir = rootDir;
         this.filesystems = loadFileSystems(rootDir);
         this.serverPeers = new AtomicInteger(0);
-        bossGroup = new NioEventLoopGroup(1);
-        ServerBootstrap bootstrap = new ServerBootstrap()
+        this.peerStripes = Math.max(1, Parameter.intValue("meshy.peer.stripes", 1));
+        bossGroup = retain ? null : transport.createEventLoopGroup(1);
+        ServerBootstrap bootstrap = transport.configure(new ServerBootstrap())
                 .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
                 .option(ChannelOption.SO_BACKLOG, 1024)
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 30000)
@@ -180,19 +256,17 @@ public class MeshyServer extends Meshy {
                 .childOption(ChannelOption.SO_KEEPALIVE, true)
                 .childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, HIGH_WATERMARK)
                 .childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, LOW_WATERMARK)
-                .channel(NioServerSocketChannel.class)
-                .group(bossGroup, workerGroup)
-                .childHandler(new ChannelInitializer<NioSocketChannel>() {
-                    @Override
-                    protected void initChannel(final NioSocketChannel ch) throws Exception {
-                        ch.pipeline().addLast(new ChannelState(MeshyServer.this, ch));
-                    }
-                });
+                .channel(transport.serverSocketChannel())
+                .group((bossGroup != null) ? bossGroup : workerGroup, workerGroup)
+                .childHandler(channelInitializer());
         /* bind to one or more interfaces, if supplied, otherwise all */
+        List<InetSocketAddress> bound = new ArrayList<>();
         if ((netif == null) || (netif.length == 0)) {
             ServerSocketChannel serverChannel =
                     (ServerSocketChannel) bootstrap.bind(new InetSocketAddress(port)).syncUninterruptibly().channel();
+            allChannels.add(serverChannel);
             serverLocal = serverChannel.localAddress();
+            bound.add(serverLocal);
         } else {
             InetSocketAddress primaryServerLocal = null;
             for (String net : netif) {
@@ -211,6 +285,8 @@ public class MeshyServer extends Meshy {
                             (ServerSocketChannel) bootstrap.bind(new InetSocketAddress(inAddr, port))
                                                            .syncUninterruptibly()
                                                            .channel();
+                    allChannels.add(serverChannel);
+                    bound.add(serverChannel.localAddress());
                     if (primaryServerLocal != null) {
                         log.info("server [{}-*] binding to extra address: {}", super.getUUID(), primaryServerLocal);
                     }
@@ -229,17 +305,60 @@ public class MeshyServer extends Meshy {
         } else {
             serverUuid = super.getUUID() + "-" + serverPort;
         }
+        if (localTransport) {
+            localServerAddress = LocalTransport.register(serverUuid, serverLocal, bound);
+            allChannels.add(new ServerBootstrap()
+                    .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                    .childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, HIGH_WATERMARK)
+                    .childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, LOW_WATERMARK)
+                    .channel(LocalServerChannel.class)
+                    .group(workerGroup)
+                    .childHandler(channelInitializer())
+                    .bind(localServerAddress).syncUninterruptibly().channel());
+        } else {
+            localServerAddress = null;
+        }
+        unixServerAddress = UnixTransport.serverAddress(serverPort);
+        if (unixServerAddress != null) {
+            /* domain socket channels need epoll event loops; the tcp ones might not be */
+            unixGroup = (transport == MeshyTransport.EPOLL)
+                        ? null : UnixTransport.transport().createEventLoopGroup(MeshyEventLoopGroup.DEFAULT_THREADS);
+            EventLoopGroup unixLoops = (unixGroup != null) ? unixGroup : workerGroup;
+            File socketFile = new File(unixServerAddress.path());
+            if (UnixTransport.isInUse(unixLoops, unixServerAddress)) {
+                closeAsync();
+                throw new BindException("unix socket " + socketFile + " is in use by another server");
+            }
+            if (socketFile.exists() && socketFile.delete()) {
+                log.info("removed stale unix socket {}", socketFile);
+            }
+            Channel unixChannel = UnixTransport.serverBootstrap(unixLoops, channelInitializer())
+                                               .bind(unixServerAddress).syncUninterruptibly().channel();
+            allChannels.add(unixChannel);
+            Object socketKey = UnixTransport.fileKey(unixServerAddress);
+            DomainSocketAddress unixAddress = unixServerAddress;
+            unixChannel.closeFuture().addListener(closed -> UnixTransport.deleteSocketFile(unixAddress, socketKey));
+            log.info("server [{}] also on unix socket {}", serverUuid, unixServerAddress);
+        } else {
+            unixGroup = null;
+        }
         log.info("server [{}] on {} @ {}", getUUID(), serverLocal, rootDir);
         closeFuture = new DefaultPromise<>(GlobalEventExecutor.INSTANCE);
-        workerGroup.terminationFuture().addListener((Future<Object> workerFuture) -> {
-            bossGroup.terminationFuture().addListener((Future<Object> bossFuture) -> {
-                if (!workerFuture.isSuccess()) {
-                    closeFuture.tryFailure(workerFuture.cause());
-                } else if (!bossFuture.isSuccess()) {
-                    closeFuture.tryFailure(bossFuture.cause());
-                } else {
-                    closeFuture.trySuccess(null);
-                }
+        Future<?> bossTermination = (bossGroup != null) ? bossGroup.terminationFuture() : terminationFuture();
+        Future<?> unixTermination = (unixGroup != null) ? unixGroup.terminationFuture() : terminationFuture();
+        terminationFuture().addListener(meshyFuture -> {
+            bossTermination.addListener(bossFuture -> {
+                unixTermination.addListener(unixFuture -> {
+                    if (!meshyFuture.isSuccess()) {
+                        closeFuture.tryFailure(meshyFuture.cause());
+                    } else if (!bossFuture.isSuccess()) {
+                        closeFuture.tryFailure(bossFuture.cause());
+                    } else if (!unixFuture.isSuccess()) {
+                        closeFuture.tryFailure(unixFuture.cause());
+                    } else {
+                        closeFuture.trySuccess(null);
+                    }
+                });
             });
         });
         addMessageFileSystemPaths();
@@ -258,6 +377,60 @@ public class MeshyServer extends Meshy {
             }
             return sb.toString().getBytes(UTF_8);
         });
+        messageFileSystem.addPath("/meshy/" + getUUID() + "/compression", (fileName, options) -> {
+            StringBuilder sb = new StringBuilder();
+            for (ChannelState state : connectedChannels.all()) {
+                FrameCompressor compressor = state.compressor();
+                sb.append(String.format("%s %s enabled=%s raw=%d compressed=%d ratio=%.3f compressMs=%d inflateMs=%d\n",
+                                        state.getName(), state.getChannelRemoteAddress(), compressor.isEnabled(),
+                                        compressor.rawBytes(), compressor.compressedBytes(), compressor.ratio(),
+                                        TimeUnit.NANOSECONDS.toMillis(compressor.compressNanos()),
+                                        TimeUnit.NANOSECONDS.toMillis(compressor.inflateNanos())));
+            }
+            return sb.toString().getBytes(UTF_8);
+        });
+        messageFileSystem.addPath("/meshy/" + getUUID() + "/traffic", (fileName, options) -> {
+            StringBuilder sb = new StringBuilder();
+            for (ChannelState state : connectedChannels.all()) {
+                sb.append(String.format("channel %s %s stripe=%d %s\n", state.getName(),
+                                        state.getChannelRemoteAddress(), state.getStripe(), state.traffic()));
+            }
+            for (Map.Entry<String, TrafficCounters> entry : TrafficCounters.byHandler().entrySet()) {
+                sb.append(String.format("handler %s %s\n", entry.getKey(), entry.getValue()));
+            }
+            return sb.toString().getBytes(UTF_8);
+        });
+        // options clientWrite, clientRead, peerWrite and peerRead (KB/s, 0 for unlimited) change the limits
+        messageFileSystem.addPath("/meshy/" + getUUID() + "/shaping", (fileName, options) -> {
+            String invalid = invalidLimit(options, "clientWrite", "clientRead", "peerWrite", "peerRead");
+            if (invalid != null) {
+                return ("400 bad request: " + invalid + "\n").getBytes(UTF_8);
+            }
+            if (options.containsKey("clientWrite") || options.containsKey("clientRead")) {
+                trafficShaping.setClientLimits(
+                        kilobytes(options.get("clientWrite"), trafficShaping.getClientWriteLimit()),
+                        kilobytes(options.get("clientRead"), trafficShaping.getClientReadLimit()));
+            }
+            if (options.containsKey("peerWrite") || options.containsKey("peerRead")) {
+                trafficShaping.setPeerLimits(
+                        kilobytes(options.get("peerWrite"), trafficShaping.getPeerWriteLimit()),
+                        kilobytes(options.get("peerRead"), trafficShaping.getPeerReadLimit()));
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append("limits ").append(trafficShaping).append("\n");
+            for (ChannelState state : connectedChannels.all()) {
+                ChannelTrafficShapingHandler shaper = TrafficShaping.shaper(state.getChannel());
+                if (shaper != null) {
+                    TrafficCounter counter = shaper.trafficCounter();
+                    sb.append(String.format("channel %s %s write=%d read=%d writeRate=%d readRate=%d queued=%d\n",
+                                            state.getName(), state.getChannelRemoteAddress(),
+                                            shaper.getWriteLimit(), shaper.getReadLimit(),
+                                            counter.lastWriteThroughput(), counter.lastReadThroughput(),
+                                            shaper.queueSize()));
+                }
+            }
+            return sb.toString().getBytes(UTF_8);
+        });
         messageFileSystem.addPath("/meshy/statsMap", (fileName, options) -> {
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             Map<String, Integer> stats = group.getLastStatsMap();
@@ -300,6 +473,32 @@ public class MeshyServer extends Meshy {
         });
     }
 
+    /* a valid limit option in KB/s, or the current limit (in bytes/s) if it is not given */
+    private static long kilobytes(@Nullable String option, long current) {
+        return (option != null) ? parseKilobytes(option) : current;
+    }
+
+    /* @return the limit in bytes/s, or -1 if the option is not a number of KB/s that fits */
+    private static long parseKilobytes(String option) {
+        try {
+            long limit = Long.parseLong(option.trim());
+            return ((limit >= 0) && (limit <= (Long.MAX_VALUE / 1024))) ? (limit * 1024) : -1;
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    /* @return what is wrong with the first invalid limit option, or null if they are all valid (or not given) */
+    @Nullable private static String invalidLimit(Map<String, String> options, String... names) {
+        for (String name : names) {
+            String option = options.get(name);
+            if ((option != null) && (parseKilobytes(option) < 0)) {
+                return name + "=" + option + " is not a number of KB/s (0 for unlimited)";
+            }
+        }
+        return null;
+    }
+
     public File getRootDir() {
         return rootDir;
     }
@@ -315,22 +514,32 @@ public class MeshyServer extends Meshy {
 
     @Override
     protected void channelConnected(Channel channel, ChannelState channelState) {
-        super.channelConnected(channel, channelState);
         /* servers peer with other servers once a channel comes up */
-        // assign unique id (local or remote inferred)
-        channelState.setName("temp-uuid-" + nextSession.incrementAndGet());
-        InetSocketAddress address = (InetSocketAddress) channel.remoteAddress();
+        // assign unique id (local or remote inferred) before the channel is indexed
+        channelState.setName(TEMP_UUID_PREFIX + nextSession.incrementAndGet());
+        Integer stripe = channel.attr(STRIPE).get();
+        if (stripe != null) {
+            channelState.setStripe(stripe);
+        }
+        super.channelConnected(channel, channelState);
+        InetSocketAddress address = channelState.getChannelRemoteAddress();
         if (channel.parent() == null) {
-            log.debug("{} >>> starting peering with {}", MeshyServer.this, address);
-            new PeerSource(this, channelState.getName());
+            log.debug("{} >>> starting peering with {} stripe {}", MeshyServer.this, address, stripe);
+            new PeerSource(this, channelState.getName(), channelState.getStripe());
         }
     }
 
     @Override
     protected void channelClosed(Channel channel, ChannelState channelState) {
         super.channelClosed(channel, channelState);
-        if (channelState.getRemoteAddress() != null) {
+        if ((channelState.getRemoteAddress() != null) && (channelState.getStripe() == 0)) {
             serverPeers.decrementAndGet();
+            /* stripes only live as long as their primary so that re-peering starts from a clean slate */
+            for (ChannelState state : connectedChannels.named(channelState.getName())) {
+                if (state.getChannel().isOpen()) {
+                    state.getChannel().close();
+                }
+            }
         }
     }
 
@@ -341,7 +550,18 @@ public class MeshyServer extends Meshy {
     }
 
     @Override public Future<?> closeAsync() {
-        bossGroup.shutdownGracefully();
+        if (filesystemsReleased.compareAndSet(false, true)) {
+            releaseFileSystems(filesystems);
+        }
+        if (localServerAddress != null) {
+            LocalTransport.unregister(localServerAddress);
+        }
+        if (bossGroup != null) {
+            bossGroup.shutdownGracefully();
+        }
+        if (unixGroup != null) {
+            unixGroup.shutdownGracefully();
+        }
         super.closeAsync();
         return closeFuture;
     }
@@ -362,6 +582,11 @@ public class MeshyServer extends Meshy {
         return serverLocal;
     }
 
+    /** @return the unix domain socket this server listens on, or null if {@code meshy.unix.path} is not set */
+    @Nullable public DomainSocketAddress getUnixSocketAddress() {
+        return unixServerAddress;
+    }
+
     public VirtualFileSystem[] getFileSystems() {
         return filesystems;
     }
@@ -391,12 +616,10 @@ public class MeshyServer extends Meshy {
 
     public boolean dropPeer(final String peerUuid) {
         boolean hitAtLeastOnce = false;
-        synchronized (connectedChannels) {
-            for (ChannelState state : connectedChannels) {
-                if (state.getName().equals(peerUuid) && state.getChannel().isOpen()) {
-                    state.getChannel().close();
-                    hitAtLeastOnce = true;
-                }
+        for (ChannelState state : connectedChannels.named(peerUuid)) {
+            if (state.getChannel().isOpen()) {
+                state.getChannel().close();
+                hitAtLeastOnce = true;
             }
         }
         return hitAtLeastOnce;
@@ -445,17 +668,13 @@ public class MeshyServer extends Meshy {
         /* skip peering again */
         log.debug("{} peer.check (uuid={} addr={})", this, peerUuid, pAddr);
         synchronized (connectedChannels) {
-            for (ChannelState channelState : connectedChannels) {
-                log.trace(" --> state={}", channelState);
-                if (peerUuid != null && channelState.getName() != null && channelState.getName().equals(peerUuid)) {
-                    log.trace("{} 1.peer.uuid {} already connected", this, peerUuid);
-                    return null;
-                }
-                InetSocketAddress remoteAddr = channelState.getRemoteAddress();
-                if (remoteAddr != null && remoteAddr.equals(pAddr)) {
-                    log.trace("{} 2.peer.addr {} already connected", this, pAddr);
-                    return null;
-                }
+            if (peerUuid != null && !connectedChannels.named(peerUuid).isEmpty()) {
+                log.trace("{} 1.peer.uuid {} already connected", this, peerUuid);
+                return null;
+            }
+            if (connectedChannels.byAddress(pAddr) != null) {
+                log.trace("{} 2.peer.addr {} already connected", this, pAddr);
+                return null;
             }
             /* already actively peering with this uuid */
             if (peerUuid != null && !inPeering.add(peerUuid)) {
@@ -480,25 +699,63 @@ public class MeshyServer extends Meshy {
 
     public boolean promoteToNamedServerPeer(ChannelState peerState, String newUuid, InetSocketAddress newAddr) {
         synchronized (connectedChannels) {
-            for (ChannelState channelState : connectedChannels) {
-                if (newUuid.equals(channelState.getName())) {
-                    log.info("rejecting peerage for {} @ {} (to {} @ {}) because uuid matches existing {} for: {}",
-                             peerState.getName(), peerState.getChannelRemoteAddress(), newUuid, newAddr,
-                             channelState, this);
-                    return false;
-                }
-                if (newAddr.equals(channelState.getRemoteAddress())) {
-                    log.info("rejecting peerage for {} @ {} (to {} @ {}) because address matches existing {} for: {}",
-                             peerState.getName(), peerState.getChannelRemoteAddress(), newUuid, newAddr,
-                             channelState, this);
-                    return false;
-                }
+            List<ChannelState> existing = connectedChannels.named(newUuid);
+            if (!existing.isEmpty()) {
+                log.info("rejecting peerage for {} @ {} (to {} @ {}) because uuid matches existing {} for: {}",
+                         peerState.getName(), peerState.getChannelRemoteAddress(), newUuid, newAddr,
+                         existing.get(0), this);
+                return false;
+            }
+            ChannelState sameAddress = connectedChannels.byAddress(newAddr);
+            if (sameAddress != null) {
+                log.info("rejecting peerage for {} @ {} (to {} @ {}) because address matches existing {} for: {}",
+                         peerState.getName(), peerState.getChannelRemoteAddress(), newUuid, newAddr,
+                         sameAddress, this);
+                return false;
             }
             log.info("promoting {} @ {} to named server peer as {} @ {} for: {}",
                      peerState.getName(), peerState.getChannelRemoteAddress(), newUuid, newAddr, this);
             peerState.setName(newUuid);
             peerState.setRemoteAddress(newAddr);
+            connectedChannels.reindex();
+            trafficShaping.apply(peerState);
             serverPeers.incrementAndGet();
+        }
+        if (peerState.getChannel().parent() == null) {
+            for (int stripe = 1; stripe < peerStripes; stripe++) {
+                log.debug("{} connecting stripe {} to {} @ {}", this, stripe, newUuid, newAddr);
+                connect(newAddr, stripe);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * accept an additional striped channel to an already promoted peer
+     */
+    public boolean promoteToPeerStripe(ChannelState peerState, String newUuid, InetSocketAddress newAddr, int stripe) {
+        synchronized (connectedChannels) {
+            boolean havePrimary = false;
+            for (ChannelState channelState : connectedChannels.named(newUuid)) {
+                if (channelState.getStripe() == stripe) {
+                    log.info("rejecting stripe {} for {} @ {} because it is already connected for: {}",
+                             stripe, newUuid, newAddr, this);
+                    return false;
+                }
+                havePrimary |= channelState.getStripe() == 0;
+            }
+            if (!havePrimary) {
+                log.info("rejecting stripe {} for {} @ {} without a primary channel for: {}",
+                         stripe, newUuid, newAddr, this);
+                return false;
+            }
+            log.debug("adding stripe {} @ {} to named server peer {} @ {} for: {}",
+                      stripe, peerState.getChannelRemoteAddress(), newUuid, newAddr, this);
+            peerState.setName(newUuid);
+            peerState.setRemoteAddress(newAddr);
+            peerState.setStripe(stripe);
+            connectedChannels.reindex();
+            trafficShaping.apply(peerState);
             return true;
         }
     }
@@ -48,6 +48,10 @@ public class MeshyServerGroup {
     private final Thread statsThread;
 
     private int statsCountdown = 2;
+    // directory cache counters at the last stats line
+    private long lastDirHits;
+    private long lastDirLookups;
+    private long lastDirEvictions;
 
     // TODO replace with scheduled thread pool
     public MeshyServerGroup() {
@@ -117,7 +121,7 @@ public class MeshyServerGroup {
         rep.append(" sZ=");
         rep.append(ss.sleeps); // sleeps b/c over sendWait limit
         rep.append(" cZ=");
-        rep.append(ChannelState.writeSleeps.getAndSet(0)); // sleeps b/c over channel watermark
+        rep.append(ChannelState.writeDeferrals.getAndSet(0)); // writes deferred b/c over channel watermark
         rep.append(" fQ=");
         rep.append(fs.finderQueue); // number of finds waiting in queue
         rep.append(" fR=");
@@ -142,6 +146,24 @@ public class MeshyServerGroup {
             rep.append(" mF=");
             rep.append(ReadMuxFileDirectoryCache.getCacheFileSize()); // muxy cached files
         }
+        DirectoryCache dirCache = DirectoryCache.instance;
+        long dirHits = dirCache.hits();
+        long dirLookups = dirHits + dirCache.misses();
+        long dirEvictions = dirCache.evictions();
+        rep.append(" dL=");
+        rep.append(dirLookups - lastDirLookups); // directory cache lookups since last logline
+        rep.append(" dH=");
+        rep.append((dirLookups > lastDirLookups) ? // % of them that were hits
+                   (((dirHits - lastDirHits) * 100) / (dirLookups - lastDirLookups)) : 0);
+        rep.append(" dE=");
+        rep.append(dirEvictions - lastDirEvictions); // listings evicted to stay within the size bound
+        rep.append(" dS=");
+        rep.append(dirCache.size()); // cached directories
+        rep.append(" dKB=");
+        rep.append(dirCache.weight() / 1024); // estimated heap used by cached listings
+        lastDirHits = dirHits;
+        lastDirLookups = dirLookups;
+        lastDirEvictions = dirEvictions;
 
         int bin = 0;
         int bout = 0;
@@ -192,10 +214,8 @@ public class MeshyServerGroup {
         }
         if (gc.timeSpent > Meshy.STATS_INTERVAL) {
             for (MeshyServer server : byServer) {
-                synchronized (server.connectedChannels) {
-                    for (ChannelState channelState : server.connectedChannels) {
-                        channelState.debugSessions();
-                    }
+                for (ChannelState channelState : server.connectedChannels.all()) {
+                    channelState.debugSessions();
                 }
             }
         }
@@ -0,0 +1,128 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import com.addthis.basis.util.Parameter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * The netty transport used for mesh connections. Selected with {@code meshy.transport} ({@code nio} or
+ * {@code epoll}) when a {@link Meshy} is constructed. Epoll falls back to nio when the native transport
+ * cannot be loaded (eg. not on linux).
+ */
+public enum MeshyTransport {
+
+    NIO {
+        @Override public EventLoopGroup createEventLoopGroup(int threads) {
+            return new NioEventLoopGroup(threads);
+        }
+
+        @Override public Class<? extends SocketChannel> socketChannel() {
+            return NioSocketChannel.class;
+        }
+
+        @Override public Class<? extends ServerChannel> serverSocketChannel() {
+            return NioServerSocketChannel.class;
+        }
+    },
+
+    EPOLL {
+        @Override public EventLoopGroup createEventLoopGroup(int threads) {
+            return new EpollEventLoopGroup(threads);
+        }
+
+        @Override public Class<? extends SocketChannel> socketChannel() {
+            return EpollSocketChannel.class;
+        }
+
+        @Override public Class<? extends ServerChannel> serverSocketChannel() {
+            return EpollServerSocketChannel.class;
+        }
+
+        @Override Bootstrap configure(Bootstrap bootstrap) {
+            return bootstrap.option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                            .option(EpollChannelOption.TCP_QUICKACK, QUICK_ACK);
+        }
+
+        @Override ServerBootstrap configure(ServerBootstrap bootstrap) {
+            return bootstrap.option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                            .childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                            .childOption(EpollChannelOption.TCP_QUICKACK, QUICK_ACK);
+        }
+    };
+
+    private static final Logger log = LoggerFactory.getLogger(MeshyTransport.class);
+
+    /*
+     * ack immediately instead of delaying. sessions are request/response heavy (finds, MODE_MORE credits) and
+     * delayed acks interact badly with small frames. TCP_CORK is deliberately not used: ChannelState already
+     * coalesces frames into one flush per event loop pass, and corking would only add latency on top of that.
+     */
+    static final boolean QUICK_ACK = Parameter.boolValue("meshy.epoll.quickAck", true);
+
+    public abstract EventLoopGroup createEventLoopGroup(int threads);
+
+    public abstract Class<? extends SocketChannel> socketChannel();
+
+    public abstract Class<? extends ServerChannel> serverSocketChannel();
+
+    /** apply transport specific options to a client bootstrap */
+    Bootstrap configure(Bootstrap bootstrap) {
+        return bootstrap;
+    }
+
+    /** apply transport specific options to a server bootstrap and its accepted children */
+    ServerBootstrap configure(ServerBootstrap bootstrap) {
+        return bootstrap;
+    }
+
+    /**
+     * @return the transport named by {@code meshy.transport}, or nio if the requested transport is unavailable
+     */
+    public static MeshyTransport configured() {
+        return forName(Parameter.value("meshy.transport", "nio"));
+    }
+
+    public static MeshyTransport forName(String name) {
+        MeshyTransport transport;
+        try {
+            transport = valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            log.warn("unknown meshy transport '{}'; using nio", name);
+            return NIO;
+        }
+        if ((transport == EPOLL) && !Epoll.isAvailable()) {
+            log.warn("epoll transport unavailable; falling back to nio", Epoll.unavailabilityCause());
+            return NIO;
+        }
+        return transport;
+    }
+}
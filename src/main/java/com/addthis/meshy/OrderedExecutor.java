@@ -0,0 +1,72 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks one at a time, in submission order, on a shared pool. One instance per offloaded session: sessions
+ * never wait on each other beyond the size of the pool, and no lock is shared between them.
+ */
+final class OrderedExecutor implements Executor, Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(OrderedExecutor.class);
+
+    /* tasks run per turn on a pool thread before yielding it to other sessions */
+    private static final int MAX_TURN = 64;
+
+    private final Executor pool;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+    OrderedExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    @Override public void execute(Runnable task) {
+        tasks.add(task);
+        schedule();
+    }
+
+    @Override public void run() {
+        try {
+            Runnable task;
+            for (int i = 0; (i < MAX_TURN) && ((task = tasks.poll()) != null); i++) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.error("suppressing exception from offloaded handler task", t);
+                }
+            }
+        } finally {
+            scheduled.set(false);
+            // pick up tasks added after the last poll, or left over from a full turn
+            if (!tasks.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            pool.execute(this);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.addthis.basis.util.Parameter;
+
+import com.yammer.metrics.Metrics;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+
+import io.netty.util.internal.PlatformDependent;
+
+/**
+ * Bytes of outbound frames queued in this VM, on every channel of every mesh, from the time a frame is handed to
+ * {@link ChannelState#send} until netty has written it out (or dropped it with its channel). The per channel
+ * watermarks only bound what one channel queues; with hundreds of channels backed up at once they can still
+ * pin more direct memory than the VM has.
+ * <p/>
+ * Frames already in flight are always queued, so that running sessions can finish. While the budget is
+ * exhausted, new bulk sessions (streams and finds) are delayed for up to {@code meshy.outbound.budget.wait}
+ * ms and then refused instead.
+ * <p/>
+ * {@code meshy.outbound.budget} is the budget in MB. 0 (the default) is half of netty's max direct memory, and
+ * a negative value disables the budget.
+ */
+public final class OutboundBudget {
+
+    private static final OutboundBudget global = new OutboundBudget(
+            configuredLimit(Parameter.intValue("meshy.outbound.budget", 0)),
+            Parameter.intValue("meshy.outbound.budget.wait", 1000));
+
+    static final Gauge<Long> queuedGauge = Metrics.newGauge(OutboundBudget.class, "queuedBytes", new Gauge<Long>() {
+        @Override
+        public Long value() {
+            return global.queuedBytes();
+        }
+    });
+    static final Gauge<Long> refusalsGauge = Metrics.newGauge(OutboundBudget.class, "refusals", new Gauge<Long>() {
+        @Override
+        public Long value() {
+            return global.refusals();
+        }
+    });
+    static final Meter delayMeter = Metrics.newMeter(OutboundBudget.class, "delays", "delays", TimeUnit.SECONDS);
+
+    private final long limit;
+    private final long waitMillis;
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder refusals = new LongAdder();
+    // threads waiting for admission; only changed while holding this budget's monitor
+    private volatile int waiters;
+
+    OutboundBudget(long limit, long waitMillis) {
+        this.limit = limit;
+        this.waitMillis = waitMillis;
+    }
+
+    static long configuredLimit(int megabytes) {
+        if (megabytes < 0) {
+            return 0;
+        } else if (megabytes == 0) {
+            return PlatformDependent.maxDirectMemory() / 2;
+        }
+        return megabytes * 1024L * 1024L;
+    }
+
+    /** the budget shared by every mesh in this VM */
+    public static OutboundBudget global() {
+        return global;
+    }
+
+    void acquire(int bytes) {
+        queued.add(bytes);
+    }
+
+    void release(int bytes) {
+        queued.add(-bytes);
+        if ((waiters > 0) && isAvailable()) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    public boolean isAvailable() {
+        return (limit <= 0) || (queued.sum() < limit);
+    }
+
+    /**
+     * Admission of a new session without waiting, for callers on a netty event loop (which may be the one that
+     * has to drain the queues).
+     *
+     * @return false if the budget is exhausted. the refusal is counted
+     */
+    public boolean tryAdmit() {
+        if (isAvailable()) {
+            return true;
+        }
+        refusals.increment();
+        return false;
+    }
+
+    /**
+     * Admission of a new session, waiting up to {@code meshy.outbound.budget.wait} ms for queued frames to drain.
+     *
+     * @return false if the budget is still exhausted. the refusal is counted
+     */
+    public boolean awaitAdmission() {
+        if (isAvailable()) {
+            return true;
+        }
+        if (waitMillis > 0) {
+            delayMeter.mark();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+            synchronized (this) {
+                waiters += 1;
+                try {
+                    long remaining;
+                    while (!isAvailable() && ((remaining = deadline - System.nanoTime()) > 0)) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                } catch (InterruptedException ignored) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    waiters -= 1;
+                }
+            }
+        }
+        return tryAdmit();
+    }
+
+    /** @return the budget in bytes, or 0 if it is unlimited */
+    public long limit() {
+        return limit;
+    }
+
+    public long queuedBytes() {
+        return queued.sum();
+    }
+
+    /** sessions refused since startup */
+    public long refusals() {
+        return refusals.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "OutboundBudget{queued=" + queuedBytes() + ",limit=" + limit + ",refusals=" + refusals() + "}";
+    }
+}
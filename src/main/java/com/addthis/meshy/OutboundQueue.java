@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Per-channel outbound frame scheduler. Any thread may {@link #add} frames; only the channel's event loop
+ * may {@link #poll} them.
+ * <p/>
+ * Frames are split into two lanes: control (peering, find windows, stream credits, messages) and bulk
+ * (stream data, find results). Control frames always go first. Within a lane, sessions take turns one frame
+ * at a time so that one busy session cannot hold up the others. Frames of a single session are always
+ * delivered in the order they were added.
+ */
+final class OutboundQueue<E extends OutboundQueue.Frame> {
+
+    interface Frame {
+
+        int session();
+
+        boolean isBulk();
+    }
+
+    // producers only touch the intake; lanes are confined to the event loop
+    private final Queue<E> intake = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final Lane<E> control = new Lane<>();
+    private final Lane<E> bulk = new Lane<>();
+
+    void add(E frame) {
+        intake.add(frame);
+        size.incrementAndGet();
+    }
+
+    /**
+     * @param allowBulk false to only consider control frames
+     * @return the next frame to write, or null if there is none (in the allowed lanes)
+     */
+    @Nullable E poll(boolean allowBulk) {
+        E frame;
+        while ((frame = intake.poll()) != null) {
+            (frame.isBulk() ? bulk : control).add(frame);
+        }
+        frame = control.poll();
+        if ((frame == null) && allowBulk) {
+            frame = bulk.poll();
+        }
+        if (frame != null) {
+            size.decrementAndGet();
+        }
+        return frame;
+    }
+
+    boolean isEmpty() {
+        return size.get() == 0;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    private static final class Lane<E extends Frame> {
+
+        private final Map<Integer, ArrayDeque<E>> sessions = new HashMap<>();
+        // sessions with frames waiting, in round robin order
+        private final ArrayDeque<ArrayDeque<E>> ready = new ArrayDeque<>();
+
+        void add(E frame) {
+            ArrayDeque<E> queue = sessions.get(frame.session());
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                sessions.put(frame.session(), queue);
+                ready.add(queue);
+            }
+            queue.add(frame);
+        }
+
+        @Nullable E poll() {
+            ArrayDeque<E> queue = ready.poll();
+            if (queue == null) {
+                return null;
+            }
+            E frame = queue.poll();
+            if (queue.isEmpty()) {
+                sessions.remove(frame.session());
+            } else {
+                ready.add(queue);
+            }
+            return frame;
+        }
+    }
+}
@@ -26,4 +26,17 @@ public interface SessionHandler {
     void receiveComplete(ChannelState state, int session) throws Exception;
 
     void waitComplete();
+
+    /**
+     * @return true if this handler sends bulk data (eg. file contents) that should yield to control frames
+     * sharing the same channel
+     */
+    default boolean isBulk() {
+        return false;
+    }
+
+    /** @return the counters of the handler's type, which handlers keep rather than look up per frame */
+    default TrafficCounters handlerTraffic() {
+        return TrafficCounters.forHandler(getClass());
+    }
 }
@@ -13,20 +13,25 @@
  */
 package com.addthis.meshy;
 
+import javax.annotation.Nullable;
+
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.addthis.basis.util.JitterClock;
 import com.addthis.basis.util.Parameter;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,7 +39,8 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelException;
-import io.netty.channel.ChannelFuture;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
 
 import static com.addthis.meshy.ChannelState.MESHY_BYTE_OVERHEAD;
 import static com.google.common.base.Preconditions.checkArgument;
@@ -48,48 +54,36 @@ public abstract class SourceHandler implements SessionHandler {
     static final boolean SLOW_SLOW_CHANNELS = Parameter.boolValue("meshy.source.closeSlow", false);
     static final boolean DISABLE_CREATION_FRAMES = Parameter.boolValue("meshy.source.noCreationFrames", false);
 
-    // only used by response watcher
-    static final Set<SourceHandler> activeSources = Collections.newSetFromMap(new ConcurrentHashMap<>());
-    // TODO: use scheduled thread pool
-    static final Thread responseWatcher = new Thread("Source Response Watcher") {
-        {
-            setDaemon(true);
-            start();
-        }
+    /* granularity of read timeouts */
+    static final int TIMER_TICK = Parameter.intValue("meshy.source.timerTick", 100);
 
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    sleep(1000);
-                } catch (Exception ignored) {
-                    break;
-                }
-                probeActiveSources();
-            }
-            log.info("{} exiting", this);
-        }
-
-        private void probeActiveSources() {
-            for (SourceHandler handler : activeSources) {
-                handler.handleChannelTimeouts();
-            }
-        }
-    };
+    /*
+     * read timeouts. each source with a timeout has one entry that is only re-armed when it expires, so a steady
+     * stream of receives costs nothing here and the timer thread only does work for sources that are due.
+     */
+    static final HashedWheelTimer responseTimer = new HashedWheelTimer(
+            new ThreadFactoryBuilder().setNameFormat("Source Response Timer").setDaemon(true).build(),
+            TIMER_TICK, TimeUnit.MILLISECONDS);
 
     private final Class<? extends TargetHandler> targetClass;
     private final String className = getClass().getName();
     private final String shortName = className.substring(className.lastIndexOf(".") + 1);
+    private final TrafficCounters handlerTraffic = TrafficCounters.forHandler(getClass());
     private final AtomicBoolean sent = new AtomicBoolean(false);
     private final AtomicBoolean complete = new AtomicBoolean(false);
     private final AtomicBoolean waited = new AtomicBoolean(false);
-    private final Semaphore gate = new Semaphore(0);
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
     private final ChannelMaster master;
 
     private int session;
     private int targetHandler;
-    private long readTime;
-    private long readTimeout;
+    /* System.nanoTime() of the last receive */
+    private volatile long readTime;
+    /* System.nanoTime() of the last send or receive; the completion deadline is counted from here */
+    private volatile long activityTime;
+    private volatile long readTimeout;
+    @Nullable private volatile Timeout readTimer;
+    @Nullable private volatile Timeout completionTimer;
     private long completeTimeout;
     protected Set<Channel> channels;
 
@@ -120,12 +114,32 @@ public abstract class SourceHandler implements SessionHandler {
     }
 
     protected void start(String targetUuid) {
-        this.readTime = JitterClock.globalTime();
-        Collection<ChannelState> matches = master.getChannels(targetUuid);
+        this.readTime = System.nanoTime();
+        this.session = master.newSession();
+        start(targetUuid, master.getChannels(targetUuid, session));
+    }
+
+    /**
+     * start a session with a specific set of named peers (eg. the children of a relay tree node). peers that
+     * are not connected are skipped.
+     */
+    protected void start(Collection<String> targetUuids) {
+        this.readTime = System.nanoTime();
+        this.session = master.newSession();
+        List<ChannelState> matches = new ArrayList<>(targetUuids.size());
+        for (String targetUuid : targetUuids) {
+            matches.addAll(master.getChannels(targetUuid, session));
+        }
+        start(targetUuids.toString(), matches);
+    }
+
+    private void start(String targetUuid, Collection<ChannelState> matches) {
         if (matches.isEmpty()) {
             throw new ChannelException("no matching mesh peers");
         }
-        this.session = master.newSession();
+        if (isBudgeted() && !admit(matches)) {
+            throw new ChannelException("outbound memory budget exhausted");
+        }
         Set<Channel> group = new HashSet<>(matches.size());
         for (ChannelState state : matches) {
             group.add(state.getChannel());
@@ -134,7 +148,6 @@ public abstract class SourceHandler implements SessionHandler {
         this.targetHandler = master.targetHandlerId(targetClass);
         setReadTimeout(DEFAULT_RESPONSE_TIMEOUT);
         setCompleteTimeout(DEFAULT_COMPLETE_TIMEOUT);
-        activeSources.add(this);
         for (ChannelState state : matches) {
             /* add channel callback path to source */
             state.addSourceHandler(session, this);
@@ -146,14 +159,85 @@ public abstract class SourceHandler implements SessionHandler {
                   this, targetHandler, targetUuid, channels, session);
     }
 
+    /**
+     * @return true if this source starts bulk sessions (eg. streams and finds), which are delayed and then refused
+     * while the {@link OutboundBudget} is exhausted
+     */
+    protected boolean isBudgeted() {
+        return false;
+    }
+
+    /* waiting on an event loop could hold up the very writes that would free the budget */
+    private static boolean admit(Collection<ChannelState> matches) {
+        for (ChannelState state : matches) {
+            if (state.getChannel().eventLoop().inEventLoop()) {
+                return OutboundBudget.global().tryAdmit();
+            }
+        }
+        return OutboundBudget.global().awaitAdmission();
+    }
+
     @Override
     public String toString() {
         return master + "[Source:" + shortName + ":s=" + session + ",h=" + targetHandler +
                ",c=" + (channels != null ? channels.size() : "null") + "]";
     }
 
+    /* (re)arm the read timer to fire readTimeout after the last receive */
+    private void armReadTimer() {
+        long timeout = readTimeout;
+        // not started yet (start() sets the default timeout) or already done
+        if ((timeout <= 0) || (channels == null) || complete.get()) {
+            return;
+        }
+        long delay = TimeUnit.MILLISECONDS.toNanos(timeout) - (System.nanoTime() - readTime);
+        readTimer = responseTimer.newTimeout(expired -> handleChannelTimeouts(), Math.max(delay, 0),
+                                             TimeUnit.NANOSECONDS);
+    }
+
+    private void cancelReadTimer() {
+        cancel(readTimer);
+    }
+
+    /* (re)arm the completion timer to fire completeTimeout after the last send or receive */
+    private void armCompletionTimer() {
+        long timeout = completeTimeout;
+        if ((timeout <= 0) || complete.get()) {
+            return;
+        }
+        long delay = TimeUnit.MILLISECONDS.toNanos(timeout) - (System.nanoTime() - activityTime);
+        completionTimer = responseTimer.newTimeout(expired -> handleCompletionTimeout(), Math.max(delay, 0),
+                                                   TimeUnit.NANOSECONDS);
+    }
+
+    private void handleCompletionTimeout() {
+        long timeout = completeTimeout;
+        if (complete.get() || (timeout <= 0)) {
+            return;
+        }
+        if ((System.nanoTime() - activityTime) < TimeUnit.MILLISECONDS.toNanos(timeout)) {
+            // still making progress
+            armCompletionTimer();
+        } else if (completion.completeExceptionally(
+                new TimeoutException(this + " made no progress for " + timeout + " ms"))) {
+            log.warn("{} failed to complete normally from channels: {}", this, channelsToList());
+        }
+    }
+
+    private static void cancel(@Nullable Timeout timeout) {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
     private void handleChannelTimeouts() {
-        if ((readTimeout > 0) && ((JitterClock.globalTime() - readTime) > readTimeout)) {
+        if (complete.get() || (readTimeout <= 0)) {
+            return;
+        }
+        if ((System.nanoTime() - readTime) < TimeUnit.MILLISECONDS.toNanos(readTimeout)) {
+            // received something since the timer was armed
+            armReadTimer();
+        } else {
             log.info("{} response timeout on channel: {}", this, channelsToList());
             if (SLOW_SLOW_CHANNELS) {
                 log.warn("closing {} channel(s)", channels.size());
@@ -176,12 +260,22 @@ public abstract class SourceHandler implements SessionHandler {
         return master;
     }
 
+    @Override public TrafficCounters handlerTraffic() {
+        return handlerTraffic;
+    }
+
     public void setReadTimeout(int seconds) {
         readTimeout = (long) (seconds * 1000);
+        cancelReadTimer();
+        armReadTimer();
     }
 
     public void setCompleteTimeout(int seconds) {
         completeTimeout = (long) (seconds * 1000);
+        cancel(completionTimer);
+        if (sent.get()) {
+            armCompletionTimer();
+        }
     }
 
     public int getPeerCount() {
@@ -218,9 +312,14 @@ public abstract class SourceHandler implements SessionHandler {
             }
 
             int sendType = MeshyConstants.KEY_EXISTING;
-            if (sent.compareAndSet(false, true) || DISABLE_CREATION_FRAMES) {
+            boolean first = sent.compareAndSet(false, true);
+            if (first || DISABLE_CREATION_FRAMES) {
                 sendType = targetHandler;
             }
+            activityTime = System.nanoTime();
+            if (first) {
+                armCompletionTimer();
+            }
 
             final ByteBufAllocator alloc = channels.iterator().next().alloc();
             final ByteBuf buffer = allocateSendBuffer(alloc, sendType, session, data);
@@ -228,17 +327,10 @@ public abstract class SourceHandler implements SessionHandler {
             final int peerCount = channels.size();
 
             log.trace("{} send {} to {}", this, buffer.capacity(), peerCount);
-            List<ChannelFuture> futures = new ArrayList<>(peerCount);
+            SendWatcher aggregateWatcher = (watcher != null) ? new AggregateSendWatcher(watcher, peerCount) : null;
             for (Channel c : channels) {
-                futures.add(c.writeAndFlush(buffer.duplicate().retain()));
+                send(c, buffer.duplicate().retain(), aggregateWatcher, reportBytes);
             }
-            AggregateChannelFuture aggregateFuture = new AggregateChannelFuture(futures);
-            aggregateFuture.addListener(ignored -> {
-                master.sentBytes(reportBytes * peerCount);
-                if (watcher != null) {
-                    watcher.sendFinished(reportBytes);
-                }
-            });
             buffer.release();
             return true;
         }
@@ -249,15 +341,25 @@ public abstract class SourceHandler implements SessionHandler {
         final ByteBufAllocator alloc = channel.alloc();
         final ByteBuf buffer = allocateSendBuffer(alloc, sendType, session, data);
 
-        final int reportBytes = data.length;
         log.trace("{} send {} to {}", this, buffer.capacity(), channel);
-        channel.writeAndFlush(buffer.duplicate().retain()).addListener(ignored -> {
-            master.sentBytes(reportBytes);
-        });
-        buffer.release();
+        send(channel, buffer, null, data.length);
         return true;
     }
 
+    /* queue on the channel's state so that writes from all sources are batched per channel */
+    private void send(Channel channel, ByteBuf buffer, SendWatcher watcher, int reportBytes) {
+        ChannelState state = ChannelState.of(channel);
+        if (state != null) {
+            state.send(buffer, watcher, reportBytes, isBulk());
+        } else {
+            log.debug("{} writing [{}] to dead channel {}", this, reportBytes, channel);
+            if (watcher != null) {
+                watcher.sendFinished(reportBytes);
+            }
+            buffer.release();
+        }
+    }
+
     private static ByteBuf allocateSendBuffer(ByteBufAllocator alloc, int type, int session, byte[] data) {
         ByteBuf sendBuffer = alloc.buffer(MESHY_BYTE_OVERHEAD + data.length);
         sendBuffer.writeInt(type);
@@ -269,7 +371,8 @@ public abstract class SourceHandler implements SessionHandler {
 
     @Override
     public void receive(ChannelState state, int receivingSession, int length, ByteBuf buffer) throws Exception {
-        this.readTime = JitterClock.globalTime();
+        this.readTime = System.nanoTime();
+        this.activityTime = readTime;
         log.debug("{} receive [{}] l={}", this, session, length);
         receive(state, length, buffer);
     }
@@ -295,11 +398,13 @@ public abstract class SourceHandler implements SessionHandler {
         if (complete.compareAndSet(false, true)) {
             try {
                 receiveComplete();
+                completion.complete(null);
+            } catch (Exception ex) {
+                completion.completeExceptionally(ex);
+                throw ex;
             } finally {
-                activeSources.remove(this);
-                if (sent.get()) {
-                    gate.release();
-                }
+                cancelReadTimer();
+                cancel(completionTimer);
             }
         }
     }
@@ -319,19 +424,51 @@ public abstract class SourceHandler implements SessionHandler {
         // this is technically incorrect, but prevents lockups
         if (waited.compareAndSet(false, true) && sent.get()) {
             try {
-                if (!gate.tryAcquire(completeTimeout, TimeUnit.MILLISECONDS)) {
-                    log.warn("{} failed to waitComplete() normally from channels: {}", this, channelsToList());
-                    activeSources.remove(this);
-                }
+                completion.get(completeTimeout, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                log.warn("{} failed to waitComplete() normally from channels: {}", this, channelsToList());
+                cancelReadTimer();
+            } catch (ExecutionException ex) {
+                // timed out by the completion timer (already logged), or receiveComplete() failed
+                log.debug("{} completed exceptionally", this, ex.getCause());
             } catch (Exception ex) {
                 log.error("Swallowing mystery exception", ex);
             }
         }
     }
 
+    /**
+     * Completes once the session is complete on every channel (after {@link #receiveComplete()} has run), or
+     * exceptionally with a {@link TimeoutException} once the session has gone the complete timeout without a send
+     * or receive. A source that never sends is only completed by its channels.
+     * <p/>
+     * Dependent stages registered without an executor may run on a netty event loop, and must not block.
+     */
+    public CompletableFuture<Void> getCompletionFuture() {
+        return completion;
+    }
+
     public abstract void channelClosed(ChannelState state);
 
     public abstract void receive(ChannelState state, int length, ByteBuf buffer) throws Exception;
 
     public abstract void receiveComplete() throws Exception;
+
+    /** reports a frame sent to several channels as finished once every channel has written it */
+    private static final class AggregateSendWatcher implements SendWatcher {
+
+        private final SendWatcher watcher;
+        private final AtomicInteger remaining;
+
+        AggregateSendWatcher(SendWatcher watcher, int channels) {
+            this.watcher = watcher;
+            this.remaining = new AtomicInteger(channels);
+        }
+
+        @Override public void sendFinished(int bytes) {
+            if (remaining.decrementAndGet() == 0) {
+                watcher.sendFinished(bytes);
+            }
+        }
+    }
 }
@@ -13,6 +13,8 @@
  */
 package com.addthis.meshy;
 
+import javax.annotation.Nullable;
+
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -31,11 +33,14 @@ public abstract class TargetHandler implements SessionHandler {
     protected static final Logger log = LoggerFactory.getLogger(TargetHandler.class);
     private final AtomicBoolean complete = new AtomicBoolean(false);
     private final AtomicBoolean waited = new AtomicBoolean(false);
-    private final CountDownLatch latch = new CountDownLatch(1);
+    private final TrafficCounters handlerTraffic = TrafficCounters.forHandler(getClass());
+    private volatile CountDownLatch latch = new CountDownLatch(1);
 
-    private MeshyServer master;
-    private ChannelState channelState;
-    private int session;
+    /* written when a pooled handler is handed to a session, and read by its handler executor */
+    private volatile MeshyServer master;
+    private volatile ChannelState channelState;
+    private volatile int session;
+    @Nullable private HandlerPool<?> pool;
 
     public TargetHandler() {
     }
@@ -46,9 +51,24 @@ public abstract class TargetHandler implements SessionHandler {
         this.session = session;
     }
 
+    void setPool(HandlerPool<?> pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Called once the session is complete, before the handler would be reused for another session. Handlers that
+     * support pooling reset their own state and return true; they must not be referenced (eg. by tasks they
+     * started) after their {@code receiveComplete()} returns.
+     *
+     * @return true if this handler may be reused
+     */
+    protected boolean recycle() {
+        return false;
+    }
+
     protected MoreObjects.ToStringHelper toStringHelper() {
         return MoreObjects.toStringHelper(this)
-                .add("channelState", channelState.getName())
+                .add("channelState", (channelState != null) ? channelState.getName() : null)
                 .add("session", session)
                 .add("complete", complete)
                 .add("waited", waited);
@@ -71,25 +91,30 @@ public abstract class TargetHandler implements SessionHandler {
         return session;
     }
 
+    @Override public TrafficCounters handlerTraffic() {
+        return handlerTraffic;
+    }
+
     public boolean send(byte[] data) {
         return send(data, null);
     }
 
     public void send(ByteBuf from, int length) {
         log.trace("{} send.buf [{}] {}", this, length, from);
-        channelState.send(channelState.allocateSendBuffer(KEY_RESPONSE, session, from, length), null, length);
+        channelState.send(channelState.allocateSendBuffer(KEY_RESPONSE, session, from, length), null, length,
+                          isBulk());
     }
 
     @Override public boolean send(byte[] data, SendWatcher watcher) {
         log.trace("{} send {}", this, data.length);
         return channelState.send(channelState.allocateSendBuffer(KEY_RESPONSE, session, data),
-                                 watcher, data.length);
+                                 watcher, data.length, isBulk());
     }
 
     public void send(byte[] data, int off, int len, SendWatcher watcher) {
         log.trace("{} send {} o={} l={}", this, data.length, off, len);
         channelState.send(channelState.allocateSendBuffer(KEY_RESPONSE, session, data, off, len),
-                          watcher, len);
+                          watcher, len, isBulk());
     }
 
     public ByteBuf getSendBuffer(int length) {
@@ -101,7 +126,7 @@ public abstract class TargetHandler implements SessionHandler {
             log.trace("{} send b={} l={}", this, buffer, buffer.readableBytes());
         }
         int length = buffer.readableBytes();
-        channelState.send(buffer, watcher, length);
+        channelState.send(channelState.compress(buffer), watcher, length, isBulk());
         return length;
     }
 
@@ -112,14 +137,24 @@ public abstract class TargetHandler implements SessionHandler {
 
     @Override
     public void receive(ChannelState state, int receivingSession, int length, ByteBuf buffer) throws Exception {
+        if ((pool != null) && ((state != channelState) || (receivingSession != session))) {
+            // a frame queued for a session this (pooled) handler has already finished, eg. after a handler error
+            log.debug("{} dropping stale frame for {} [{}]", this, state, receivingSession);
+            return;
+        }
         assert this.channelState == state;
-        assert this.session == session;
+        assert this.session == receivingSession;
         log.debug("{} receive [{}] l={}", this, session, length);
         receive(length, buffer);
     }
 
     @Override
     public void receiveComplete(ChannelState state, int completedSession) throws Exception {
+        if ((pool != null) && ((state != channelState) || (completedSession != session))) {
+            // a late close notification for a session this (pooled) handler has already finished
+            log.debug("{} ignoring stale receiveComplete for {} [{}]", this, state, completedSession);
+            return;
+        }
         assert this.channelState == state;
         assert this.session == completedSession;
         log.debug("{} receiveComplete.1 [{}]", this, completedSession);
@@ -134,8 +169,21 @@ public abstract class TargetHandler implements SessionHandler {
         log.debug("{} receiveComplete.2 [{}]", this, completedSession);
         // ensure this is only called once
         if (complete.compareAndSet(false, true)) {
-            receiveComplete();
-            latch.countDown();
+            try {
+                receiveComplete();
+            } finally {
+                latch.countDown();
+            }
+            HandlerPool<?> owner = pool;
+            if ((owner != null) && recycle()) {
+                master = null;
+                channelState = null;
+                session = 0;
+                latch = new CountDownLatch(1);
+                waited.set(false);
+                complete.set(false);
+                owner.release(this);
+            }
         }
     }
 
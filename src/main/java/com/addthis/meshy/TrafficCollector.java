@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.prometheus.client.Collector;
+import io.prometheus.client.CounterMetricFamily;
+import io.prometheus.client.GaugeMetricFamily;
+
+/**
+ * Exports {@link TrafficCounters} to prometheus: per peer of every open mesh in this vm (summed over the
+ * stripes of a peer, with the channels of all clients and not yet peered servers as one "client" peer), and
+ * per handler type, along with the {@link OutboundBudget} of this vm. Registered by {@link Main}; embedding
+ * applications register it with their own registry.
+ */
+public final class TrafficCollector extends Collector {
+
+    static final String CLIENT_PEER = "client";
+
+    private static final Set<Meshy> meshes = ConcurrentHashMap.newKeySet();
+
+    static void add(Meshy meshy) {
+        meshes.add(meshy);
+    }
+
+    static void remove(Meshy meshy) {
+        meshes.remove(meshy);
+    }
+
+    @Override
+    public List<MetricFamilySamples> collect() {
+        List<String> peerLabels = Arrays.asList("mesh", "peer", "direction");
+        List<String> handlerLabels = Arrays.asList("handler", "direction");
+        CounterMetricFamily peerBytes = new CounterMetricFamily(
+                "meshy_peer_bytes_total", "frame payload bytes exchanged with a peer", peerLabels);
+        CounterMetricFamily peerFrames = new CounterMetricFamily(
+                "meshy_peer_frames_total", "frames exchanged with a peer", peerLabels);
+        CounterMetricFamily peerSessions = new CounterMetricFamily(
+                "meshy_peer_sessions_total", "sessions started with a peer", Arrays.asList("mesh", "peer"));
+        for (Meshy meshy : meshes) {
+            Map<String, long[]> byPeer = new TreeMap<>();
+            for (ChannelState state : meshy.connectedChannels.all()) {
+                String peer = state.isNamedPeer() ? state.getName() : CLIENT_PEER;
+                long[] sums = byPeer.computeIfAbsent(peer, key -> new long[5]);
+                TrafficCounters traffic = state.traffic();
+                sums[0] += traffic.bytesIn();
+                sums[1] += traffic.bytesOut();
+                sums[2] += traffic.framesIn();
+                sums[3] += traffic.framesOut();
+                sums[4] += traffic.sessions();
+            }
+            for (Map.Entry<String, long[]> entry : byPeer.entrySet()) {
+                String mesh = meshy.getUUID();
+                String peer = entry.getKey();
+                long[] sums = entry.getValue();
+                peerBytes.addMetric(Arrays.asList(mesh, peer, "in"), sums[0]);
+                peerBytes.addMetric(Arrays.asList(mesh, peer, "out"), sums[1]);
+                peerFrames.addMetric(Arrays.asList(mesh, peer, "in"), sums[2]);
+                peerFrames.addMetric(Arrays.asList(mesh, peer, "out"), sums[3]);
+                peerSessions.addMetric(Arrays.asList(mesh, peer), sums[4]);
+            }
+        }
+        CounterMetricFamily handlerBytes = new CounterMetricFamily(
+                "meshy_handler_bytes_total", "frame payload bytes sent and received by a handler type",
+                handlerLabels);
+        CounterMetricFamily handlerFrames = new CounterMetricFamily(
+                "meshy_handler_frames_total", "frames sent and received by a handler type", handlerLabels);
+        CounterMetricFamily handlerSessions = new CounterMetricFamily(
+                "meshy_handler_sessions_total", "sessions started by a handler type",
+                Collections.singletonList("handler"));
+        for (Map.Entry<String, TrafficCounters> entry : TrafficCounters.byHandler().entrySet()) {
+            String handler = entry.getKey();
+            TrafficCounters traffic = entry.getValue();
+            handlerBytes.addMetric(Arrays.asList(handler, "in"), traffic.bytesIn());
+            handlerBytes.addMetric(Arrays.asList(handler, "out"), traffic.bytesOut());
+            handlerFrames.addMetric(Arrays.asList(handler, "in"), traffic.framesIn());
+            handlerFrames.addMetric(Arrays.asList(handler, "out"), traffic.framesOut());
+            handlerSessions.addMetric(Collections.singletonList(handler), traffic.sessions());
+        }
+        OutboundBudget budget = OutboundBudget.global();
+        GaugeMetricFamily budgetQueued = new GaugeMetricFamily(
+                "meshy_outbound_queued_bytes", "outbound frame bytes queued on all channels", budget.queuedBytes());
+        CounterMetricFamily budgetRefusals = new CounterMetricFamily(
+                "meshy_outbound_refusals_total", "sessions refused while the outbound budget was exhausted",
+                budget.refusals());
+        return Arrays.asList(peerBytes, peerFrames, peerSessions, handlerBytes, handlerFrames, handlerSessions,
+                             budgetQueued, budgetRefusals);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Frame traffic of one channel ({@link ChannelState#traffic()}) or of one handler type ({@link #forHandler}).
+ * Bytes are frame payload bytes, as reported to {@link SendWatcher}s, without headers. Counters are striped
+ * {@link LongAdder}s, so the I/O threads and handler threads updating them do not contend.
+ */
+public final class TrafficCounters {
+
+    private static final ConcurrentMap<String, TrafficCounters> byHandler = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<?>, TrafficCounters> byHandlerClass = new ConcurrentHashMap<>();
+
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder sessions = new LongAdder();
+
+    /**
+     * @return the counters of the registered handler type the class is (or extends), eg. FileSource for the
+     * forwarding sources of FileTarget. Handlers of unregistered types are counted under their own class.
+     */
+    static TrafficCounters forHandler(Class<? extends SessionHandler> clazz) {
+        TrafficCounters counters = byHandlerClass.get(clazz);
+        if (counters == null) {
+            Class<?> type = clazz;
+            for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                if (Meshy.handlerIdMap.containsKey(c)) {
+                    type = c;
+                    break;
+                }
+            }
+            counters = byHandler.computeIfAbsent(type.getSimpleName().isEmpty() ? type.getName()
+                                                                                : type.getSimpleName(),
+                                                 key -> new TrafficCounters());
+            byHandlerClass.putIfAbsent(clazz, counters);
+        }
+        return counters;
+    }
+
+    /** @return the counters of every handler type that has seen traffic, by type name */
+    public static Map<String, TrafficCounters> byHandler() {
+        return new TreeMap<>(byHandler);
+    }
+
+    void received(int bytes) {
+        bytesIn.add(bytes);
+        framesIn.increment();
+    }
+
+    void sent(int bytes) {
+        bytesOut.add(bytes);
+        framesOut.increment();
+    }
+
+    void sessionStarted() {
+        sessions.increment();
+    }
+
+    public long bytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long bytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long framesIn() {
+        return framesIn.sum();
+    }
+
+    public long framesOut() {
+        return framesOut.sum();
+    }
+
+    public long sessions() {
+        return sessions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "bytesIn=" + bytesIn() + " bytesOut=" + bytesOut() + " framesIn=" + framesIn() +
+               " framesOut=" + framesOut() + " sessions=" + sessions();
+    }
+}
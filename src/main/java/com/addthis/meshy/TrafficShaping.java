@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import javax.annotation.Nullable;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import com.addthis.basis.util.Parameter;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.netty.channel.Channel;
+import io.netty.handler.traffic.ChannelTrafficShapingHandler;
+
+/**
+ * Token bucket bandwidth limits of the channels of one mesh, with separate read and write limits for named server
+ * peers and for everything else (clients, and servers that have not finished peering). Limits are in bytes per
+ * second, 0 for unlimited, and can be changed at any time; they then apply to every open channel.
+ * <p/>
+ * A channel gets a netty {@link ChannelTrafficShapingHandler} in front of its {@link ChannelState} once a limit
+ * applies to it. Writes over the limit are held by the shaper, which marks the channel unwritable so that the
+ * channel's outbound queue, and the stream senders watching it, pause rather than pile up more frames. Reads
+ * over the limit suspend reading from the socket.
+ * <p/>
+ * Defaults (in KB/s) are {@code meshy.shaping.client.write}, {@code meshy.shaping.client.read},
+ * {@code meshy.shaping.peer.write} and {@code meshy.shaping.peer.read}.
+ */
+public final class TrafficShaping {
+
+    private static final Logger log = LoggerFactory.getLogger(TrafficShaping.class);
+
+    static final String HANDLER_NAME = "shaping";
+
+    /* how often the shapers recompute throughput and release held writes */
+    static final int CHECK_INTERVAL = Parameter.intValue("meshy.shaping.interval", 1000);
+    /* longest a shaper delays a write (or suspends reads) at a time */
+    static final int MAX_WAIT = Parameter.intValue("meshy.shaping.maxWait", 15000);
+
+    private final ChannelRegistry channels;
+
+    private volatile long clientWrite = Parameter.intValue("meshy.shaping.client.write", 0) * 1024L;
+    private volatile long clientRead = Parameter.intValue("meshy.shaping.client.read", 0) * 1024L;
+    private volatile long peerWrite = Parameter.intValue("meshy.shaping.peer.write", 0) * 1024L;
+    private volatile long peerRead = Parameter.intValue("meshy.shaping.peer.read", 0) * 1024L;
+
+    TrafficShaping(ChannelRegistry channels) {
+        this.channels = channels;
+    }
+
+    /** limits of channels that are not named server peers, in bytes per second (0 for unlimited) */
+    public void setClientLimits(long writeLimit, long readLimit) {
+        clientWrite = writeLimit;
+        clientRead = readLimit;
+        applyAll();
+    }
+
+    /** limits of each channel to a named server peer, in bytes per second (0 for unlimited) */
+    public void setPeerLimits(long writeLimit, long readLimit) {
+        peerWrite = writeLimit;
+        peerRead = readLimit;
+        applyAll();
+    }
+
+    public long getClientWriteLimit() {
+        return clientWrite;
+    }
+
+    public long getClientReadLimit() {
+        return clientRead;
+    }
+
+    public long getPeerWriteLimit() {
+        return peerWrite;
+    }
+
+    public long getPeerReadLimit() {
+        return peerRead;
+    }
+
+    private void applyAll() {
+        for (ChannelState state : channels.all()) {
+            apply(state);
+        }
+    }
+
+    /**
+     * (re)configure the shaper of a channel for its current limits. called when a channel connects and when it
+     * is promoted to a named peer
+     */
+    void apply(ChannelState state) {
+        Channel channel = state.getChannel();
+        if (!channel.eventLoop().inEventLoop()) {
+            try {
+                channel.eventLoop().execute(() -> apply(state));
+            } catch (RejectedExecutionException ex) {
+                log.debug("{} event loop shut down before shaping", state, ex);
+            }
+            return;
+        }
+        boolean peer = state.isNamedPeer();
+        long write = peer ? peerWrite : clientWrite;
+        long read = peer ? peerRead : clientRead;
+        ChannelTrafficShapingHandler shaper = shaper(channel);
+        if (shaper != null) {
+            shaper.configure(write, read);
+        } else if (((write > 0) || (read > 0)) && channel.isActive()) {
+            log.debug("{} shaping write={} read={}", state, write, read);
+            channel.pipeline().addFirst(HANDLER_NAME,
+                                        new ChannelTrafficShapingHandler(write, read, CHECK_INTERVAL, MAX_WAIT));
+        }
+    }
+
+    /** @return the shaper of a channel, or null if no limit has applied to it yet */
+    @Nullable static ChannelTrafficShapingHandler shaper(Channel channel) {
+        return (ChannelTrafficShapingHandler) channel.pipeline().get(HANDLER_NAME);
+    }
+
+    @Override
+    public String toString() {
+        return "client write=" + clientWrite + " read=" + clientRead + " peer write=" + peerWrite + " read=" + peerRead;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import javax.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.util.Objects;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import com.addthis.basis.util.Parameter;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+
+/**
+ * Unix domain socket connections for clients on the same host as a server. A {@link MeshyServer} also listens on
+ * the path named by {@code meshy.unix.path} (where {@code {port}} is replaced by the server's tcp port, so that
+ * several servers on one host can share the setting), and a {@link MeshyClient} built with a
+ * {@link DomainSocketAddress} connects to it. Frames then skip the tcp stack entirely.
+ * <p/>
+ * Uses netty's epoll domain socket channels, so it needs the native epoll transport (linux). Peers always connect
+ * over tcp (or {@link LocalTransport}).
+ */
+final class UnixTransport {
+
+    static final String PORT_PLACEHOLDER = "{port}";
+    /* how long to wait for a server that may still be listening on a socket file to accept */
+    static final int PROBE_TIMEOUT = Parameter.intValue("meshy.unix.probeTimeout", 5000);
+
+    private UnixTransport() {
+    }
+
+    /**
+     * @return the address a server on {@code port} listens on, or null if {@code meshy.unix.path} is not set
+     */
+    @Nullable static DomainSocketAddress serverAddress(int port) {
+        String path = Parameter.value("meshy.unix.path", null);
+        if ((path == null) || path.isEmpty()) {
+            return null;
+        }
+        return new DomainSocketAddress(path.replace(PORT_PLACEHOLDER, Integer.toString(port)));
+    }
+
+    /** @return the epoll transport, which domain socket channels must run on */
+    static MeshyTransport transport() throws IOException {
+        if (!Epoll.isAvailable()) {
+            throw new IOException("unix domain sockets need the native epoll transport", Epoll.unavailabilityCause());
+        }
+        return MeshyTransport.EPOLL;
+    }
+
+    /**
+     * @param group an epoll event loop group
+     * @return true if a server accepts connections on the socket file, which must then be left alone. a socket
+     * file that refuses them was left by a server that is gone
+     */
+    static boolean isInUse(EventLoopGroup group, DomainSocketAddress address) {
+        if (!new File(address.path()).exists()) {
+            return false;
+        }
+        ChannelFuture probe = bootstrap(group, new ChannelInboundHandlerAdapter()).connect(address);
+        // one that has yet to answer may just be busy
+        boolean inUse = !probe.awaitUninterruptibly(PROBE_TIMEOUT) || probe.isSuccess();
+        probe.channel().close();
+        return inUse;
+    }
+
+    /** @return what identifies the socket file (its inode), or null if it cannot be read */
+    @Nullable static Object fileKey(DomainSocketAddress address) {
+        try {
+            return Files.readAttributes(Paths.get(address.path()), BasicFileAttributes.class).fileKey();
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * deletes the socket file of a closed server, unless it is gone or is now another server's
+     *
+     * @param key from {@link #fileKey} once the server was bound
+     */
+    static void deleteSocketFile(DomainSocketAddress address, @Nullable Object key) {
+        Path path = Paths.get(address.path());
+        if ((key != null) && Objects.equals(key, fileKey(address))) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+                // gone, or not ours to delete
+            }
+        }
+    }
+
+    /** @param group an epoll event loop group */
+    static Bootstrap bootstrap(EventLoopGroup group, ChannelHandler handler) {
+        return new Bootstrap()
+                .option(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 30000)
+                .option(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, Meshy.HIGH_WATERMARK)
+                .option(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, Meshy.LOW_WATERMARK)
+                .option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                .channel(EpollDomainSocketChannel.class)
+                .group(group)
+                .handler(handler);
+    }
+
+    /** @param group an epoll event loop group */
+    static ServerBootstrap serverBootstrap(EventLoopGroup group, ChannelHandler childHandler) {
+        return new ServerBootstrap()
+                .option(ChannelOption.SO_BACKLOG, 1024)
+                .option(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childOption(ChannelOption.WRITE_BUFFER_HIGH_WATER_MARK, Meshy.HIGH_WATERMARK)
+                .childOption(ChannelOption.WRITE_BUFFER_LOW_WATER_MARK, Meshy.LOW_WATERMARK)
+                .childOption(EpollChannelOption.EPOLL_MODE, EpollMode.EDGE_TRIGGERED)
+                .channel(EpollServerDomainSocketChannel.class)
+                .group(group)
+                .childHandler(childHandler);
+    }
+}
@@ -19,4 +19,11 @@ public interface VirtualFileSystem {
     public String[] tokenizePath(String path);
 
     public VirtualFileReference getFileRoot();
+
+    /**
+     * release what the file system holds (eg. threads and mapped files) once no server uses it. does nothing by
+     * default
+     */
+    public default void close() {
+    }
 }
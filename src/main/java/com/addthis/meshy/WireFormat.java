@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import com.addthis.basis.util.Parameter;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.CorruptedFrameException;
+
+/**
+ * Frame header encodings.
+ * <p/>
+ * Version 1 headers are three big endian ints, {@code [type, session, length]}. Version 2 headers are a tag byte
+ * followed by unsigned varints (7 bits per byte, least significant group first):
+ * <pre>
+ *   tag       01sc 00kk   01 marks a v2 header. s: same session as the previous v2 frame on this connection.
+ *                         c: compressed payload (see {@link FrameCompressor}).
+ *                         kk: 0 = response, 1 = existing session, 2 = explicit type
+ *   [type]    varint      only for explicit types (the first frame of a session)
+ *   [session] varint      omitted when s is set
+ *   length    varint
+ * </pre>
+ * A v1 header always starts with 0x00 (small handler ids and {@link MeshyConstants#KEY_RESPONSE}) or 0x80
+ * ({@link MeshyConstants#KEY_EXISTING}), so decoders accept both versions on any connection. Consecutive frames
+ * of one session (eg. a run of find results or stream chunks) share the session of the first, so a small frame
+ * usually costs 2 or 3 header bytes instead of 12.
+ * <p/>
+ * Each side of a connection opens with a hello: a v1 frame of type {@link MeshyConstants#KEY_EXISTING} on
+ * session {@link #HELLO_SESSION} whose payload is the highest version it speaks, optionally followed by an int
+ * of feature bits it supports. Older versions drop it as a frame for an unknown session. A side only writes v2
+ * headers (or uses a feature) once the other has said it can read them.
+ */
+final class WireFormat {
+
+    static final int V1 = 1;
+    static final int V2 = 2;
+
+    /* highest wire version offered to the other side of a connection. 1 disables the hello */
+    static final int VERSION = Parameter.intValue("meshy.wire.version", V2);
+
+    /* sessions are numbered from 1, so session 0 is free for link level frames */
+    static final int HELLO_SESSION = 0;
+
+    /* hello feature bit: accepts deflated payloads */
+    static final int FEATURE_DEFLATE = 1;
+
+    /* set in the type of a frame (as built, with a v1 header) whose payload is compressed */
+    static final int TYPE_COMPRESSED = 0x40000000;
+
+    static final int V1_HEADER_BYTES = ChannelState.MESHY_BYTE_OVERHEAD;
+    static final int V2_MAX_HEADER_BYTES = 1 + 5 + 5 + 5;
+
+    static final int TAG_MASK = 0xc0;
+    static final int TAG_V2 = 0x40;
+    static final int SAME_SESSION = 0x20;
+    static final int COMPRESSED = 0x10;
+    static final int KIND_MASK = 0x03;
+    static final int KIND_RESPONSE = 0;
+    static final int KIND_EXISTING = 1;
+    static final int KIND_EXPLICIT = 2;
+
+    static final long INCOMPLETE = -1;
+
+    private WireFormat() {
+    }
+
+    static boolean isV2(byte first) {
+        return (first & TAG_MASK) == TAG_V2;
+    }
+
+    static void writeV2Header(ByteBuf out, int type, int session, int length, int previousSession) {
+        boolean compressed = (type & TYPE_COMPRESSED) != 0;
+        type &= ~TYPE_COMPRESSED;
+        int kind;
+        if (type == MeshyConstants.KEY_RESPONSE) {
+            kind = KIND_RESPONSE;
+        } else if (type == MeshyConstants.KEY_EXISTING) {
+            kind = KIND_EXISTING;
+        } else {
+            kind = KIND_EXPLICIT;
+        }
+        boolean sameSession = session == previousSession;
+        out.writeByte(TAG_V2 | (sameSession ? SAME_SESSION : 0) | (compressed ? COMPRESSED : 0) | kind);
+        if (kind == KIND_EXPLICIT) {
+            writeVarint(out, type);
+        }
+        if (!sameSession) {
+            writeVarint(out, session);
+        }
+        writeVarint(out, length);
+    }
+
+    static int typeOf(int kind) {
+        switch (kind) {
+            case KIND_RESPONSE:
+                return MeshyConstants.KEY_RESPONSE;
+            case KIND_EXISTING:
+                return MeshyConstants.KEY_EXISTING;
+            default:
+                throw new CorruptedFrameException("unknown frame kind " + kind);
+        }
+    }
+
+    static void writeVarint(ByteBuf out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * @return the value (as an unsigned int), or {@link #INCOMPLETE} if {@code in} ends first. the reader
+     * index is undefined after an incomplete read
+     */
+    static long readVarint(ByteBuf in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!in.isReadable()) {
+                return INCOMPLETE;
+            }
+            int b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value & 0xffffffffL;
+            }
+        }
+        throw new CorruptedFrameException("varint longer than 5 bytes");
+    }
+}
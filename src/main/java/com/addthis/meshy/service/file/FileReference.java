@@ -50,7 +50,7 @@ public class FileReference {
     }
 
     /**
-     * should only be used by the test harness
+     * should only be used by the test harness, and for references decoded from a {@link FileReferenceBatch}
      */
     protected FileReference setHostUUID(final String uuid) {
         this.hostUUID = uuid;
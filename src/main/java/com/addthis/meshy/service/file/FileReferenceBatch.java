@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy.service.file;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.addthis.basis.util.LessBytes;
+import com.addthis.basis.util.Parameter;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Many {@link FileReference}s of one host in a single find result frame, for sources that ask for them with
+ * {@link FileSource#BATCH_OPTION}. The frame starts with a zero byte (which a single reference frame, starting
+ * with the length of its non-empty name, never does), then the reference count and the host uuid. Each name is
+ * front coded: the number of leading chars it shares with the previous name, then the rest of it.
+ * <p/>
+ * A batch is sent once it holds {@code meshy.finder.batch.size} references or {@code meshy.finder.batch.bytes}
+ * bytes, or once it is {@code meshy.finder.batch.delay} ms old: checked when the next reference is added, and by
+ * the walker after each directory (see {@link #isDue()}), so a slow walk does not hold back what it found. Window is
+ * still counted in references, not frames.
+ * <p/>
+ * Not thread safe.
+ */
+final class FileReferenceBatch {
+
+    static final int MAX_REFERENCES = Parameter.intValue("meshy.finder.batch.size", 1000);
+    static final int MAX_BYTES = Parameter.intValue("meshy.finder.batch.bytes", 64 * 1024);
+    static final long MAX_DELAY = Parameter.intValue("meshy.finder.batch.delay", 100);
+
+    private final byte[] encodedUUID;
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream(MAX_BYTES / 4);
+    private String previous = "";
+    private int count;
+    private long started;
+
+    FileReferenceBatch(String hostUUID) {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeString(hostUUID, out);
+            this.encodedUUID = out.toByteArray();
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    /** @return true if the batch is due to be sent */
+    boolean add(FileReference ref) {
+        String name = ref.name;
+        int shared = 0;
+        int max = Math.min(name.length(), previous.length());
+        while ((shared < max) && (name.charAt(shared) == previous.charAt(shared))) {
+            shared++;
+        }
+        // never split a surrogate pair, which would not survive utf8 encoding
+        if ((shared > 0) && Character.isHighSurrogate(name.charAt(shared - 1))) {
+            shared--;
+        }
+        try {
+            LessBytes.writeLength(shared, body);
+            writeString(name.substring(shared), body);
+            LessBytes.writeLength(ref.lastModified, body);
+            LessBytes.writeLength(ref.size, body);
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+        previous = name;
+        long now = System.currentTimeMillis();
+        if (count++ == 0) {
+            started = now;
+        }
+        return (count >= MAX_REFERENCES) || (body.size() >= MAX_BYTES) || ((now - started) >= MAX_DELAY);
+    }
+
+    /** @return true if the batch holds references that are {@code meshy.finder.batch.delay} ms old */
+    boolean isDue() {
+        return (count > 0) && ((System.currentTimeMillis() - started) >= MAX_DELAY);
+    }
+
+    int size() {
+        return count;
+    }
+
+    /** @return the frame of the references added since the last drain, which are then forgotten */
+    byte[] drain() {
+        try {
+            ByteArrayOutputStream frame = new ByteArrayOutputStream(encodedUUID.length + body.size() + 6);
+            frame.write(0);
+            LessBytes.writeLength(count, frame);
+            frame.write(encodedUUID);
+            body.writeTo(frame);
+            body.reset();
+            previous = "";
+            count = 0;
+            return frame.toByteArray();
+        } catch (IOException ex) {
+            throw new AssertionError(ex);
+        }
+    }
+
+    static boolean isBatch(byte[] frame) {
+        return (frame.length > 0) && (frame[0] == 0);
+    }
+
+    /** @return the number of references in a result frame, batched or not */
+    static int count(byte[] frame) throws IOException {
+        if (!isBatch(frame)) {
+            return 1;
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(frame, 1, frame.length - 1);
+        return (int) LessBytes.readLength(in);
+    }
+
+    /** @return the references of a result frame, batched or not */
+    static List<FileReference> decode(byte[] frame) throws IOException {
+        if (!isBatch(frame)) {
+            return Collections.singletonList(new FileReference(frame));
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(frame, 1, frame.length - 1);
+        int count = (int) LessBytes.readLength(in);
+        String hostUUID = readString(in);
+        List<FileReference> refs = new ArrayList<>(count);
+        String previous = "";
+        for (int i = 0; i < count; i++) {
+            int shared = (int) LessBytes.readLength(in);
+            String name = previous.substring(0, shared).concat(readString(in));
+            long lastModified = LessBytes.readLength(in);
+            long size = LessBytes.readLength(in);
+            refs.add(new FileReference(name, lastModified, size).setHostUUID(hostUUID));
+            previous = name;
+        }
+        return refs;
+    }
+
+    private static void writeString(String string, OutputStream out) throws IOException {
+        byte[] bytes = string.getBytes(UTF_8);
+        LessBytes.writeLength(bytes.length, out);
+        out.write(bytes);
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        byte[] bytes = new byte[(int) LessBytes.readLength(in)];
+        if ((bytes.length > 0) && (in.read(bytes) < bytes.length)) {
+            throw new EOFException("truncated file reference batch");
+        }
+        return new String(bytes, UTF_8);
+    }
+}
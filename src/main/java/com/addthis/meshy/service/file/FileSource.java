@@ -43,15 +43,28 @@ public class FileSource extends SourceHandler {
 
     static final int FILE_FIND_WINDOW_SIZE = Parameter.intValue("meshy.finder.window", 50_000);
 
+    /**
+     * sent after the requested paths to ask for {@link FileReferenceBatch} result frames. a target that predates
+     * them takes it for one more path, which matches nothing, and answers with a frame per reference.
+     */
+    static final String BATCH_OPTION = "\u0000batch";
+    static final boolean BATCH = Parameter.boolValue("meshy.finder.batch", true);
+
     // not thread safe, and only used for single-channel cases (eg. clients)
     private final LinkedList<FileReference> list = new LinkedList<>();
     private long currentWindow = 0;
+    private final boolean batched;
 
     protected List<String> fileRequest;
     protected FileReferenceFilter filter;
 
     public FileSource(ChannelMaster master) {
+        this(master, BATCH);
+    }
+
+    FileSource(ChannelMaster master, boolean batched) {
         super(master, FileTarget.class, true);
+        this.batched = batched;
     }
 
     public FileSource(ChannelMaster master, String[] files) {
@@ -83,6 +96,12 @@ public class FileSource extends SourceHandler {
         requestFilesPostStart("remote", matches);
     }
 
+    /** forward a relay tree find to the children of this node */
+    void requestRelayFiles(Collection<String> children, String scope, String... matches) {
+        start(children);
+        requestFilesPostStart(scope, matches);
+    }
+
     public void requestFiles(String scope, String... matches) {
         start();
         requestFilesPostStart(scope, matches);
@@ -97,6 +116,9 @@ public class FileSource extends SourceHandler {
             log.trace("{} request={}", this, match);
             send(LessBytes.toBytes(match));
         }
+        if (batched) {
+            send(LessBytes.toBytes(BATCH_OPTION));
+        }
         send(new byte[]{-1});
         sendInitialWindowing();
     }
@@ -122,16 +144,24 @@ public class FileSource extends SourceHandler {
         return map;
     }
 
+    @Override
+    protected boolean isBudgeted() {
+        return true;
+    }
+
     @Override
     public void receive(ChannelState state, int length, ByteBuf buffer) throws Exception {
-        currentWindow -= 1;
+        List<FileReference> refs = FileReferenceBatch.decode(Meshy.getBytes(length, buffer));
+        // window is counted in references; a batch can take more than half of it
+        currentWindow -= refs.size();
         if (currentWindow <= (FILE_FIND_WINDOW_SIZE / 2)) {
-            increaseClientWindow(FILE_FIND_WINDOW_SIZE / 2);
+            increaseClientWindow((int) (FILE_FIND_WINDOW_SIZE - currentWindow));
         }
         /* sync not required b/c overridden in server-server calls */
-        FileReference ref = new FileReference(Meshy.getBytes(length, buffer));
-        if (filter == null || filter.accept(ref)) {
-            receiveReference(ref);
+        for (FileReference ref : refs) {
+            if (filter == null || filter.accept(ref)) {
+                receiveReference(ref);
+            }
         }
         log.trace("{} recv={}", this, list.size());
     }
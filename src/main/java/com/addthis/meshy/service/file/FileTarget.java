@@ -13,34 +13,43 @@
  */
 package com.addthis.meshy.service.file;
 
+import javax.annotation.Nullable;
+
 import java.io.IOException;
 
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
-
-import java.nio.file.FileSystems;
-import java.nio.file.PathMatcher;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.addthis.basis.util.LessBytes;
 import com.addthis.basis.util.Parameter;
 
 import com.addthis.meshy.ChannelMaster;
 import com.addthis.meshy.ChannelState;
+import com.addthis.meshy.GlobMatchers;
 import com.addthis.meshy.Meshy;
+import com.addthis.meshy.OutboundBudget;
 import com.addthis.meshy.TargetHandler;
 import com.addthis.meshy.VirtualFileReference;
 import com.addthis.meshy.VirtualFileSystem;
@@ -82,8 +91,25 @@ public class FileTarget extends TargetHandler implements Runnable {
     static final Timer localFindTimer = Metrics.newTimer(FileTarget.class, "localFinds", "timer");
     static final AtomicLong findTimeLocal = new AtomicLong(0);
 
+    /* the finder pool grows from finderThreads up to finderMaxThreads while finds queue up, see resizeFinderPool */
     static final int finderThreads = Parameter.intValue("meshy.finder.threads", 2);
+    static final int finderMaxThreads = Math.max(finderThreads, Parameter.intValue("meshy.finder.maxThreads",
+                                                                                   4 * finderThreads));
+    /* beyond one thread per core, only grow while walks spend at least this much of their time listing files */
+    static final int finderIoBoundPercent = Parameter.intValue("meshy.finder.ioBoundPercent", 50);
+    static final long finderResizeNanos =
+            TimeUnit.MILLISECONDS.toNanos(Parameter.intValue("meshy.finder.resizeInterval", 1000));
+    /* threads walking directories for all running finds; subdirectories of one find are walked in parallel */
+    static final int walkerThreads = Parameter.intValue("meshy.finder.walkThreads",
+                                                        2 * Runtime.getRuntime().availableProcessors());
     static final int finderQueueSafetyDrop = Parameter.intValue("meshy.finder.safety.drop", Integer.MAX_VALUE);
+    static final Gauge<Integer> finderPoolSize = Metrics.newGauge(FileTarget.class, "allFinds", "threads",
+                                                                  new Gauge<Integer>() {
+        @Override
+        public Integer value() {
+            return finderExecutor.getCorePoolSize();
+        }
+    });
     static final Gauge<Integer> finderQueueSize = Metrics.newGauge(FileTarget.class, "allFinds", "queued", new Gauge<Integer>() {
         @Override
         public Integer value() {
@@ -93,10 +119,22 @@ public class FileTarget extends TargetHandler implements Runnable {
 
     static final LinkedBlockingQueue<Runnable> finderQueue = new LinkedBlockingQueue<>(finderQueueSafetyDrop);
 
+    private static final ThreadPoolExecutor finderExecutor = new ThreadPoolExecutor(
+            finderThreads, finderMaxThreads, 60L, TimeUnit.SECONDS, finderQueue,
+            new ThreadFactoryBuilder().setNameFormat("finder-%d").build());
     private static final ExecutorService finderPool = MoreExecutors
-            .getExitingExecutorService(new ThreadPoolExecutor(finderThreads, finderThreads, 0L, TimeUnit.MILLISECONDS,
-                    finderQueue,
-                    new ThreadFactoryBuilder().setNameFormat("finder-%d").build()), 1, TimeUnit.SECONDS);
+            .getExitingExecutorService(finderExecutor, 1, TimeUnit.SECONDS);
+
+    private static final ForkJoinPool walkerPool = new ForkJoinPool(walkerThreads, pool -> {
+        ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+        thread.setName("finder-walk-" + thread.getPoolIndex());
+        return thread;
+    }, null, false);
+
+    // time spent walking, and listing directories within that, since the finder pool was last resized
+    private static final LongAdder walkNanos = new LongAdder();
+    private static final LongAdder listNanos = new LongAdder();
+    private static final AtomicLong lastResize = new AtomicLong(System.nanoTime());
 
     private static final String GLOB_META_CHARS = "\\*?[{";
     private static final CharMatcher GLOB_MATCHER = CharMatcher.anyOf(GLOB_META_CHARS);
@@ -106,6 +144,7 @@ public class FileTarget extends TargetHandler implements Runnable {
     private final AtomicBoolean firstDone = new AtomicBoolean(false);
     private final AtomicBoolean canceled = new AtomicBoolean(false);
     private final AtomicInteger currentWindow = new AtomicInteger(0);
+    private final WindowWait windowWait = new WindowWait();
     private final LinkedList<String> paths = new LinkedList<>();
 
     private boolean pathsComplete = false;
@@ -114,6 +153,9 @@ public class FileTarget extends TargetHandler implements Runnable {
     private String scope = null;
 
     private volatile ForwardingFileSource remoteSource = null;
+    /* set if the source asked for batched results; references are collected here, and sent as it fills */
+    private boolean batched = false;
+    @Nullable private volatile FileReferenceBatch batch = null;
 
     @Override
     public void receive(int length, ByteBuf buffer) throws Exception {
@@ -128,7 +170,12 @@ public class FileTarget extends TargetHandler implements Runnable {
                 // empty string.
                 pathsComplete = true;
             } else {
-                paths.add(LessBytes.toString(bytes));
+                String path = LessBytes.toString(bytes);
+                if (FileSource.BATCH_OPTION.equals(path)) {
+                    batched = true;
+                } else {
+                    paths.add(path);
+                }
             }
         } else {
             int additionalWindow = LessBytes.readInt(Meshy.getInput(length, buffer));
@@ -149,6 +196,7 @@ public class FileTarget extends TargetHandler implements Runnable {
         try {
             if (!canceled.get()) {
                 findTask = finderPool.submit(this);
+                resizeFinderPool();
             } else {
                 findTask = Futures.immediateCancelledFuture();
                 log.debug("skipping execution of canceled file find");
@@ -171,6 +219,12 @@ public class FileTarget extends TargetHandler implements Runnable {
         }
     }
 
+    /** find results can run to many thousands of frames; keep them from delaying other sessions' control frames */
+    @Override
+    public boolean isBulk() {
+        return true;
+    }
+
     @Override
     public void channelClosed() {
         log.debug("canceling find task for {} on channel close", this);
@@ -203,6 +257,8 @@ public class FileTarget extends TargetHandler implements Runnable {
             doFind();
         } catch (Exception e) {
             log.error("FileTarget:run() error", e);
+        } finally {
+            resizeFinderPool();
         }
     }
 
@@ -210,16 +266,30 @@ public class FileTarget extends TargetHandler implements Runnable {
      * perform the find. called by finder threads from an executor service. see run()
      */
     public void doFind() throws IOException {
+        // finder threads can wait for queued results (of any session) to drain before adding more
+        if (!OutboundBudget.global().awaitAdmission()) {
+            log.warn("outbound budget exhausted: dropping find paths={}", paths);
+            cancelFindTask();
+            return;
+        }
         findsRunning.inc();
         try {
             //should we ask other meshy nodes for file references as well?
-            final boolean remote = scope.startsWith("local");
+            RelayTree relay = relayTree();
+            List<String> relayTo = (relay != null) ? relayTargets(relay) : null;
+            final boolean remote = (relay != null) ? !relayTo.isEmpty() : scope.startsWith("local");
             log.debug("{} starting-find={}", this, scope);
             if (remote) { //yes, ask other meshy nodes (and ourselves)
                 forwardMetaData = "localF".equals(scope);
                 try {
-                    ForwardingFileSource newRemoteSource = new ForwardingFileSource(getChannelMaster());
-                    newRemoteSource.requestLocalFiles(paths.toArray(new String[paths.size()]));
+                    ForwardingFileSource newRemoteSource = new ForwardingFileSource(getChannelMaster(), batched);
+                    String[] pathArray = paths.toArray(new String[paths.size()]);
+                    if (relay != null) {
+                        log.debug("{} relaying find to {}", this, relayTo);
+                        newRemoteSource.requestRelayFiles(relayTo, relay.encode(), pathArray);
+                    } else {
+                        newRemoteSource.requestLocalFiles(pathArray);
+                    }
                     remoteSource = newRemoteSource;
                     if (canceled.get()) {
                         remoteSource.sendComplete();
@@ -239,15 +309,20 @@ public class FileTarget extends TargetHandler implements Runnable {
             } //else -- just look ourselves
 
             //Local filesystem find. Done in both cases.
+            if (batched) {
+                batch = new FileReferenceBatch(getChannelMaster().getUUID());
+            }
             WalkState walkState = new WalkState();
             long localStart = System.currentTimeMillis();
+            List<WalkTask> roots = new ArrayList<>();
             for (String onepath : paths) {
                 for (VirtualFileSystem vfs : getChannelMaster().getFileSystems()) {
                     VFSPath path = new VFSPath(vfs.tokenizePath(onepath));
                     log.trace("{} recv.walk vfs={} path={}", this, vfs, path);
-                    walkSafe(walkState, Long.toString(vfs.hashCode()), vfs.getFileRoot(), path);
+                    roots.add(new WalkTask(walkState, Long.toString(vfs.hashCode()), vfs.getFileRoot(), path));
                 }
             }
+            walkerPool.invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(roots)));
             long localRunTime = System.currentTimeMillis() - localStart;
             if (localRunTime > finderWarnTime) {
                 log.warn("{} slow find ({}) for {}", this, localRunTime, paths);
@@ -256,6 +331,7 @@ public class FileTarget extends TargetHandler implements Runnable {
             findTimeLocal.addAndGet(localRunTime);
             localFindTimer.update(localRunTime, TimeUnit.MILLISECONDS);
         } finally {
+            sendBatch();
             if (forwardMetaData) {
                 FileReference flagRef = new FileReference("localfind", 0, 0);
                 FileTarget.this.send(flagRef.encode(null));
@@ -274,69 +350,140 @@ public class FileTarget extends TargetHandler implements Runnable {
         }
     }
 
+    /**
+     * @return the relay tree this find is part of: the one it was sent down, or a new one rooted here when this is
+     * the entry node of a mesh-wide find. null for flat forwarding and local only finds.
+     */
+    @Nullable private RelayTree relayTree() {
+        if (RelayTree.isRelayScope(scope)) {
+            return RelayTree.decode(scope);
+        } else if ("local".equals(scope)) {
+            return RelayTree.forPeers(getChannelMaster(), RelayTree.FANOUT);
+        }
+        return null;
+    }
+
+    /* the children of this node, and at the entry node the peers that would not relay to their own children */
+    private List<String> relayTargets(RelayTree relay) {
+        List<String> targets = new ArrayList<>();
+        addConnected(relay, relay.children(getChannelMaster().getUUID()), targets);
+        targets.addAll(relay.direct());
+        return targets;
+    }
+
+    /* a child this node is not connected to is replaced by its own children, rather than losing its subtree */
+    private void addConnected(RelayTree relay, List<String> children, List<String> targets) {
+        for (String child : children) {
+            if (!getChannelMaster().getChannels(child).isEmpty()) {
+                targets.add(child);
+            } else {
+                log.warn("{} not connected to relay child {}: sending to its children {} instead", this, child,
+                         relay.children(child));
+                addConnected(relay, relay.children(child), targets);
+            }
+        }
+    }
+
+    /**
+     * Grows the finder pool by a thread while finds are queued and walks are either short of one thread per core or
+     * spend most of their time listing directories (waiting on the file system rather than the cpu), and shrinks
+     * it by a thread once the queue is empty and a thread is idle. Called as finds are queued and finish, at most
+     * once per {@code meshy.finder.resizeInterval} ms.
+     */
+    static void resizeFinderPool() {
+        long now = System.nanoTime();
+        long last = lastResize.get();
+        if (((now - last) < finderResizeNanos) || !lastResize.compareAndSet(last, now)) {
+            return;
+        }
+        long walked = walkNanos.sumThenReset();
+        long listed = listNanos.sumThenReset();
+        boolean ioBound = (walked > 0) && ((listed * 100) >= (walked * finderIoBoundPercent));
+        synchronized (finderExecutor) {
+            int threads = finderExecutor.getCorePoolSize();
+            int queued = finderQueue.size();
+            if ((queued > 0) && (threads < finderMaxThreads)
+                && (ioBound || (threads < Runtime.getRuntime().availableProcessors()))) {
+                log.debug("growing finder pool to {} threads: queued={} listed={}% of {}ms", threads + 1, queued,
+                          (walked > 0) ? ((listed * 100) / walked) : 0, TimeUnit.NANOSECONDS.toMillis(walked));
+                finderExecutor.setCorePoolSize(threads + 1);
+            } else if ((queued == 0) && (threads > finderThreads) && (finderExecutor.getActiveCount() < threads)) {
+                log.debug("shrinking finder pool to {} threads", threads - 1);
+                finderExecutor.setCorePoolSize(threads - 1);
+            }
+        }
+    }
+
     /**
      * Wrapper around walk with a try/catch that swallows all exceptions (and prints some statements). Presumably
      * this is to help make finder threads unkillable since they are started only once.
+     *
+     * @return the subdirectories left to walk
      */
-    private void walkSafe(final WalkState state, final String vfsKey, final VirtualFileReference ref, final VFSPath path) {
+    private List<WalkTask> walkSafe(final WalkState state, final String vfsKey, final VirtualFileReference ref,
+                                    final VFSPath path) {
         try {
-            walk(state, vfsKey, ref, path);
+            return walk(state, vfsKey, ref, path);
         } catch (Exception ex) {
             log.warn("walk fail {} @ {}", ref, path.getRealPath(), ex);
+            return Collections.emptyList();
         }
     }
 
     /**
-     * Recursively (though it calls walkSafe for its recursion) walk through the filesystem to locate the
-     * requested files. Returns void because it streams the results out through the mesh network in place
-     * instead of appending to a results list. Remember that send() is asynchronous so this does not block
-     * on network activity; it may block on disk i/o or various local handler implementations. Also the
-     * results that it sends out may not be recieved as fast as imagined (queuing in meshy output).
+     * Walk one level of the filesystem to locate the requested files. Matching files are streamed out through
+     * the mesh network in place instead of being appended to a results list; matching directories are returned
+     * as tasks, which {@link WalkTask} forks so that idle walker threads can steal them. Remember that send() is
+     * asynchronous so this does not block on network activity; it may block on disk i/o, various local handler
+     * implementations, or an exhausted send window. Also the results that it sends out may not be recieved as
+     * fast as imagined (queuing in meshy output).
      */
-    private void walk(final WalkState state, final String vfsKey, final VirtualFileReference ref, final VFSPath path) throws Exception {
+    private List<WalkTask> walk(final WalkState state, final String vfsKey, final VirtualFileReference ref,
+                                final VFSPath path) throws Exception {
         if (canceled.get()) {
-            return;
+            return Collections.emptyList();
         }
         long mark = debugCacheLine > 0 ? System.currentTimeMillis() : 0;
         String token = path.getToken();
         final boolean isGlob = GLOB_MATCHER.matchesAnyOf(token);
         final boolean asDir = path.hasMoreTokens();
+        long listStart = System.nanoTime();
         Iterator<VirtualFileReference> files;
         if (isGlob) {
-            PathMatcher pathMatcher = FileSystems.getDefault().getPathMatcher("glob:" + token);
-            files = ref.listFiles(pathMatcher);
+            files = ref.listFiles(GlobMatchers.get(token));
         } else {
             VirtualFileReference nextRef = ref.getFile(token);
             if (nextRef != null) {
-                files = Iterators.singletonIterator(ref.getFile(token));
+                files = Iterators.singletonIterator(nextRef);
             } else {
-                return;
+                return Collections.emptyList();
             }
         }
         log.trace("walk token={} ref={} path={} asDir={} files={}", token, ref, path, asDir, files);
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<WalkTask> subdirs = Collections.emptyList();
         /* possible now b/c of change to follow sym links */
         if (asDir) {
-            if (files == null) {
-                return;
-            }
+            subdirs = new ArrayList<>();
             while (files.hasNext() && !canceled.get()) {
                 VirtualFileReference next = files.next();
-                if (path.push(next.getName())) {
-                    walkSafe(state, vfsKey, next, path);
-                    state.dirs++;
-                    path.pop();
+                VFSPath subpath = new VFSPath(path);
+                if (subpath.push(next.getName())) {
+                    subdirs.add(new WalkTask(state, vfsKey, next, subpath));
+                    state.dirs.increment();
                 }
             }
+            listNanos.add(System.nanoTime() - listStart);
         } else {
-            if (files == null) {
-                return;
-            }
+            listNanos.add(System.nanoTime() - listStart);
             while (files.hasNext() && !canceled.get()) {
                 VirtualFileReference next = files.next();
                 FileReference fileRef = new FileReference(path.getRealPath(), next);
                 sendLocalFileRef(fileRef);
             }
-            state.files += found.get();
+            state.files.add(found.get());
         }
         if (debugCacheLine > 0) {
             long time = System.currentTimeMillis() - mark;
@@ -345,21 +492,128 @@ public class FileTarget extends TargetHandler implements Runnable {
                 log.warn("slow ({}) for {} {{}}", time, pathString, state);
             }
         }
+        return subdirs;
     }
 
+    /* walks of the walker threads may send concurrently, so a unit of window is claimed before each send */
     private boolean sendLocalFileRef(FileReference fileReference) {
-        while((currentWindow.get() == 0) && !canceled.get()) {
-            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+        while (true) {
+            if (canceled.get()) {
+                return false;
+            }
+            int window = currentWindow.get();
+            if (window > 0) {
+                if (currentWindow.compareAndSet(window, window - 1)) {
+                    break;
+                }
+            } else {
+                // the source only grants more window as it receives what it was already granted
+                sendBatch();
+                try {
+                    ForkJoinPool.managedBlock(windowWait);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        FileReferenceBatch current = batch;
+        if (current != null) {
+            synchronized (current) {
+                if (current.add(fileReference)) {
+                    sendBatch(current);
+                }
+            }
+            found.incrementAndGet();
+            fileFindMeter.mark();
+            return true;
         }
         boolean wasSent = send(fileReference.encode(getChannelMaster().getUUID()));
         if (wasSent) {
             found.incrementAndGet();
             fileFindMeter.mark();
-            currentWindow.decrementAndGet();
+        } else {
+            currentWindow.incrementAndGet();
         }
         return wasSent;
     }
 
+    /* sends the references collected so far, if any */
+    private void sendBatch() {
+        FileReferenceBatch current = batch;
+        if (current != null) {
+            synchronized (current) {
+                sendBatch(current);
+            }
+        }
+    }
+
+    /* sends the references collected so far if the oldest has waited long enough, from walkers between directories */
+    private void sendBatchIfDue() {
+        FileReferenceBatch current = batch;
+        if (current != null) {
+            synchronized (current) {
+                if (current.isDue()) {
+                    sendBatch(current);
+                }
+            }
+        }
+    }
+
+    /* called with the batch locked */
+    private void sendBatch(FileReferenceBatch current) {
+        int size = current.size();
+        if ((size > 0) && !send(current.drain())) {
+            currentWindow.addAndGet(size);
+        }
+    }
+
+    /**
+     * Waits for the source to grant more window. The walker pool is shared by every find, so the wait is managed:
+     * the pool starts a spare worker for each walker blocked here, and a find whose client stops reading does not
+     * stall the walks of the others.
+     */
+    private final class WindowWait implements ForkJoinPool.ManagedBlocker {
+
+        @Override
+        public boolean block() {
+            Uninterruptibles.sleepUninterruptibly(10, TimeUnit.MILLISECONDS);
+            return isReleasable();
+        }
+
+        @Override
+        public boolean isReleasable() {
+            return canceled.get() || (currentWindow.get() > 0);
+        }
+    }
+
+    /* one directory level of a find, forking its subdirectories */
+    private final class WalkTask extends RecursiveAction {
+
+        private final WalkState state;
+        private final String vfsKey;
+        private final VirtualFileReference ref;
+        private final VFSPath path;
+
+        WalkTask(WalkState state, String vfsKey, VirtualFileReference ref, VFSPath path) {
+            this.state = state;
+            this.vfsKey = vfsKey;
+            this.ref = ref;
+            this.path = path;
+        }
+
+        @Override
+        protected void compute() {
+            long start = System.nanoTime();
+            List<WalkTask> subdirs = walkSafe(state, vfsKey, ref, path);
+            walkNanos.add(System.nanoTime() - start);
+            sendBatchIfDue();
+            if (!subdirs.isEmpty()) {
+                invokeAll(subdirs);
+            }
+        }
+    }
+
     private void forwardPeerList(Collection<Channel> peerList) {
         int peerCount = peerList.size();
         FileReference flagRef = new FileReference("peers", 0, peerCount);
@@ -373,7 +627,9 @@ public class FileTarget extends TargetHandler implements Runnable {
                 if (sb.length() > 0) {
                     sb.append(',');
                 }
-                sb.append(((InetSocketAddress) peer.remoteAddress()).getHostName());
+                SocketAddress remote = peer.remoteAddress();
+                // local channels (to meshes in this vm) have no host name
+                sb.append((remote instanceof InetSocketAddress) ? ((InetSocketAddress) remote).getHostName() : remote);
             }
             return sb.toString();
         } catch (Exception e) {
@@ -393,6 +649,14 @@ public class FileTarget extends TargetHandler implements Runnable {
             push("");
         }
 
+        /* a copy to walk a subdirectory with, possibly on another thread */
+        VFSPath(VFSPath parent) {
+            this.tokens = parent.tokens;
+            this.path.addAll(parent.path);
+            this.token = parent.token;
+            this.pos = parent.pos;
+        }
+
         @Override
         public String toString() {
             return "VFSPath:" + path + '@' + pos + '=' + token;
@@ -425,21 +689,12 @@ public class FileTarget extends TargetHandler implements Runnable {
             }
             return false;
         }
-
-        boolean pop() {
-            if (pos > 0) {
-                token = tokens[--pos];
-                path.removeLast();
-                return true;
-            }
-            return false;
-        }
     }
 
     private static final class WalkState {
 
-        int dirs;
-        int files;
+        final LongAdder dirs = new LongAdder();
+        final LongAdder files = new LongAdder();
 
         @Override
         public String toString() {
@@ -452,8 +707,8 @@ public class FileTarget extends TargetHandler implements Runnable {
         private final AtomicBoolean doComplete = new AtomicBoolean();
         private final ConcurrentHashMultiset<Channel> windows = ConcurrentHashMultiset.create();
 
-        public ForwardingFileSource(ChannelMaster master) {
-            super(master);
+        public ForwardingFileSource(ChannelMaster master, boolean batched) {
+            super(master, batched);
         }
 
         @Override protected void sendInitialWindowing() {
@@ -530,8 +785,10 @@ public class FileTarget extends TargetHandler implements Runnable {
 
         @Override
         public void receive(ChannelState state, int length, ByteBuf buffer) throws Exception {
-            windows.remove(state.getChannel());
-            FileTarget.this.send(Meshy.getBytes(length, buffer));
+            // passed on as is: batches are only asked for when the source asked for them
+            byte[] frame = Meshy.getBytes(length, buffer);
+            windows.remove(state.getChannel(), FileReferenceBatch.count(frame));
+            FileTarget.this.send(frame);
         }
 
         @Override
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy.service.file;
+
+import javax.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+
+import com.addthis.basis.util.LessStrings;
+import com.addthis.basis.util.Parameter;
+
+import com.addthis.meshy.ChannelState;
+import com.addthis.meshy.MeshyConstants;
+import com.addthis.meshy.MeshyServer;
+import com.addthis.meshy.service.peer.PeerService;
+
+/**
+ * A k-ary relay tree over the nodes of a mesh-wide find. Rather than the entry node forwarding the request to
+ * (and relaying the results of) every peer, it forwards to at most {@code fanout} children, which do the same for
+ * their own subtrees and aggregate the results on the way back up.
+ * <p/>
+ * The tree is implicit: members are listed in heap order, so the children of the member at index i are the
+ * members at {@code i * fanout + 1} through {@code i * fanout + fanout}. Every node is sent the same scope, which
+ * lets a node reach all of its children with one broadcast session. Nodes must be connected to the members of
+ * their subtree (as they are in a fully peered mesh); a node that is not connected to one of its children sends
+ * the find to that child's children instead, so only the child itself is missed.
+ * <p/>
+ * Only peers that advertised {@link PeerService#FEATURE_RELAY_FIND} while peering are members. A peer that
+ * predates relaying would take the relay scope for a local only find and drop its subtree, so the entry node sends
+ * the find to those {@link #direct()} itself, in the same session: they still run their local find as they did.
+ */
+final class RelayTree {
+
+    static final String SCOPE_PREFIX = "relay;";
+
+    /* max children per node for mesh-wide finds. 0 forwards to every peer directly */
+    static final int FANOUT = Parameter.intValue("meshy.broadcast.fanout", 0);
+
+    private final int fanout;
+    private final List<String> members;
+    private final List<String> direct;
+
+    RelayTree(int fanout, List<String> members) {
+        this(fanout, members, Collections.emptyList());
+    }
+
+    private RelayTree(int fanout, List<String> members, List<String> direct) {
+        if (fanout < 1) {
+            throw new IllegalArgumentException("fanout must be positive: " + fanout);
+        }
+        this.fanout = fanout;
+        this.members = members;
+        this.direct = direct;
+    }
+
+    /**
+     * @return a tree rooted at this server over its named peers that relay, or null if flat forwarding would reach
+     * every peer just as well (the tree is disabled, or no more than {@code fanout} peers relay)
+     */
+    @Nullable static RelayTree forPeers(MeshyServer master, int fanout) {
+        if (fanout < 1) {
+            return null;
+        }
+        TreeSet<String> peers = new TreeSet<>();
+        TreeSet<String> relaying = new TreeSet<>();
+        for (ChannelState state : master.getChannels(MeshyConstants.LINK_NAMED)) {
+            if (state.getName() != null) {
+                peers.add(state.getName());
+                if (state.hasPeerFeature(PeerService.FEATURE_RELAY_FIND)) {
+                    relaying.add(state.getName());
+                }
+            }
+        }
+        peers.remove(master.getUUID());
+        relaying.remove(master.getUUID());
+        if (relaying.size() <= fanout) {
+            return null;
+        }
+        peers.removeAll(relaying);
+        List<String> members = new ArrayList<>(relaying.size() + 1);
+        members.add(master.getUUID());
+        members.addAll(relaying);
+        return new RelayTree(fanout, members, new ArrayList<>(peers));
+    }
+
+    static boolean isRelayScope(String scope) {
+        return scope.startsWith(SCOPE_PREFIX);
+    }
+
+    /** @param scope a scope of the form {@code relay;<fanout>;<member>,<member>,...} */
+    static RelayTree decode(String scope) {
+        String[] parts = LessStrings.splitArray(scope.substring(SCOPE_PREFIX.length()), ";");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("malformed relay scope: " + scope);
+        }
+        return new RelayTree(Integer.parseInt(parts[0]), Arrays.asList(LessStrings.splitArray(parts[1], ",")));
+    }
+
+    String encode() {
+        return SCOPE_PREFIX + fanout + ';' + String.join(",", members);
+    }
+
+    /** @return the children of the member, or an empty list for leaves and non-members */
+    List<String> children(String member) {
+        int index = members.indexOf(member);
+        if (index < 0) {
+            return Collections.emptyList();
+        }
+        long first = ((long) index * fanout) + 1;
+        if (first >= members.size()) {
+            return Collections.emptyList();
+        }
+        return members.subList((int) first, (int) Math.min(first + fanout, members.size()));
+    }
+
+    List<String> members() {
+        return members;
+    }
+
+    /** @return the peers of the entry node that did not advertise relaying. empty for decoded trees */
+    List<String> direct() {
+        return direct;
+    }
+}
@@ -63,7 +63,7 @@ public class HostTarget extends TargetHandler {
         for (ChannelState linkState : links) {
             InetSocketAddress remote = linkState.getRemoteAddress();
             if (remote == null) {
-                remote = (InetSocketAddress) linkState.getChannel().remoteAddress();
+                remote = linkState.getChannelRemoteAddress();
                 log.debug("missing remote for {} @ {}", remote, linkState);
             }
             LessBytes.writeString(linkState.getName() != null ? linkState.getName() : "<null>", out);
@@ -72,4 +72,10 @@ public class HostTarget extends TargetHandler {
         send(out.toByteArray());
         sendComplete();
     }
+
+    @Override
+    protected boolean recycle() {
+        canceled = false;
+        return true;
+    }
 }
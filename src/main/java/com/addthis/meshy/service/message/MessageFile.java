@@ -20,10 +20,10 @@ import java.util.LinkedList;
 import java.util.Map;
 
 import java.nio.file.PathMatcher;
-import java.nio.file.Paths;
 
 import com.addthis.basis.util.JitterClock;
 
+import com.addthis.meshy.GlobMatchers;
 import com.addthis.meshy.VirtualFileInput;
 import com.addthis.meshy.VirtualFileReference;
 
@@ -95,7 +95,7 @@ class MessageFile implements VirtualFileReference {
             }
             ArrayList<VirtualFileReference> filtered = new ArrayList<>();
             for (MessageFile file : files.values()) {
-                if (filter.matches(Paths.get(file.getName()))) {
+                if (GlobMatchers.matches(filter, file.getName())) {
                     filtered.add(file);
                 }
             }
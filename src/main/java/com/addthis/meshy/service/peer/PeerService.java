@@ -34,12 +34,21 @@ import com.google.common.base.Strings;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.netty.channel.local.LocalChannel;
+
 /**
  * connect to a peer, receive from peer it's uuid and connection map
  */
 public final class PeerService {
 
     static final Logger log = LoggerFactory.getLogger(PeerService.class);
+
+    /* forwards relay tree finds to its children, rather than taking their scope for a local only find */
+    public static final int FEATURE_RELAY_FIND = 1;
+
+    /* advertised to peers after the stripe index. peers that predate them advertise none */
+    static final int FEATURES = FEATURE_RELAY_FIND;
+
     static final LinkedBlockingQueue<PeerTuple> peerQueue = new LinkedBlockingQueue<>();
 
     static final Thread peeringThread = new Thread() {
@@ -69,6 +78,15 @@ public final class PeerService {
         return !(addr.isLoopbackAddress() || addr.isAnyLocalAddress());
     }
 
+    /* true for channels within this vm, or to a loopback address */
+    static boolean isSameHost(ChannelState state) {
+        if (state.getChannel() instanceof LocalChannel) {
+            return true;
+        }
+        InetSocketAddress remote = state.getChannelRemoteAddress();
+        return (remote != null) && remote.getAddress().isLoopbackAddress();
+    }
+
     public static void encodeAddress(InetSocketAddress addr, OutputStream out) throws IOException {
         LessBytes.writeBytes(addr.getAddress().getAddress(), out);
         LessBytes.writeInt(addr.getPort(), out);
@@ -81,12 +99,25 @@ public final class PeerService {
     /**
      * send local peer uuid:port and list of peers to remote
      */
-    public static byte[] encodeExtraPeers(MeshyServer master) {
+    public static byte[] encodeExtraPeers(MeshyServer master, ChannelState remote) {
+        return encodeExtraPeers(master, isSameHost(remote));
+    }
+
+    /**
+     * @param sameHost false if the remote is on another host, which is not sent the peers known by loopback
+     *                 addresses (eg. the other servers of this vm)
+     */
+    public static byte[] encodeExtraPeers(MeshyServer master, boolean sameHost) {
         try {
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             for (ChannelState channelState : master.getChannels(MeshyConstants.LINK_NAMED)) {
+                InetSocketAddress address = channelState.getRemoteAddress();
+                if ((address == null) || (!sameHost && !shouldEncode(address))) {
+                    log.debug("{} not encoding {} @ {}", master, channelState.getName(), address);
+                    continue;
+                }
                 LessBytes.writeString(channelState.getName(), out);
-                encodeAddress(channelState.getRemoteAddress(), out);
+                encodeAddress(address, out);
                 log.debug("{} encoded {} @ {}", master, channelState.getName(), channelState.getChannelRemoteAddress());
             }
             for (MeshyServer member : master.getMembers()) {
@@ -104,10 +135,21 @@ public final class PeerService {
     }
 
     public static byte[] encodeSelf(MeshyServer master) {
+        return encodeSelf(master, 0);
+    }
+
+    /**
+     * @param stripe index of the channel among the striped channels to the peer. peers that predate striping
+     *               ignore the trailing int and treat every channel as a primary. it is followed by the
+     *               {@link #FEATURES} of this server, which older peers ignore in turn.
+     */
+    public static byte[] encodeSelf(MeshyServer master, int stripe) {
         try {
             ByteArrayOutputStream out = new ByteArrayOutputStream();
             LessBytes.writeString(master.getUUID(), out);
             encodeAddress(master.getLocalAddress(), out);
+            LessBytes.writeInt(stripe, out);
+            LessBytes.writeInt(FEATURES, out);
             return out.toByteArray();
         } catch (Exception ex) {
             throw new RuntimeException(ex);
@@ -136,7 +178,12 @@ public final class PeerService {
                 newInetAddr = newAddr.getAddress();
             }
             if ((newInetAddr.isAnyLocalAddress() || newInetAddr.isLoopbackAddress()) && isConnector) {
-                newAddr = new InetSocketAddress(peerState.getChannel().localAddress().getAddress(), newAddr.getPort());
+                newAddr = new InetSocketAddress(peerState.getChannelLocalAddress().getAddress(), newAddr.getPort());
+            }
+            int stripe = (in.available() > 0) ? LessBytes.readInt(in) : 0;
+            peerState.setPeerFeatures((in.available() > 0) ? LessBytes.readInt(in) : 0);
+            if (stripe > 0) {
+                return master.promoteToPeerStripe(peerState, newName, newAddr, stripe);
             }
 
             if (promoteToPeer) {
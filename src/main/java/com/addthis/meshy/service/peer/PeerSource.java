@@ -31,8 +31,12 @@ public class PeerSource extends SourceHandler {
     private boolean receivedStateUuid = false;
 
     public PeerSource(MeshyServer master, String tempUuid) {
+        this(master, tempUuid, 0);
+    }
+
+    public PeerSource(MeshyServer master, String tempUuid, int stripe) {
         super(master, PeerTarget.class, tempUuid);
-        send(PeerService.encodeSelf(master));
+        send(PeerService.encodeSelf(master, stripe));
     }
 
     @Override
@@ -44,7 +48,7 @@ public class PeerSource extends SourceHandler {
         log.debug("{} decode from {}", this, state);
         if (!receivedStateUuid) {
             if (decodePrimaryPeer((MeshyServer) getChannelMaster(), state, Meshy.getInput(length, buffer))) {
-                send(PeerService.encodeExtraPeers((MeshyServer) getChannelMaster()));
+                send(PeerService.encodeExtraPeers((MeshyServer) getChannelMaster(), state));
                 sendComplete();
             } else {
                 sendComplete();
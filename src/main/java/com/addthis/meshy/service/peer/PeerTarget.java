@@ -33,8 +33,8 @@ public class PeerTarget extends TargetHandler {
             shouldPeer = decodePrimaryPeer(getChannelMaster(), getChannelState(), Meshy.getInput(length, buffer));
             if (shouldPeer) {
                 log.debug("{} encode to {}", this, getChannelState().getChannelRemoteAddress());
-                send(PeerService.encodeSelf(getChannelMaster()));
-                send(PeerService.encodeExtraPeers(getChannelMaster()));
+                send(PeerService.encodeSelf(getChannelMaster(), getChannelState().getStripe()));
+                send(PeerService.encodeExtraPeers(getChannelMaster(), getChannelState()));
             } else {
                 log.debug("writing peer cancel from {}", this);
                 send(new byte[] {0}); // send byte array with a single "0" byte for the empty string
@@ -56,4 +56,11 @@ public class PeerTarget extends TargetHandler {
             getChannelState().getChannel().close();
         }
     }
+
+    @Override
+    protected boolean recycle() {
+        shouldPeer = false;
+        receivedStateUuid = false;
+        return true;
+    }
 }
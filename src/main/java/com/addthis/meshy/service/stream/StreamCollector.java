@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy.service.stream;
+
+import javax.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import com.addthis.meshy.ChannelMaster;
+
+/**
+ * Reads a whole stream into memory without a reading thread. Data is collected (and more is requested) as it
+ * arrives; {@link #getFuture()} completes with the file contents at end of stream, or exceptionally on error.
+ */
+public final class StreamCollector extends StreamSource {
+
+    private final CompletableFuture<byte[]> future;
+    // null until the constructor has run; chunks that arrive earlier wait in the message queue
+    @Nullable private ByteArrayOutputStream out;
+
+    public StreamCollector(ChannelMaster master,
+                           String nodeUuid,
+                           String fileName,
+                           @Nullable Map<String, String> params,
+                           int bufferSize) throws IOException {
+        super(master, nodeUuid, fileName, params, bufferSize);
+        this.future = new CompletableFuture<>();
+        // eg. the session timed out before the stream finished
+        getCompletionFuture().whenComplete((ignored, ex) -> {
+            if (ex != null) {
+                future.completeExceptionally(ex);
+            }
+        });
+        synchronized (this) {
+            out = new ByteArrayOutputStream();
+            byte[] data;
+            while (!future.isDone() && ((data = getMessageQueue().poll()) != null)) {
+                collect(data);
+            }
+        }
+    }
+
+    public CompletableFuture<byte[]> getFuture() {
+        return future;
+    }
+
+    @Override
+    protected synchronized void deliver(byte[] data) throws InterruptedException {
+        if (out == null) {
+            super.deliver(data);
+        } else if (!future.isDone()) {
+            collect(data);
+        }
+    }
+
+    private void collect(byte[] data) {
+        performBufferAccounting(data);
+        try {
+            throwIfErrorSignal(data);
+        } catch (IOException ex) {
+            future.completeExceptionally(ex);
+            requestClose();
+            return;
+        }
+        if (isCloseSignal(data)) {
+            future.complete(out.toByteArray());
+            requestClose();
+        } else {
+            out.write(data, 0, data.length);
+        }
+    }
+}
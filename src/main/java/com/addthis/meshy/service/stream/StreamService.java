@@ -33,6 +33,7 @@ public class StreamService {
     protected static final Logger log = LoggerFactory.getLogger(StreamService.class);
 
     public static final String ERROR_EXCEED_OPEN = "Exceeded Max Open Files";
+    public static final String ERROR_EXCEED_BUDGET = "Exceeded Outbound Memory Budget";
     public static final String ERROR_CHANNEL_LOST = "Channel Connection Lost";
     public static final String ERROR_REMOTE_CHANNEL_LOST = "Remote Channel Connection Lost";
     public static final String ERROR_UNKNOWN = "no error message available";
@@ -44,6 +45,8 @@ public class StreamService {
     static final boolean LOG_DROP_MORE = Parameter.boolValue("meshy.log.dropmore", false);
     /* max time to wait for a VirtualFileInput read() call in sender threads */
     static final long READ_WAIT = Parameter.longValue("meshy.read.wait", 10);
+    /* max data bytes per frame; larger reads are split so one stream cannot monopolise a shared channel */
+    static final int MAX_FRAME = Parameter.intValue("meshy.stream.maxFrame", 64) * 1024;
 
     // internal constants
     static final int MODE_START = 0;
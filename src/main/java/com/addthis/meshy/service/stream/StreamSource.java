@@ -147,6 +147,11 @@ public class StreamSource extends SourceHandler {
         return new SourceInputStream(this);
     }
 
+    @Override
+    protected boolean isBudgeted() {
+        return true;
+    }
+
     @Override
     public void receive(ChannelState state, int length, ByteBuf buffer) throws Exception {
         assert messageQueue != null : "must override receive for proxy mode";
@@ -158,14 +163,14 @@ public class StreamSource extends SourceHandler {
                 byte[] data = LessBytes.readBytes(in, in.available());
                 recvBytes.addAndGet((long) data.length);
                 recvBytes.addAndGet(ChannelState.MESHY_BYTE_OVERHEAD + StreamService.STREAM_BYTE_OVERHEAD);
-                messageQueue.put(data);
+                deliver(data);
                 break;
             case StreamService.MODE_CLOSE:
-                messageQueue.put(StreamService.CLOSE_BYTES);
+                deliver(StreamService.CLOSE_BYTES);
                 break;
             case StreamService.MODE_FAIL:
                 err = LessBytes.toString(LessBytes.readFully(in));
-                messageQueue.put(StreamService.FAIL_BYTES);
+                deliver(StreamService.FAIL_BYTES);
                 break;
             default:
                 log.warn("source unknown mode: {}", mode);
@@ -179,7 +184,7 @@ public class StreamSource extends SourceHandler {
         sendComplete();
         // this fail signal should never be reached unless something is wrong
         assert messageQueue != null : "must override receiveComplete for proxy mode";
-        messageQueue.put(StreamService.FAIL_BYTES);
+        deliver(StreamService.FAIL_BYTES);
     }
 
     @Override
@@ -187,13 +192,21 @@ public class StreamSource extends SourceHandler {
         if (messageQueue != null) {
             try {
                 err = StreamService.ERROR_CHANNEL_LOST;
-                messageQueue.put(StreamService.FAIL_BYTES);
+                deliver(StreamService.FAIL_BYTES);
             } catch (InterruptedException ie) {
                 Throwables.propagate(ie); // unfortunate but maintains api for now
             }
         }
     }
 
+    /**
+     * hands a chunk of stream data, or a close / fail signal, to the reader. queued for
+     * {@link SourceInputStream} by default.
+     */
+    protected void deliver(byte[] data) throws InterruptedException {
+        messageQueue.put(data);
+    }
+
     public void requestClose() {
         if (closeSent.compareAndSet(false, true)) {
             log.trace("{} send close", this);
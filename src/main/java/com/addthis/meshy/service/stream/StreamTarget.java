@@ -29,6 +29,7 @@ import com.addthis.basis.util.Parameter;
 
 import com.addthis.meshy.ChannelState;
 import com.addthis.meshy.Meshy;
+import com.addthis.meshy.OutboundBudget;
 import com.addthis.meshy.SendWatcher;
 import com.addthis.meshy.TargetHandler;
 import com.addthis.meshy.VirtualFileInput;
@@ -115,6 +116,11 @@ public class StreamTarget extends TargetHandler implements Runnable, SendWatcher
         return out;
     }
 
+    @Override
+    public boolean isBulk() {
+        return true;
+    }
+
     @Override
     public void channelClosed() {
         if (remoteSource != null) {
@@ -167,6 +173,12 @@ public class StreamTarget extends TargetHandler implements Runnable, SendWatcher
                     sendFail(StreamService.ERROR_EXCEED_OPEN);
                     return;
                 }
+                // targets run on the event loop, so streams are refused rather than delayed
+                if (!OutboundBudget.global().tryAdmit()) {
+                    log.warn("outbound budget exhausted: rejecting {}", fileName);
+                    sendFail(StreamService.ERROR_EXCEED_BUDGET);
+                    return;
+                }
                 Map<String, String> params = null;
                 if (mode == StreamService.MODE_START_2) {
                     int count = LessBytes.readInt(in);
@@ -308,7 +320,9 @@ public class StreamTarget extends TargetHandler implements Runnable, SendWatcher
                 StreamService.sendWaiting.addAndGet(lastSent);
                 StreamService.readWaitTime.addAndGet((int) (System.currentTimeMillis() - mark));
             /* TODO this sucks, but works */
-                if (StreamService.sendWaiting.get() > MAX_SEND_BUFFER) {
+                // an unwritable channel is over its watermark or held back by traffic shaping
+                if ((StreamService.sendWaiting.get() > MAX_SEND_BUFFER)
+                    || !getChannelState().getChannel().isWritable()) {
                     log.trace("{} sleeping {} > {}", this, StreamService.sendWaiting, MAX_SEND_BUFFER);
                     Thread.sleep(10);
                     StreamService.sleeps.incrementAndGet();
@@ -356,10 +370,14 @@ public class StreamTarget extends TargetHandler implements Runnable, SendWatcher
                     log.trace("{} send add read={}", this, next.length);
                 }
                 StreamService.readBytes.addAndGet(next.length);
-                ByteBuf buf = getSendBuffer(next.length + StreamService.STREAM_BYTE_OVERHEAD);
-                buf.writeByte(StreamService.MODE_MORE);
-                buf.writeBytes(next);
-                int bytesSent = send(buf, sender);
+                int bytesSent = 0;
+                for (int off = 0; off < next.length; off += StreamService.MAX_FRAME) {
+                    int len = Math.min(next.length - off, StreamService.MAX_FRAME);
+                    ByteBuf buf = getSendBuffer(len + StreamService.STREAM_BYTE_OVERHEAD);
+                    buf.writeByte(StreamService.MODE_MORE);
+                    buf.writeBytes(next, off, len);
+                    bytesSent += send(buf, sender);
+                }
                 sendRemain.addAndGet(-bytesSent);
                 sentBytes += bytesSent;
                 if (log.isTraceEnabled()) {
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import java.io.File;
+
+import java.util.Comparator;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class TestDirectoryCache {
+
+    private static final LocalFileHandler[] NO_HANDLERS = new LocalFileHandler[0];
+
+    private Path root;
+
+    @Before
+    public void createTree() throws Exception {
+        root = Files.createTempDirectory("meshy-dirCache");
+        for (int i = 0; i < 10; i++) {
+            Path dir = Files.createDirectory(root.resolve("d" + i));
+            for (int j = 0; j < 10; j++) {
+                Files.createFile(dir.resolve("f" + j));
+            }
+            age(dir, 60);
+        }
+    }
+
+    @After
+    public void deleteTree() throws Exception {
+        Files.walk(root).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+    }
+
+    /* pretend a directory was last changed a while ago, so that its listing can be cached */
+    private static void age(Path dir, int minutes) throws Exception {
+        Files.setLastModifiedTime(dir, FileTime.fromMillis(System.currentTimeMillis() - (minutes * 60_000L)));
+    }
+
+    @Test
+    public void validatedByMtime() throws Exception {
+        DirectoryCache cache = new DirectoryCache(1024 * 1024, 0);
+        Path dir = root.resolve("d0");
+        assertEquals(10, cache.withChildren(dir, cache.get(dir, NO_HANDLERS)).children.length);
+        assertEquals(1, cache.misses());
+        assertEquals(10, cache.get(dir, NO_HANDLERS).children.length);
+        assertEquals(1, cache.hits());
+        assertTrue(cache.weight() > 0);
+        Files.createFile(dir.resolve("f10"));
+        age(dir, 30);
+        assertNull(cache.get(dir, NO_HANDLERS).children);
+        assertEquals(2, cache.misses());
+        assertEquals(11, cache.withChildren(dir, cache.get(dir, NO_HANDLERS)).children.length);
+        assertNull(cache.get(dir.resolve("f0"), NO_HANDLERS));
+    }
+
+    @Test
+    public void recentlyChangedNotCached() throws Exception {
+        DirectoryCache cache = new DirectoryCache(1024 * 1024, 0);
+        Path dir = root.resolve("d0");
+        age(dir, 0);
+        cache.withChildren(dir, cache.get(dir, NO_HANDLERS));
+        cache.get(dir, NO_HANDLERS);
+        assertEquals(0, cache.hits());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void boundedByWeight() throws Exception {
+        // room for a few listings of ten children
+        DirectoryCache cache = new DirectoryCache(4096, 0);
+        for (int i = 0; i < 10; i++) {
+            Path dir = root.resolve("d" + i);
+            cache.withChildren(dir, cache.get(dir, NO_HANDLERS));
+        }
+        assertTrue(cache.evictions() > 0);
+        assertTrue(cache.weight() <= 4096);
+        assertEquals(0, new DirectoryCache(0, 0).size());
+        assertNull(new DirectoryCache(0, 0).get(root, NO_HANDLERS));
+    }
+}
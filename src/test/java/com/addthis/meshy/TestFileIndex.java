@@ -0,0 +1,194 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import java.io.File;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class TestFileIndex {
+
+    private static final LocalFileHandler[] NO_HANDLERS = new LocalFileHandler[0];
+
+    private Path root;
+    private Path indexDir;
+
+    @Before
+    public void createTree() throws Exception {
+        root = Files.createTempDirectory("meshy-index-root");
+        indexDir = Files.createTempDirectory("meshy-index");
+        for (int i = 0; i < 5; i++) {
+            Path dir = Files.createDirectories(root.resolve("d" + i).resolve("sub"));
+            for (int j = 0; j < 5; j++) {
+                Files.write(dir.resolve("f" + j), new byte[j]);
+            }
+        }
+        System.setProperty("meshy.index.dir", indexDir.toString());
+    }
+
+    @After
+    public void deleteTree() throws Exception {
+        System.clearProperty("meshy.index.dir");
+        for (Path dir : new Path[]{root, indexDir}) {
+            Files.walk(dir).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /* waits for the background build (or a change) to show up in the index */
+    private static FileIndex.Entry[] await(FileIndex index, String dir, int length) throws Exception {
+        for (int i = 0; i < 200; i++) {
+            FileIndex.Entry[] children = index.children(dir);
+            if ((children != null) && (children.length == length)) {
+                return children;
+            }
+            Thread.sleep(50);
+        }
+        throw new AssertionError("index of " + dir + " never had " + length + " entries");
+    }
+
+    @Test
+    public void buildAndTrackChanges() throws Exception {
+        FileIndex index = FileIndex.open(root.toFile(), () -> NO_HANDLERS);
+        assertNotNull(index);
+        FileIndex.Entry[] top = await(index, "", 5);
+        assertEquals("d0", top[0].name);
+        assertTrue(top[0].isDir);
+        FileIndex.Entry[] files = await(index, "d3/sub", 5);
+        assertEquals(4, FileIndex.find(files, "f4").size);
+        assertNull(FileIndex.find(files, "f5"));
+        assertNull(index.children("missing"));
+        assertEquals("d1/sub", index.relative(root.resolve("d1/sub").toFile()));
+        assertNull(index.relative(indexDir.toFile()));
+
+        // changes are picked up from the watch service, including new sub directories
+        Files.write(root.resolve("d3/sub/f5"), new byte[10]);
+        Files.createDirectories(root.resolve("d5/sub"));
+        Files.write(root.resolve("d5/sub/new"), new byte[3]);
+        assertEquals(10, FileIndex.find(await(index, "d3/sub", 6), "f5").size);
+        await(index, "", 6);
+        assertEquals(3, FileIndex.find(await(index, "d5/sub", 1), "new").size);
+
+        // a modified file only has its entry updated
+        Files.write(root.resolve("d1/sub/f2"), new byte[7]);
+        for (int i = 0; (i < 200) && (FileIndex.find(index.children("d1/sub"), "f2").size != 7); i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(7, FileIndex.find(index.children("d1/sub"), "f2").size);
+        assertEquals(5, index.children("d1/sub").length);
+
+        LocalFileSystem vfs = new LocalFileSystem(root.toFile());
+        VirtualFileReference sub = vfs.getFileRoot().getFile("d5").getFile("sub");
+        assertEquals(3, sub.getFile("new").getLength());
+        assertNull(sub.getFile("old"));
+        // files the index has yet to hear of are looked up live
+        Files.write(root.resolve("d5/sub/newer"), new byte[4]);
+        assertEquals(4, sub.getFile("newer").getLength());
+        vfs.close();
+
+        // a closed index is left to the live file system
+        index.close();
+        assertNull(index.children("d3/sub"));
+        try (Stream<Path> indexFiles = Files.list(indexDir)) {
+            assertTrue(indexFiles.allMatch(file -> file.toString().endsWith(".idx")));
+        }
+    }
+
+    @Test
+    public void filesCreatedRightAfterMkdir() throws Exception {
+        FileIndex index = FileIndex.open(root.toFile(), () -> NO_HANDLERS);
+        assertNotNull(index);
+        await(index, "", 5);
+        // each new directory is listed and watched while its file is written, which must not slip between the two
+        for (int i = 0; i < 20; i++) {
+            Path dir = Files.createDirectory(root.resolve("n" + i));
+            Files.write(dir.resolve("f"), new byte[i]);
+        }
+        await(index, "", 25);
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, FileIndex.find(await(index, "n" + i, 1), "f").size);
+        }
+        index.close();
+    }
+
+    @Test
+    public void fallsBackToLiveListing() throws Exception {
+        // no index directory: disabled
+        System.clearProperty("meshy.index.dir");
+        assertNull(FileIndex.open(root.toFile(), () -> NO_HANDLERS));
+        System.setProperty("meshy.index.dir", indexDir.toString());
+
+        // directories with a handler are left to the live file system
+        LocalFileHandler handler = new LocalFileHandler() {
+            @Override
+            public boolean canHandleDirectory(File dir) {
+                return dir.getName().equals("d2");
+            }
+
+            @Override
+            public Iterator<VirtualFileReference> listFiles(File dir, PathMatcher filter) {
+                return null;
+            }
+
+            @Override
+            public VirtualFileReference getFile(File dir, String name) {
+                return null;
+            }
+        };
+        FileIndex index = FileIndex.open(root.toFile(), () -> new LocalFileHandler[]{handler});
+        await(index, "d1", 1);
+        assertNull(index.children("d2"));
+        assertNull(index.children("d2/sub"));
+
+        // an index left by an earlier run is only trusted until it is meshy.index.maxAge old
+        Path file;
+        try (Stream<Path> files = Files.list(indexDir)) {
+            file = files.findFirst().get();
+        }
+        FileIndex.Snapshot reloaded = FileIndex.Snapshot.map(file, false);
+        assertEquals(5, reloaded.children(reloaded.findDir("")).length);
+        assertFalse(reloaded.watched);
+
+        // records and names that span the segments a large index is mapped in
+        FileIndex.Snapshot segmented = FileIndex.Snapshot.map(file, false, 5);
+        assertEquals(reloaded.dirCount, segmented.dirCount);
+        for (String dir : new String[]{"", "d1", "d3/sub", "d4/sub"}) {
+            FileIndex.Entry[] expected = reloaded.children(reloaded.findDir(dir));
+            FileIndex.Entry[] actual = segmented.children(segmented.findDir(dir));
+            assertEquals(expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i].name, actual[i].name);
+                assertEquals(expected[i].size, actual[i].size);
+                assertEquals(expected[i].mtime, actual[i].mtime);
+            }
+        }
+        index.close();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.CorruptedFrameException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+
+public class TestFrameCompressor {
+
+    @Test
+    public void roundTrip() {
+        FrameCompressor compressor = new FrameCompressor();
+        compressor.enable();
+        byte[] data = new byte[4096];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 7);
+        }
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeInt(MeshyConstants.KEY_RESPONSE).writeInt(1).writeInt(data.length).writeBytes(data);
+        ByteBuf compressed = compressor.compress(frame, ByteBufAllocator.DEFAULT);
+        assertEquals(MeshyConstants.KEY_RESPONSE | WireFormat.TYPE_COMPRESSED, compressed.readInt());
+        assertEquals(1, compressed.readInt());
+        assertEquals(compressed.readableBytes() - 4, compressed.readInt());
+        ByteBuf inflated = compressor.inflate(compressed, ByteBufAllocator.DEFAULT);
+        assertArrayEquals(data, Meshy.getBytes(inflated.readableBytes(), inflated));
+        compressed.release();
+        inflated.release();
+    }
+
+    /** a small frame claiming a huge inflated length must not get that much allocated for it */
+    @Test
+    public void oversizedInflate() {
+        ByteBuf frame = Unpooled.buffer();
+        frame.writeInt(Integer.MAX_VALUE).writeZero(16);
+        try {
+            new FrameCompressor().inflate(frame, ByteBufAllocator.DEFAULT);
+            fail("inflated a frame claiming " + Integer.MAX_VALUE + " bytes");
+        } catch (CorruptedFrameException expected) {
+            assertEquals(16, frame.readableBytes());
+        }
+        frame.release();
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class TestFrameDecoder extends TestMesh {
+
+    private static final int FRAMES = 5000;
+    private static final int MAX_READ = 16384;
+
+    @Test
+    public void splitReads() throws Exception {
+        List<byte[]> sent = new ArrayList<>();
+        ByteBuf wire = frames(new Random(1), sent);
+        List<byte[]> received = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder((type, session, length, frame) -> {
+            assertEquals(length, frame.readableBytes());
+            assertEquals(received.size(), session);
+            received.add(Meshy.getBytes(length, frame));
+        });
+        Random reads = new Random(2);
+        while (wire.isReadable()) {
+            // include single byte reads so headers get split as well
+            int read = Math.min(wire.readableBytes(), reads.nextBoolean() ? 1 + reads.nextInt(16) : reads.nextInt(MAX_READ));
+            decoder.decode(wire.readSlice(read).retain());
+        }
+        wire.release();
+        assertEquals(0, decoder.pendingBytes());
+        assertEquals(sent.size(), received.size());
+        for (int i = 0; i < sent.size(); i++) {
+            assertArrayEquals(sent.get(i), received.get(i));
+        }
+    }
+
+    @Test
+    public void retainedFrames() throws Exception {
+        List<byte[]> sent = new ArrayList<>();
+        ByteBuf wire = frames(new Random(5), sent);
+        List<ByteBuf> retained = new ArrayList<>();
+        // frames kept past receiveFrame (eg. relayed by a proxy) must survive later reads
+        FrameDecoder decoder = new FrameDecoder((type, session, length, frame) -> retained.add(frame.retain()));
+        Random reads = new Random(6);
+        while (wire.isReadable()) {
+            int read = Math.min(wire.readableBytes(), 1 + reads.nextInt(MAX_READ));
+            decoder.decode(wire.readSlice(read).retain());
+        }
+        wire.release();
+        assertEquals(sent.size(), retained.size());
+        for (int i = 0; i < sent.size(); i++) {
+            ByteBuf frame = retained.get(i);
+            assertArrayEquals(sent.get(i), Meshy.getBytes(frame.readableBytes(), frame));
+            frame.release();
+        }
+    }
+
+    @Test
+    public void mixedVersions() throws Exception {
+        List<byte[]> sent = new ArrayList<>();
+        List<Integer> types = new ArrayList<>();
+        Random random = new Random(7);
+        ByteBuf wire = Unpooled.buffer();
+        int lastSession = 0;
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] data = new byte[random.nextInt(64)];
+            random.nextBytes(data);
+            int type = (i % 3 == 0) ? MeshyConstants.KEY_RESPONSE : ((i % 3 == 1) ? MeshyConstants.KEY_EXISTING : i);
+            sent.add(data);
+            types.add(type);
+            if (random.nextBoolean()) {
+                wire.writeInt(type);
+                wire.writeInt(i / 2);
+                wire.writeInt(data.length);
+            } else {
+                WireFormat.writeV2Header(wire, type, i / 2, data.length, lastSession);
+                lastSession = i / 2;
+            }
+            wire.writeBytes(data);
+        }
+        List<byte[]> received = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder((type, session, length, frame) -> {
+            assertEquals((int) types.get(received.size()), type);
+            assertEquals(received.size() / 2, session);
+            received.add(Meshy.getBytes(length, frame));
+        });
+        Random reads = new Random(8);
+        while (wire.isReadable()) {
+            int read = Math.min(wire.readableBytes(), 1 + reads.nextInt(16));
+            decoder.decode(wire.readSlice(read).retain());
+        }
+        wire.release();
+        assertEquals(0, decoder.pendingBytes());
+        assertEquals(sent.size(), received.size());
+        assertTrue(decoder.v2Frames() > 0);
+        for (int i = 0; i < sent.size(); i++) {
+            assertArrayEquals(sent.get(i), received.get(i));
+        }
+    }
+
+    /**
+     * Header bytes of a find-like workload in both wire versions: runs of small results per session, interleaved
+     * with window grants, for sessions numbered as on a long running node.
+     */
+    @Test
+    public void headerBytesPerFrame() throws Exception {
+        Random random = new Random(9);
+        ByteBuf v1 = Unpooled.buffer();
+        ByteBuf v2 = Unpooled.buffer();
+        int lastSession = 0;
+        int payload = 0;
+        for (int i = 0; i < FRAMES; ) {
+            int session = 1_000_000 + random.nextInt(8);
+            int run = 1 + random.nextInt(20);
+            for (int j = 0; (j < run) && (i < FRAMES); j++, i++) {
+                int length = (j == 0) ? 4 : (40 + random.nextInt(60));
+                payload += length;
+                v1.writeInt(MeshyConstants.KEY_RESPONSE).writeInt(session).writeInt(length);
+                WireFormat.writeV2Header(v2, MeshyConstants.KEY_RESPONSE, session, length, lastSession);
+                lastSession = session;
+            }
+        }
+        log.info("payload {} bytes, v1 headers {} bytes, v2 headers {} bytes", num.format(payload),
+                 num.format(v1.readableBytes()), num.format(v2.readableBytes()));
+        assertTrue(v2.readableBytes() * 3 < v1.readableBytes());
+        v1.release();
+        v2.release();
+    }
+
+    /**
+     * Compares bytes copied per frame by the previous private buffer strategy (copy every read into a
+     * buffer then discardReadBytes) against the cumulating decoder, for a mixed control/bulk workload.
+     */
+    @Test
+    public void copiedBytesPerFrame() throws Exception {
+        ByteBuf wire = frames(new Random(3), new ArrayList<>());
+        int wireBytes = wire.readableBytes();
+        Random reads = new Random(4);
+        List<Integer> readSizes = new ArrayList<>();
+        for (int left = wireBytes; left > 0; ) {
+            int read = Math.min(left, 1 + reads.nextInt(MAX_READ));
+            readSizes.add(read);
+            left -= read;
+        }
+
+        long mark = System.nanoTime();
+        LegacyDecoder legacy = new LegacyDecoder();
+        for (int read : readSizes) {
+            legacy.decode(wire.slice(wire.readerIndex(), read));
+            wire.skipBytes(read);
+        }
+        long legacyTime = System.nanoTime() - mark;
+        legacy.buffer.release();
+
+        wire.readerIndex(0);
+        mark = System.nanoTime();
+        long[] consumed = new long[1];
+        FrameDecoder decoder = new FrameDecoder((type, session, length, frame) -> {
+            frame.skipBytes(length);
+            consumed[0] += length;
+        });
+        for (int read : readSizes) {
+            decoder.decode(wire.readSlice(read).retain());
+        }
+        long decoderTime = System.nanoTime() - mark;
+        wire.release();
+
+        assertEquals(FRAMES, legacy.frames);
+        assertEquals(FRAMES, decoder.framesDecoded());
+        log.info("{} frames, {} bytes in {} reads", FRAMES, num.format(wireBytes), readSizes.size());
+        log.info("legacy  copied {} bytes ({} per frame) in {} ms", num.format(legacy.copied),
+                 legacy.copied / FRAMES, legacyTime / 1000000);
+        log.info("decoder copied {} bytes ({} per frame) in {} ms", num.format(decoder.bytesCopied()),
+                 decoder.bytesCopied() / FRAMES, decoderTime / 1000000);
+        assertTrue(legacy.copied >= wireBytes);
+        assertTrue(decoder.bytesCopied() < legacy.copied);
+    }
+
+    /** mix of small control frames and stream sized data frames. session id is the frame index */
+    private static ByteBuf frames(Random random, List<byte[]> sent) {
+        ByteBuf wire = Unpooled.buffer();
+        for (int i = 0; i < FRAMES; i++) {
+            byte[] data = new byte[(i % 10 == 0) ? random.nextInt(65536) : random.nextInt(64)];
+            random.nextBytes(data);
+            sent.add(data);
+            wire.writeInt(1);
+            wire.writeInt(i);
+            wire.writeInt(data.length);
+            wire.writeBytes(data);
+        }
+        return wire;
+    }
+
+    /** the frame parsing strategy ChannelState used before FrameDecoder, instrumented to count copies */
+    private static class LegacyDecoder {
+
+        private final ByteBuf buffer = Unpooled.buffer(16384);
+        private long copied;
+        private int frames;
+        private int length = -1;
+
+        void decode(ByteBuf in) {
+            copied += in.readableBytes();
+            buffer.writeBytes(in);
+            while (true) {
+                if (length < 0) {
+                    if (buffer.readableBytes() < FrameDecoder.HEADER_BYTES) {
+                        break;
+                    }
+                    buffer.skipBytes(8);
+                    length = buffer.readInt();
+                }
+                if (buffer.readableBytes() < length) {
+                    break;
+                }
+                buffer.skipBytes(length);
+                length = -1;
+                frames += 1;
+            }
+            if (buffer.readerIndex() > 0) {
+                copied += buffer.readableBytes();
+            }
+            buffer.discardReadBytes();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+
+public class TestGlobMatchers {
+
+    private static final String[] GLOBS = {
+            "*", "a*", "*.gz", "a*.gz", "ab*ba", "{a,b,c}", "{a.gz,,xyz}", "a?c", "*.{gz,bz2}", "[ab]*", "a,b*"
+    };
+
+    private static final String[] NAMES = {
+            "a", "b", "c", "abc", "aba", "abba", "ab", "a.gz", "b.gz", "x.bz2", ".gz", "xyz", "a,b", "a,bc", ".hidden"
+    };
+
+    @Test
+    public void sameAsJdkGlobs() {
+        for (String glob : GLOBS) {
+            PathMatcher jdk = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            GlobMatchers.NameMatcher matcher = GlobMatchers.get(glob);
+            for (String name : NAMES) {
+                boolean expected = jdk.matches(Paths.get(name));
+                assertEquals(glob + " ~ " + name, expected, matcher.matches(name));
+                assertEquals(glob + " ~ " + name, expected, matcher.matches(Paths.get("dir", name)));
+                assertEquals(glob + " ~ " + name, expected, GlobMatchers.matches(jdk, name));
+            }
+        }
+    }
+
+    @Test
+    public void cached() {
+        assertSame(GlobMatchers.get("*.gz"), GlobMatchers.get("*.gz"));
+    }
+}
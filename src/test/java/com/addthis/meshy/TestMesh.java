@@ -16,6 +16,8 @@ package com.addthis.meshy;
 import java.io.File;
 import java.io.IOException;
 
+import java.net.InetSocketAddress;
+
 import java.util.LinkedList;
 import java.util.Map;
 
@@ -29,6 +31,8 @@ import org.junit.After;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.netty.channel.unix.DomainSocketAddress;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
@@ -64,6 +68,18 @@ public class TestMesh {
         return client;
     }
 
+    public MeshyClient getClient(MeshyServer server, MeshyEventLoopGroup eventLoops) throws IOException {
+        MeshyClient client = new MeshyClient(eventLoops, new InetSocketAddress("localhost", server.getLocalPort()));
+        resources.add(client);
+        return client;
+    }
+
+    public MeshyClient getClient(DomainSocketAddress address) throws IOException {
+        MeshyClient client = new MeshyClient(address);
+        resources.add(client);
+        return client;
+    }
+
     public MeshyServer getServer() throws IOException {
         return getServer(".");
     }
@@ -76,6 +92,12 @@ public class TestMesh {
         return getServer(port, ".");
     }
 
+    public MeshyServer getServer(String root, MeshyEventLoopGroup eventLoops) throws IOException {
+        MeshyServer server = new MeshyServer(0, new File(root), null, new MeshyServerGroup(), eventLoops);
+        resources.add(server);
+        return server;
+    }
+
     public MeshyServer getServer(int port, String root) throws IOException {
         MeshyServer server = new MeshyServer(port, new File(root));
         resources.add(server);
@@ -0,0 +1,66 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TestOutboundBudget {
+
+    @Test
+    public void refusesWhileExhausted() {
+        OutboundBudget budget = new OutboundBudget(1000, 0);
+        budget.acquire(600);
+        assertTrue(budget.tryAdmit());
+        budget.acquire(600);
+        assertEquals(1200, budget.queuedBytes());
+        assertFalse(budget.tryAdmit());
+        assertFalse(budget.awaitAdmission());
+        assertEquals(2, budget.refusals());
+        budget.release(600);
+        assertTrue(budget.tryAdmit());
+        assertEquals(2, budget.refusals());
+    }
+
+    @Test
+    public void delaysUntilDrained() throws Exception {
+        OutboundBudget budget = new OutboundBudget(1000, 10_000);
+        budget.acquire(2000);
+        Thread drain = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {
+            }
+            budget.release(2000);
+        });
+        long start = System.currentTimeMillis();
+        drain.start();
+        assertTrue(budget.awaitAdmission());
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(0, budget.refusals());
+        drain.join();
+    }
+
+    @Test
+    public void unlimited() {
+        OutboundBudget budget = new OutboundBudget(OutboundBudget.configuredLimit(-1), 0);
+        budget.acquire(Integer.MAX_VALUE);
+        assertTrue(budget.tryAdmit());
+        assertEquals(0, budget.limit());
+    }
+}
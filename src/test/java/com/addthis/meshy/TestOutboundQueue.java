@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class TestOutboundQueue {
+
+    @Test
+    public void controlBeforeBulk() {
+        OutboundQueue<TestFrame> queue = new OutboundQueue<>();
+        queue.add(new TestFrame(1, true, 0));
+        queue.add(new TestFrame(1, true, 1));
+        queue.add(new TestFrame(2, false, 0));
+        assertEquals(3, queue.size());
+        assertEquals(2, queue.poll(true).session);
+        // bulk held back while the channel is backed up
+        assertNull(queue.poll(false));
+        assertEquals(0, queue.poll(true).seq);
+        assertEquals(1, queue.poll(true).seq);
+        assertNull(queue.poll(true));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void sessionsTakeTurns() {
+        OutboundQueue<TestFrame> queue = new OutboundQueue<>();
+        for (int i = 0; i < 100; i++) {
+            queue.add(new TestFrame(1, true, i));
+        }
+        queue.add(new TestFrame(2, true, 0));
+        queue.add(new TestFrame(2, true, 1));
+        int[] order = new int[6];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = queue.poll(true).session;
+        }
+        assertEquals("[1, 2, 1, 2, 1, 1]", Arrays.toString(order));
+        // frames of one session stay in order
+        for (int i = 4; i < 100; i++) {
+            assertEquals(i, queue.poll(true).seq);
+        }
+        assertTrue(queue.isEmpty());
+    }
+
+    private static final class TestFrame implements OutboundQueue.Frame {
+
+        private final int session;
+        private final boolean bulk;
+        private final int seq;
+
+        TestFrame(int session, boolean bulk, int seq) {
+            this.session = session;
+            this.bulk = bulk;
+            this.seq = seq;
+        }
+
+        @Override public int session() {
+            return session;
+        }
+
+        @Override public boolean isBulk() {
+            return bulk;
+        }
+    }
+}
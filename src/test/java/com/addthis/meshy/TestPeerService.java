@@ -15,17 +15,27 @@ package com.addthis.meshy;
 
 import java.net.InetSocketAddress;
 
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import com.addthis.basis.util.LessBytes;
+
+import com.addthis.meshy.service.file.FileSource;
+import com.addthis.meshy.service.file.FileTarget;
 import com.addthis.meshy.service.host.HostSource;
+import com.addthis.meshy.service.host.HostTarget;
+import com.addthis.meshy.service.stream.StreamSource;
 
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 
@@ -119,4 +129,95 @@ public class TestPeerService extends TestMesh {
             }
         }
     }
+
+    @Test
+    public void stripedPeers() throws Exception {
+        MeshyServer server1;
+        MeshyServer server2;
+        System.setProperty("meshy.peer.stripes", "3");
+        try {
+            server1 = getServer("src/test/files/a");
+            server2 = getServer("src/test/files/b");
+        } finally {
+            System.clearProperty("meshy.peer.stripes");
+        }
+        server1.connectToPeer(server2.getUUID(), server2.getLocalAddress());
+        waitQuiescent();
+        assertEquals(1, server1.getServerPeerCount());
+        assertEquals(1, server2.getServerPeerCount());
+        assertEquals(3, server1.getChannelCount());
+        assertEquals(3, server2.getChannelCount());
+        // the stripes are one logical peer, and sessions are spread across all of them
+        Set<Integer> stripes = new HashSet<>();
+        for (int session = 0; session < 3; session++) {
+            Collection<ChannelState> channels = server1.getChannels(server2.getUUID(), session);
+            assertEquals(1, channels.size());
+            stripes.add(channels.iterator().next().getStripe());
+        }
+        assertEquals(3, stripes.size());
+        assertEquals(1, server1.getChannels(MeshyConstants.LINK_NAMED).size());
+
+        Meshy client = getClient(server1);
+        for (int i = 0; i < 6; i++) {
+            FileSource files = new FileSource(client, new String[]{"*.xml"});
+            files.waitComplete();
+            assertEquals(4, files.getFileList().size());
+            StreamSource stream = new StreamSource(client, server2.getUUID(), "/ghi.xml", 0);
+            assertEquals(4, LessBytes.readFully(stream.getInputStream()).length);
+            stream.waitComplete();
+        }
+        client.close();
+
+        // stripes go down with their primary
+        server2.close();
+        waitQuiescent();
+        assertEquals(0, server1.getServerPeerCount());
+        assertEquals(0, server1.getChannelCount());
+    }
+
+    @Test
+    public void pooledTargets() throws Exception {
+        MeshyServer server = getServer();
+        Meshy client = getClient(server);
+        HandlerPool<?> pool = Meshy.idPoolMap.get(Meshy.handlerIdMap.get(HostTarget.class));
+        long hits = pool.hits();
+        for (int i = 0; i < 5; i++) {
+            // targets are released just after their reply is sent; wait for the previous one before asking again
+            if (i > 0) {
+                for (int wait = 0; (pool.idle() == 0) && (wait < 200); wait++) {
+                    Thread.sleep(50);
+                }
+            }
+            HostSource hosts = new HostSource(client);
+            hosts.sendRequest();
+            hosts.waitComplete();
+        }
+        assertTrue(pool.hits() >= (hits + 4));
+        // handlers that are never recycled are made by their factory, without a pool
+        assertNull(Meshy.idPoolMap.get(Meshy.handlerIdMap.get(FileTarget.class)));
+    }
+
+    @Test
+    public void wireVersion() throws Exception {
+        MeshyServer server1 = getServer("src/test/files/a");
+        MeshyServer server2 = getServer("src/test/files/b");
+        server1.connectToPeer(server2.getUUID(), server2.getLocalAddress());
+        waitQuiescent();
+        Meshy client = getClient(server1);
+        for (int i = 0; i < 4; i++) {
+            FileSource files = new FileSource(client, new String[]{"*.xml"});
+            files.waitComplete();
+            assertEquals(4, files.getFileList().size());
+        }
+        waitQuiescent();
+        long saved = 0;
+        for (Meshy meshy : new Meshy[]{server1, server2, client}) {
+            for (ChannelState state : meshy.connectedChannels.all()) {
+                assertEquals(WireFormat.V2, state.wireVersion());
+                saved += state.headerBytesSaved();
+            }
+        }
+        log.info("v2 headers saved {} bytes", saved);
+        assertTrue(saved > 0);
+    }
 }
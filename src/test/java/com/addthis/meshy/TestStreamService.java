@@ -18,9 +18,13 @@ import java.io.IOException;
 
 import java.net.InetSocketAddress;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.CRC32;
 
@@ -29,13 +33,18 @@ import java.security.NoSuchAlgorithmException;
 
 import com.addthis.basis.util.LessBytes;
 
+import com.addthis.meshy.service.file.FileReference;
 import com.addthis.meshy.service.stream.SourceInputStream;
 import com.addthis.meshy.service.stream.StreamSource;
 
+import io.prometheus.client.CollectorRegistry;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -172,6 +181,171 @@ public class TestStreamService extends TestMesh {
     }
 
 
+    /**
+     * many concurrent list + read requests driven from a single thread
+     */
+    @Test
+    public void testAsyncClient() throws Exception {
+        final int requests = 50;
+        MeshyServer server = getServer("src/test/files");
+        MeshyClient client = getClient(server);
+        List<CompletableFuture<byte[]>> reads = new ArrayList<>(requests);
+        List<CompletableFuture<Collection<FileReference>>> lists = new ArrayList<>(requests);
+        for (int i = 0; i < requests; i++) {
+            lists.add(client.listFilesAsync(new String[]{"*/hosts"}));
+            reads.add(client.readFileAsync(server.getUUID(), "c/hosts", null));
+        }
+        CompletableFuture.allOf(reads.toArray(new CompletableFuture[requests])).get(60, TimeUnit.SECONDS);
+        CompletableFuture.allOf(lists.toArray(new CompletableFuture[requests])).get(60, TimeUnit.SECONDS);
+        for (int i = 0; i < requests; i++) {
+            assertEquals(MD5HOSTS, md5(reads.get(i).get()));
+            assertEquals(2, lists.get(i).get().size());
+        }
+        assertTrue(client.readFileAsync(server.getUUID(), "c/missing", null)
+                         .handle((data, ex) -> ex != null).get(60, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSlowStreamCompletes() throws Exception {
+        MeshyServer server = getServer("src/test/files");
+        MeshyClient client = getClient(server);
+        StreamSource stream = new StreamSource(client, server.getUUID(), "/c/hosts", 4096);
+        // the complete timeout only expires for sessions that stop making progress
+        stream.setCompleteTimeout(1);
+        SourceInputStream in = stream.getInputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        long start = System.currentTimeMillis();
+        int read;
+        while ((read = in.read(buf)) >= 0) {
+            out.write(buf, 0, read);
+            Thread.sleep(20);
+        }
+        assertTrue(System.currentTimeMillis() - start > 2000);
+        stream.getCompletionFuture().get(10, TimeUnit.SECONDS);
+        assertEquals(MD5HOSTS, md5(out.toByteArray()));
+    }
+
+    @Test
+    public void testCompressedStream() throws Exception {
+        MeshyServer server1;
+        MeshyServer server2;
+        System.setProperty("meshy.compress", "true");
+        try {
+            server1 = getServer("src/test/files");
+            server2 = getServer("src/test/files");
+        } finally {
+            System.clearProperty("meshy.compress");
+        }
+        server1.connectToPeer(server2.getUUID(), server2.getLocalAddress());
+        waitQuiescent();
+        // only the servers compress: server2 -> server1 compressed, server1 -> client compressed, requests raw
+        MeshyClient client = getClient(server1);
+        for (int i = 0; i < 3; i++) {
+            StreamSource stream = new StreamSource(client, server2.getUUID(), "/c/hosts", 1024 * 10);
+            byte[] data = LessBytes.readFully(stream.getInputStream());
+            stream.waitComplete();
+            assertEquals(593366, data.length);
+            assertEquals(MD5HOSTS, md5(data));
+        }
+        for (MeshyServer server : new MeshyServer[]{server1, server2}) {
+            boolean streamed = false;
+            for (ChannelState state : server.connectedChannels.all()) {
+                FrameCompressor compressor = state.compressor();
+                log.info("{} -> {} raw {} compressed {} ratio {} in {} ms", server.getUUID(), state.getName(),
+                         num.format(compressor.rawBytes()), num.format(compressor.compressedBytes()),
+                         compressor.ratio(), TimeUnit.NANOSECONDS.toMillis(compressor.compressNanos()));
+                assertTrue(compressor.isEnabled());
+                streamed |= (compressor.rawBytes() >= (3 * 593366)) && (compressor.ratio() < 0.75);
+            }
+            assertTrue(streamed);
+        }
+        for (ChannelState state : client.connectedChannels.all()) {
+            assertFalse(state.compressor().isEnabled());
+        }
+    }
+
+    @Test
+    public void testTrafficCounters() throws Exception {
+        MeshyServer server1 = getServer("src/test/files");
+        MeshyServer server2 = getServer("src/test/files");
+        server1.connectToPeer(server2.getUUID(), server2.getLocalAddress());
+        waitQuiescent();
+        MeshyClient client = getClient(server1);
+        for (int i = 0; i < 3; i++) {
+            StreamSource stream = new StreamSource(client, server2.getUUID(), "/c/hosts", 1024 * 10);
+            assertEquals(593366, LessBytes.readFully(stream.getInputStream()).length);
+            stream.waitComplete();
+        }
+        waitQuiescent();
+        long streamed = 3 * 593366L;
+        for (ChannelState state : client.connectedChannels.all()) {
+            log.info("client traffic {}", state.traffic());
+            assertTrue(state.traffic().bytesIn() >= streamed);
+            assertEquals(3, state.traffic().sessions());
+        }
+        for (ChannelState state : server2.connectedChannels.all()) {
+            if (server1.getUUID().equals(state.getName())) {
+                assertTrue(state.traffic().bytesOut() >= streamed);
+            }
+        }
+        assertTrue(TrafficCounters.byHandler().get("StreamSource").bytesIn() >= streamed);
+        assertTrue(TrafficCounters.byHandler().get("StreamTarget").bytesOut() >= streamed);
+
+        CollectorRegistry registry = new CollectorRegistry();
+        new TrafficCollector().register(registry);
+        Double peerOut = registry.getSampleValue("meshy_peer_bytes_total", new String[]{"mesh", "peer", "direction"},
+                                                 new String[]{server2.getUUID(), server1.getUUID(), "out"});
+        assertNotNull(peerOut);
+        assertTrue(peerOut >= streamed);
+        Double clientSessions = registry.getSampleValue("meshy_peer_sessions_total", new String[]{"mesh", "peer"},
+                                                        new String[]{server1.getUUID(), TrafficCollector.CLIENT_PEER});
+        assertNotNull(clientSessions);
+        assertTrue(clientSessions >= 3);
+    }
+
+    @Test
+    public void testTrafficShaping() throws Exception {
+        MeshyServer server1 = getServer("src/test/files");
+        MeshyServer server2 = getServer("src/test/files");
+        server1.connectToPeer(server2.getUUID(), server2.getLocalAddress());
+        waitQuiescent();
+        MeshyClient client = getClient(server1);
+        // shape only what server1 writes to clients, at 200 KB/s
+        server1.getTrafficShaping().setClientLimits(200 * 1024, 0);
+        long start = System.nanoTime();
+        StreamSource stream = new StreamSource(client, server1.getUUID(), "/c/hosts", 1024 * 10);
+        byte[] data = LessBytes.readFully(stream.getInputStream());
+        stream.waitComplete();
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info("shaped stream of {} bytes in {} ms", data.length, elapsed);
+        assertEquals(MD5HOSTS, md5(data));
+        assertTrue(elapsed >= 1500);
+        for (ChannelState state : server1.connectedChannels.all()) {
+            assertEquals(!state.isNamedPeer(), TrafficShaping.shaper(state.getChannel()) != null);
+        }
+        // lifted at runtime
+        server1.getTrafficShaping().setClientLimits(0, 0);
+        waitQuiescent();
+        start = System.nanoTime();
+        stream = new StreamSource(client, server1.getUUID(), "/c/hosts", 1024 * 10);
+        assertEquals(MD5HOSTS, md5(LessBytes.readFully(stream.getInputStream())));
+        stream.waitComplete();
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < elapsed);
+
+        // and through the message file system, which refuses limits that are not KB/s without changing any
+        String shaping = "/meshy/" + server1.getUUID() + "/shaping";
+        for (String invalid : new String[]{"fast", "-1", "99999999999999999"}) {
+            String reply = new String(LessBytes.readFully(client.readFile(
+                    server1.getUUID(), shaping, Collections.singletonMap("clientWrite", invalid))), UTF_8);
+            assertTrue(reply, reply.startsWith("400 "));
+        }
+        assertEquals(0, server1.getTrafficShaping().getClientWriteLimit());
+        LessBytes.readFully(client.readFile(server1.getUUID(), shaping,
+                                            Collections.singletonMap("clientWrite", "100")));
+        assertEquals(100 * 1024, server1.getTrafficShaping().getClientWriteLimit());
+    }
+
     @Ignore @Test
     public void testPeerLocalStream() throws Exception {
         localStreamTest(false, "read sync");
@@ -0,0 +1,250 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.nio.file.Files;
+
+import java.util.concurrent.TimeUnit;
+
+import com.addthis.basis.util.LessBytes;
+
+import com.addthis.meshy.service.peer.PeerService;
+import com.addthis.meshy.service.stream.StreamSource;
+
+import com.google.common.collect.Iterators;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class TestTransport extends TestMesh {
+
+    private static final int READS = 40;
+
+    @After @Override
+    public void cleanup() {
+        super.cleanup();
+        System.clearProperty("meshy.transport");
+        System.clearProperty("meshy.transport.local");
+        System.clearProperty("meshy.unix.path");
+    }
+
+    @Test
+    public void unavailableFallsBack() {
+        assertEquals(MeshyTransport.NIO, MeshyTransport.forName("bogus"));
+        assertEquals(Epoll.isAvailable() ? MeshyTransport.EPOLL : MeshyTransport.NIO,
+                     MeshyTransport.forName("epoll"));
+    }
+
+    /**
+     * stream throughput of the same file through a proxying server over each transport
+     */
+    @Test
+    public void throughput() throws Exception {
+        Assume.assumeTrue(Epoll.isAvailable());
+        long nio = throughput(MeshyTransport.NIO);
+        long epoll = throughput(MeshyTransport.EPOLL);
+        log.info("stream throughput nio={} KB/s epoll={} KB/s", num.format(nio), num.format(epoll));
+    }
+
+    /**
+     * stream throughput through a proxying server in this vm over tcp loopback and over the in-vm transport
+     */
+    @Test
+    public void localThroughput() throws Exception {
+        long tcp = throughput(MeshyTransport.NIO);
+        System.clearProperty("meshy.transport.local");
+        long local = throughput(MeshyTransport.NIO, true);
+        log.info("stream throughput tcp={} KB/s local={} KB/s", num.format(tcp), num.format(local));
+    }
+
+    /**
+     * stream throughput from a server to a client on this host over tcp loopback and over a unix domain socket
+     */
+    @Test
+    public void unixSocketThroughput() throws Exception {
+        Assume.assumeTrue(Epoll.isAvailable());
+        File dir = Files.createTempDirectory("meshy-unix").toFile();
+        System.setProperty("meshy.unix.path", new File(dir, "meshy-{port}.sock").getPath());
+        System.setProperty("meshy.transport.local", "false");
+        MeshyServer server = getServer("src/test/files");
+        DomainSocketAddress address = server.getUnixSocketAddress();
+        assertNotNull(address);
+        assertTrue(new File(address.path()).exists());
+        MeshyClient unix = getClient(address);
+        assertEquals(MeshyTransport.EPOLL, unix.getTransport());
+        for (ChannelState state : unix.connectedChannels.all()) {
+            assertTrue(state.getChannel() instanceof EpollDomainSocketChannel);
+        }
+        long tcp = read(getClient(server), server, "tcp");
+        long domain = read(unix, server, "unix");
+        log.info("stream throughput tcp={} KB/s unix={} KB/s", num.format(tcp), num.format(domain));
+        server.close();
+        assertFalse(new File(address.path()).exists());
+        assertTrue(dir.delete());
+    }
+
+    /**
+     * a server replaces a socket file left by one that is gone, but not the socket of one that is still listening
+     */
+    @Test
+    public void unixSocketInUse() throws Exception {
+        Assume.assumeTrue(Epoll.isAvailable());
+        File dir = Files.createTempDirectory("meshy-unix").toFile();
+        File socket = new File(dir, "meshy.sock");
+        assertTrue(socket.createNewFile());
+        System.setProperty("meshy.unix.path", socket.getPath());
+        MeshyServer server = getServer("src/test/files");
+        try {
+            getServer("src/test/files");
+            fail("took over the unix socket of a live server");
+        } catch (BindException expected) {
+            // the first server keeps it
+        }
+        assertTrue(socket.exists());
+        MeshyClient client = getClient(server.getUnixSocketAddress());
+        assertEquals(1, client.connectedChannels.size());
+        client.close();
+        server.close();
+        assertFalse(socket.exists());
+        assertTrue(dir.delete());
+    }
+
+    /**
+     * local channels report the address of the server they connect to, and peers in this vm are not gossiped
+     * to other hosts
+     */
+    @Test
+    public void localChannelAddresses() throws Exception {
+        MeshyServer server = getServer("src/test/files");
+        MeshyServer proxy = getServer("src/test/files");
+        proxy.connectToPeer(server.getUUID(), server.getLocalAddress());
+        waitQuiescent();
+        // peering picks which of them connects
+        int connecting = 0;
+        for (MeshyServer meshy : new MeshyServer[]{server, proxy}) {
+            MeshyServer other = (meshy == server) ? proxy : server;
+            for (ChannelState state : meshy.connectedChannels.all()) {
+                assertTrue(state.getChannel() instanceof LocalChannel);
+                if (state.getChannel().parent() == null) {
+                    assertEquals(other.getLocalAddress(), state.getChannelRemoteAddress());
+                    connecting++;
+                }
+            }
+        }
+        assertEquals(1, connecting);
+        // the peer is known by a loopback address here, which is only passed on to peers on this host
+        InputStream local = new ByteArrayInputStream(PeerService.encodeExtraPeers(proxy, true));
+        assertEquals(server.getUUID(), LessBytes.readString(local));
+        assertTrue(PeerService.decodeAddress(local).getAddress().isLoopbackAddress());
+        InputStream remote = new ByteArrayInputStream(PeerService.encodeExtraPeers(proxy, false));
+        while (!LessBytes.readString(remote).isEmpty()) {
+            InetAddress gossiped = PeerService.decodeAddress(remote).getAddress();
+            assertFalse(gossiped.isLoopbackAddress() || gossiped.isAnyLocalAddress());
+        }
+        // only addresses that would reach the server over tcp are short cut
+        int port = server.getLocalPort();
+        assertNotNull(LocalTransport.lookup(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)));
+        assertNull(LocalTransport.lookup(new InetSocketAddress(InetAddress.getByName("192.0.2.1"), port)));
+    }
+
+    /**
+     * meshes on one event loop group keep it running until the last of them is closed
+     */
+    @Test
+    public void sharedEventLoops() throws Exception {
+        MeshyEventLoopGroup loops = MeshyEventLoopGroup.builder().threads(2).build();
+        MeshyServer server = getServer("src/test/files", loops);
+        MeshyServer proxy = getServer("src/test/files", loops);
+        MeshyClient client = getClient(proxy, loops);
+        loops.release();
+        assertEquals(3, loops.refCount());
+        assertEquals(2, Iterators.size(loops.group().iterator()));
+        proxy.connectToPeer(server.getUUID(), server.getLocalAddress());
+        waitQuiescent();
+        read(client, server, "shared");
+
+        server.close();
+        assertEquals(2, loops.refCount());
+        assertFalse(loops.terminationFuture().isDone());
+        read(client, proxy, "shared after close");
+
+        client.close();
+        proxy.close();
+        assertTrue(loops.terminationFuture().await(10, TimeUnit.SECONDS));
+        try {
+            loops.retain();
+            fail("retained a shut down group");
+        } catch (IllegalStateException expected) {
+            // the group is gone with its last user
+        }
+    }
+
+    private long throughput(MeshyTransport transport) throws Exception {
+        System.setProperty("meshy.transport.local", "false");
+        return throughput(transport, false);
+    }
+
+    private long throughput(MeshyTransport transport, boolean local) throws Exception {
+        System.setProperty("meshy.transport", transport.name());
+        MeshyServer server = getServer("src/test/files");
+        MeshyServer proxy = getServer("src/test/files");
+        proxy.connectToPeer(server.getUUID(), server.getLocalAddress());
+        waitQuiescent();
+        MeshyClient client = getClient(proxy);
+        assertEquals(transport, client.getTransport());
+        for (Meshy meshy : new Meshy[]{server, proxy, client}) {
+            for (ChannelState state : meshy.connectedChannels.all()) {
+                assertEquals(local, state.getChannel() instanceof LocalChannel);
+            }
+        }
+        return read(client, server, transport + (local ? " local" : ""));
+    }
+
+    private long read(MeshyClient client, MeshyServer server, String label) throws Exception {
+        long bytes = 0;
+        long time = System.nanoTime();
+        for (int i = 0; i < READS; i++) {
+            StreamSource stream = new StreamSource(client, server.getUUID(), "c/hosts", 0);
+            bytes += LessBytes.readFully(stream.getInputStream()).length;
+            stream.waitComplete();
+        }
+        time = System.nanoTime() - time;
+        assertEquals(READS * 593366L, bytes);
+        long rate = (bytes * 1000000L) / time;
+        log.info("{} read {} bytes in {} ms = {} KB/s", label, num.format(bytes), time / 1000000, num.format(rate));
+        return rate;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.addthis.meshy.service.file;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TestFileReferenceBatch {
+
+    @Test
+    public void roundTrip() throws Exception {
+        List<FileReference> refs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            refs.add(new FileReference("/logs/2026/10/host-" + (i / 10) + "/part-" + i + ".gz", 1_000_000L + i, i));
+        }
+        // names that share nothing, repeat, or share half of a surrogate pair
+        refs.add(new FileReference("/other", 0, 0));
+        refs.add(new FileReference("/other", 0, 0));
+        refs.add(new FileReference("/\uD83D\uDE00", 1, 1));
+        refs.add(new FileReference("/\uD83D\uDE01", 2, 2));
+        FileReferenceBatch batch = new FileReferenceBatch("host-uuid");
+        for (FileReference ref : refs) {
+            assertFalse(batch.add(ref));
+        }
+        assertEquals(refs.size(), batch.size());
+        byte[] frame = batch.drain();
+        assertEquals(0, batch.size());
+        assertTrue(FileReferenceBatch.isBatch(frame));
+        assertEquals(refs.size(), FileReferenceBatch.count(frame));
+        List<FileReference> decoded = FileReferenceBatch.decode(frame);
+        for (FileReference ref : refs) {
+            ref.setHostUUID("host-uuid");
+        }
+        assertEquals(refs, decoded);
+        int singles = 0;
+        for (FileReference ref : refs) {
+            singles += ref.encode(null).length;
+        }
+        assertTrue(frame.length < (singles / 2));
+    }
+
+    @Test
+    public void singleFrames() throws Exception {
+        byte[] frame = new FileReference("/a/b", 1, 2).encode("host-uuid");
+        assertFalse(FileReferenceBatch.isBatch(frame));
+        assertEquals(1, FileReferenceBatch.count(frame));
+        assertEquals(new FileReference("/a/b", 1, 2).setHostUUID("host-uuid"),
+                     FileReferenceBatch.decode(frame).get(0));
+    }
+
+    @Test
+    public void sentWhenFull() {
+        FileReferenceBatch batch = new FileReferenceBatch("host-uuid");
+        int added = 1;
+        while (!batch.add(new FileReference("/f" + added, 0, 0))) {
+            added++;
+        }
+        assertTrue(added <= FileReferenceBatch.MAX_REFERENCES);
+    }
+
+    @Test
+    public void dueWhenOld() throws Exception {
+        FileReferenceBatch batch = new FileReferenceBatch("host-uuid");
+        assertFalse(batch.isDue());
+        assertFalse(batch.add(new FileReference("/f", 0, 0)));
+        assertFalse(batch.isDue());
+        Thread.sleep(FileReferenceBatch.MAX_DELAY + 10);
+        assertTrue(batch.isDue());
+        batch.drain();
+        assertFalse(batch.isDue());
+    }
+}
@@ -13,12 +13,24 @@
  */
 package com.addthis.meshy.service.file;
 
+import java.io.File;
+
 import java.net.InetSocketAddress;
 
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
 
+import com.addthis.meshy.ChannelState;
 import com.addthis.meshy.Meshy;
 import com.addthis.meshy.MeshyClient;
+import com.addthis.meshy.MeshyConstants;
 import com.addthis.meshy.MeshyServer;
 import com.addthis.meshy.TestMesh;
 
@@ -83,6 +95,31 @@ public class TestFileService extends TestMesh {
         checkFile(map, new FileReference("/mux/hosts", 0, 593366).setHostUUID(server.getUUID()));
     }
 
+    @Test
+    public void wideTree() throws Exception {
+        Path root = Files.createTempDirectory("meshy-find");
+        try {
+            for (int i = 0; i < 40; i++) {
+                for (int j = 0; j < 3; j++) {
+                    Path dir = Files.createDirectories(root.resolve("d" + i).resolve("s" + j));
+                    for (int k = 0; k < 10; k++) {
+                        Files.write(dir.resolve("f" + k), new byte[k]);
+                    }
+                }
+            }
+            MeshyServer server = getServer(root.toString());
+            MeshyClient client = getClient(server);
+            // subdirectories are walked in parallel; every file is still found exactly once
+            FileSource files = new FileSource(client, new String[]{"*/s*/f*"});
+            files.waitComplete();
+            assertEquals(1200, files.getFileList().size());
+            assertEquals(1200, files.getFileMap().size());
+            checkFile(files.getFileMap(), new FileReference("/d39/s2/f9", 0, 9).setHostUUID(server.getUUID()));
+        } finally {
+            Files.walk(root).sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
     @Test
     public void multiPeer() throws Exception {
         final MeshyServer server1 = getServer("src/test/files/a");
@@ -105,6 +142,58 @@ public class TestFileService extends TestMesh {
         checkFile(map, new FileReference("/xyz.xml", 0, 10).setHostUUID(server3.getUUID()));
     }
 
+    @Test
+    public void relayTree() throws Exception {
+        final MeshyServer server1 = getServer("src/test/files/a");
+        final MeshyServer server2 = getServer("src/test/files/b");
+        final MeshyServer server3 = getServer("src/test/files/a");
+        final MeshyServer server4 = getServer("src/test/files/b");
+        server1.connectPeer(new InetSocketAddress("localhost", server2.getLocalPort()));
+        server1.connectPeer(new InetSocketAddress("localhost", server3.getLocalPort()));
+        server1.connectPeer(new InetSocketAddress("localhost", server4.getLocalPort()));
+        waitQuiescent();
+        // server1 -> (server2 -> server4), server3
+        RelayTree tree = new RelayTree(2, Arrays.asList(
+                server1.getUUID(), server2.getUUID(), server3.getUUID(), server4.getUUID()));
+        assertEquals(Arrays.asList(server2.getUUID(), server3.getUUID()), tree.children(server1.getUUID()));
+        assertEquals(Collections.singletonList(server4.getUUID()), tree.children(server2.getUUID()));
+        assertEquals(Collections.emptyList(), tree.children(server4.getUUID()));
+        assertEquals(tree.members(), RelayTree.decode(tree.encode()).members());
+
+        Meshy client = getClient(server1);
+        FileSource files = new FileSource(client, new String[]{"*.xml"}, tree.encode());
+        files.waitComplete();
+        log.info("file.list --> {}", files.getFileList());
+        assertEquals(8, files.getFileList().size());
+        Set<String> hosts = new HashSet<>();
+        for (FileReference ref : files.getFileList()) {
+            hosts.add(ref.getHostUUID());
+        }
+        assertEquals(new HashSet<>(tree.members()), hosts);
+
+        // server1 -> (missing -> server2, server4), server3: the children of a member that is not connected are
+        // sent the find by its parent
+        RelayTree broken = new RelayTree(2, Arrays.asList(
+                server1.getUUID(), "missing", server3.getUUID(), server2.getUUID(), server4.getUUID()));
+        files = new FileSource(client, new String[]{"*.xml"}, broken.encode());
+        files.waitComplete();
+        assertEquals(8, files.getFileList().size());
+
+        // peers that did not advertise relaying are sent the find by the entry node, not put in the tree
+        assertEquals(4, RelayTree.forPeers(server1, 1).members().size());
+        for (ChannelState state : server1.getChannels(MeshyConstants.LINK_NAMED)) {
+            if (server2.getUUID().equals(state.getName())) {
+                state.setPeerFeatures(0);
+            }
+        }
+        RelayTree partial = RelayTree.forPeers(server1, 1);
+        assertEquals(server1.getUUID(), partial.members().get(0));
+        assertEquals(new HashSet<>(Arrays.asList(server1.getUUID(), server3.getUUID(), server4.getUUID())),
+                     new HashSet<>(partial.members()));
+        assertFalse(partial.members().contains(server2.getUUID()));
+        assertEquals(Collections.singletonList(server2.getUUID()), partial.direct());
+    }
+
     @Test
     public void testEquals() throws Exception {
         FileReference[] refs = new FileReference[5];
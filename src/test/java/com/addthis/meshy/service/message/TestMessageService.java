@@ -17,6 +17,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.addthis.basis.util.LessBytes;
@@ -24,6 +30,7 @@ import com.addthis.basis.util.LessBytes;
 import com.addthis.meshy.MeshyClient;
 import com.addthis.meshy.MeshyServer;
 import com.addthis.meshy.TestMesh;
+import com.addthis.meshy.service.stream.StreamSource;
 
 import org.junit.Test;
 
@@ -83,4 +90,84 @@ public class TestMessageService extends TestMesh {
         mss.sendComplete();
         mss.waitComplete();
     }
+
+    /**
+     * message listeners run off the event loop: a blocked listener must not hold up other sessions on the same
+     * channel, and its own messages must still arrive in order.
+     */
+    @Test
+    public void slowListener() throws Exception {
+        final MeshyServer server = getServer("src/test/files");
+        final MeshyClient client = getClient(server.getLocalPort());
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        MessageTarget.registerListener("slow", new TargetListener() {
+            @Override
+            public void receiveMessage(TopicSender target, String topic, InputStream message) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                received.add(LessBytes.readString(message));
+            }
+
+            @Override
+            public void linkDown(TopicSender target) {
+            }
+        });
+        MessageSource mss = new MessageSource(client, new TopicListener() {
+            @Override
+            public void receiveMessage(String topic, InputStream message) {
+            }
+
+            @Override
+            public void linkDown() {
+            }
+        });
+        for (String payload : new String[]{"1", "2", "3"}) {
+            OutputStream out = mss.sendMessage("slow");
+            LessBytes.writeString(payload, out);
+            out.close();
+        }
+        StreamSource stream = new StreamSource(client, server.getUUID(), "c/hosts", 0);
+        assertEquals(593366, LessBytes.readFully(stream.getInputStream()).length);
+        stream.waitComplete();
+        assertTrue(received.isEmpty());
+        release.countDown();
+        for (int i = 0; (i < 100) && (received.size() < 3); i++) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        assertEquals(Arrays.asList("1", "2", "3"), received);
+        mss.sendComplete();
+        mss.waitComplete();
+    }
+
+    @Test
+    public void readTimeout() throws Exception {
+        final MeshyServer server = getServer("src/test/files");
+        final MeshyClient client = getClient(server.getLocalPort());
+        final CountDownLatch linkDown = new CountDownLatch(1);
+        MessageSource mss = new MessageSource(client, new TopicListener() {
+            @Override
+            public void receiveMessage(String topic, InputStream message) {
+            }
+
+            @Override
+            public void linkDown() {
+                linkDown.countDown();
+            }
+        });
+        // nobody listens on this topic, so the server never replies
+        OutputStream out = mss.sendMessage("unheard");
+        LessBytes.writeString("12345", out);
+        out.close();
+        long start = System.nanoTime();
+        mss.setReadTimeout(1);
+        assertTrue(linkDown.await(5, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        log.info("read timeout fired after {} ms", elapsed);
+        assertTrue(elapsed >= 900);
+        mss.waitComplete();
+    }
 }